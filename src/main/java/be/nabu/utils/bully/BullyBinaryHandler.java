@@ -0,0 +1,193 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.text.ParseException;
+
+import org.slf4j.Logger;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.HTTPException;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.bully.utils.BullyBinaryCodec;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Answers the requests of peers that understand the binary format, everything else is passed on to the REST handler.
+ * A peer signals support by accepting the binary content type, the actual request content can be either binary or XML.
+ */
+class BullyBinaryHandler implements EventHandler<HTTPRequest, HTTPResponse> {
+
+	private EventHandler<HTTPRequest, HTTPResponse> parent;
+	private BullyClient client;
+	private BullyREST rest;
+	private String rootPath;
+	private Logger logger;
+
+	BullyBinaryHandler(EventHandler<HTTPRequest, HTTPResponse> parent, BullyClient client, BullyREST rest, String rootPath, Logger logger) {
+		this.parent = parent;
+		this.client = client;
+		this.rest = rest;
+		this.rootPath = rootPath;
+		this.logger = logger;
+	}
+
+	@Override
+	public HTTPResponse handle(HTTPRequest request) {
+		String path = getPath(request, rootPath);
+		if (path == null || !isBinary(request, "Accept")) {
+			return parent.handle(request);
+		}
+		try {
+			if (path.equals("bully/history") && request.getMethod().equalsIgnoreCase("GET")) {
+				return newResponse(200, "OK", client.getBinaryCodec().marshal(rest.overview(getParameter(request, "host"), getLong(request, "from"), getLong(request, "to"))));
+			}
+			else if (request.getMethod().equalsIgnoreCase("POST")) {
+				if (path.equals("bully/alive")) {
+					return newResponse(200, "OK", client.getBinaryCodec().marshal(rest.alive(readQuery(request))));
+				}
+				else if (path.equals("bully/handover")) {
+					return newResponse(200, "OK", client.getBinaryCodec().marshal(rest.handover(readQuery(request))));
+				}
+				else if (path.equals("bully/abdicate")) {
+					rest.abdicate(readQuery(request));
+					return newResponse(200, "OK", null);
+				}
+				else if (path.equals("bully/gossip")) {
+					return newResponse(200, "OK", client.getBinaryCodec().marshal(rest.gossip(readOverview(request))));
+				}
+				else if (path.equals("bully/join")) {
+					return newResponse(200, "OK", client.getBinaryCodec().marshal(rest.join(readQuery(request))));
+				}
+				else if (path.equals("bully/inquiry")) {
+					return newResponse(200, "OK", client.getBinaryCodec().marshal(rest.inquiry(readQuery(request))));
+				}
+				else if (path.equals("bully/victory")) {
+					rest.victory(readQuery(request));
+					return newResponse(200, "OK", null);
+				}
+			}
+			return parent.handle(request);
+		}
+		catch (HTTPException e) {
+			return newResponse(e.getCode(), e.getMessage(), null);
+		}
+		catch (IOException e) {
+			logger.warn("Could not read binary bully message", e);
+			return newResponse(400, "Could not read message", null);
+		}
+		catch (ParseException e) {
+			logger.warn("Could not parse binary bully message", e);
+			return newResponse(400, "Could not parse message", null);
+		}
+	}
+
+	private BullyQuery readQuery(HTTPRequest request) throws IOException, ParseException {
+		if (!(request.getContent() instanceof ContentPart)) {
+			throw new HTTPException(400, "Missing content");
+		}
+		InputStream input = IOUtils.toInputStream(((ContentPart) request.getContent()).getReadable());
+		BullyQuery query = isBinary(request, "Content-Type") ? client.getBinaryCodec().unmarshalQuery(input) : client.getCodec().unmarshalQuery(input);
+		if (query == null) {
+			throw new HTTPException(400, "Missing query");
+		}
+		return query;
+	}
+
+	private BullyQueryOverview readOverview(HTTPRequest request) throws IOException, ParseException {
+		if (!(request.getContent() instanceof ContentPart)) {
+			throw new HTTPException(400, "Missing content");
+		}
+		InputStream input = IOUtils.toInputStream(((ContentPart) request.getContent()).getReadable());
+		BullyQueryOverview overview = isBinary(request, "Content-Type") ? client.getBinaryCodec().unmarshalOverview(input) : client.getCodec().unmarshalOverview(input);
+		if (overview == null) {
+			throw new HTTPException(400, "Missing overview");
+		}
+		return overview;
+	}
+
+	static String getParameter(HTTPRequest request, String name) {
+		String target = request.getTarget();
+		int index = target == null ? -1 : target.indexOf('?');
+		if (index < 0) {
+			return null;
+		}
+		for (String parameter : target.substring(index + 1).split("&")) {
+			int separator = parameter.indexOf('=');
+			if (separator > 0 && parameter.substring(0, separator).equals(name)) {
+				try {
+					return URLDecoder.decode(parameter.substring(separator + 1), "UTF-8");
+				}
+				catch (UnsupportedEncodingException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		return null;
+	}
+
+	static Long getLong(HTTPRequest request, String name) {
+		String value = getParameter(request, name);
+		try {
+			return value == null ? null : Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			throw new HTTPException(400, "Invalid value for '" + name + "': " + value);
+		}
+	}
+
+	static String getPath(HTTPRequest request, String rootPath) {
+		String target = request.getTarget();
+		if (target == null) {
+			return null;
+		}
+		int index = target.indexOf('?');
+		if (index >= 0) {
+			target = target.substring(0, index);
+		}
+		return target.startsWith(rootPath) ? target.substring(rootPath.length()) : null;
+	}
+
+	static boolean isBinary(HTTPRequest request, String headerName) {
+		ModifiablePart content = request.getContent();
+		Header header = content == null ? null : MimeUtils.getHeader(headerName, content.getHeaders());
+		return header != null && header.getValue() != null && header.getValue().contains(BullyBinaryCodec.CONTENT_TYPE);
+	}
+
+	private static HTTPResponse newResponse(int code, String message, byte[] content) {
+		if (content == null) {
+			content = new byte[0];
+		}
+		return new DefaultHTTPResponse(code, message, new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+			new MimeHeader("Content-Length", "" + content.length),
+			new MimeHeader("Content-Type", BullyBinaryCodec.CONTENT_TYPE)
+		));
+	}
+}
@@ -17,28 +17,39 @@
 
 package be.nabu.utils.bully;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.MemoryUsage;
-import java.lang.management.OperatingSystemMXBean;
-import java.lang.management.RuntimeMXBean;
-import java.lang.management.ThreadMXBean;
+import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.security.Principal;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,44 +60,113 @@ import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.api.client.HTTPClient;
 import be.nabu.libs.http.core.DefaultHTTPRequest;
 import be.nabu.libs.http.server.rest.RESTHandler;
-import be.nabu.libs.types.api.ComplexContent;
-import be.nabu.libs.types.api.ComplexType;
-import be.nabu.libs.types.binding.api.Window;
-import be.nabu.libs.types.binding.xml.XMLBinding;
-import be.nabu.libs.types.java.BeanInstance;
-import be.nabu.libs.types.java.BeanResolver;
+import be.nabu.utils.bully.history.HistoryQuery;
+import be.nabu.utils.bully.history.HistoryStore;
+import be.nabu.utils.bully.history.HostHistory;
+import be.nabu.utils.bully.history.Series;
+import be.nabu.utils.bully.metrics.BullyMetrics;
+import be.nabu.utils.bully.sampler.MetricsSampler;
+import be.nabu.utils.bully.sampler.MetricsSnapshot;
+import be.nabu.utils.bully.stream.EventHub;
+import be.nabu.utils.bully.stream.StreamEvent;
+import be.nabu.utils.bully.stream.Subscription;
+import be.nabu.utils.bully.utils.BullyBinaryCodec;
+import be.nabu.utils.bully.utils.BullyCodec;
+import be.nabu.utils.bully.utils.BullyScheduler;
+import be.nabu.utils.bully.utils.HTTPClientTransport;
+import be.nabu.utils.bully.utils.PhiAccrualFailureDetector;
+import be.nabu.utils.bully.utils.SystemClock;
 import be.nabu.utils.bully.utils.WaitAndElect;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.impl.FormatException;
 import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
 import be.nabu.utils.mime.impl.PlainMimeContentPart;
 
-public class BullyClient {
+public class BullyClient implements Closeable {
 
-	private HTTPClient client;
-	List<String> hosts;
-	private Principal principal;
-	private boolean secure;
+	private BullyTransport transport;
+	private BullyClock clock = SystemClock.getInstance();
+	// the hosts in the cluster, replaced as a whole when a host is added or removed
+	private AtomicReference<Membership> membership;
 	private String host;
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	private String rootPath;
-	private MasterController controller;
-	private Thread waitAndElectThread;
+	private TermAwareMasterController controller;
+	// the controller we were given, it is notified of every change in master
+	private MasterController delegate;
 	private long victoryTimeout;
 	private List<MasterFuture> futures = new ArrayList<MasterFuture>();
-	private volatile String currentMaster;
-	private WaitAndElect waitAndElect;
-	private Thread heartBeat;
-	private RuntimeMXBean runtimeMXBean;
-	private OperatingSystemMXBean operatingSystemMXBean;
-	private ThreadMXBean threadMXBean;
-	private MemoryMXBean memoryMXBean;
-	// keep 60 elements in the history
-	private int historySize;
-	private Map<String, List<BullyQuery>> queries = new HashMap<String, List<BullyQuery>>();
-	private BullyQueryOverview overview;
+	// the highest election term we have seen
+	private AtomicLong term = new AtomicLong();
+	// the role, the master and the pending election, only ever replaced as a whole
+	private AtomicReference<ElectionState> state = new AtomicReference<ElectionState>(new ElectionState());
+	private List<ElectionListener> listeners = new CopyOnWriteArrayList<ElectionListener>();
+	// the version of the last state the controller was notified of, notifications for older states are dropped
+	private long notifiedVersion = -1;
+	private Object notifyLock = new Object();
+	private AtomicReference<BullyScheduler.Task> heartBeat = new AtomicReference<BullyScheduler.Task>();
+	// the messages are built from the latest snapshot of the sampler, by default the one shared by all clients
+	private MetricsSampler sampler;
+	// the amount of raw entries kept per host, by default an hour worth of heartbeats
+	private Integer historyCapacity;
+	// the amount of minute and hour rollups kept per host
+	private int historyMinutes = HostHistory.DEFAULT_MINUTES, historyHours = HostHistory.DEFAULT_HOURS;
+	private File historyDirectory;
+	// replaced when the history settings change, the readers always pick up the current store
+	private volatile HistoryStore history;
+	// clients that share the store of another client (like the groups) leave the recording and the replication to that client
+	private volatile boolean historyRecorded = true;
+	// the master we are replicating the history from and the last sequence we received from it
+	private String replicatedFrom;
+	private long replicatedSequence;
 	private long heartBeatInterval = 60*1000;
+	// whether the heartbeats are aligned on multiples of the interval rather than counted from the moment we got a master
+	private boolean heartBeatAligned;
+	private RankingStrategy rankingStrategy;
+	private HeartBeatMode heartBeatMode = HeartBeatMode.MASTER;
+	// in gossip mode: the amount of peers we contact per round and the maximum amount of samples per message
+	private int gossipFanout = 3, gossipPayload = 32;
+	private BullyGossip gossip;
+	// the master we are currently suspecting in gossip mode, a suspicion is only counted once as a failed heartbeat
+	private volatile String gossipSuspect;
+	// whether we are fetching the membership from a peer, there is no need to fetch it twice at the same time
+	private AtomicBoolean fetchingMembership = new AtomicBoolean();
+	// the master we followed before the current election, the ranking can favour it
+	private volatile String previousMaster;
+	// when joining, follow the existing master even if we outrank it
+	private boolean stickyMaster;
+	// once abdicated, this server no longer becomes master
+	private volatile boolean abdicated;
+	private FailureDetector failureDetector;
+	// the duration (ms) of the leases we grant the master, 0 disables leases
+	private long leaseDuration;
+	// the margin (ms) the master subtracts from a lease to allow for clock drift, defaults to 10% of the lease
+	private Long leaseDriftMargin;
+	// as master: the expiry (in nanotime) of the lease each follower granted us
+	private ConcurrentMap<String, Long> leases = new ConcurrentHashMap<String, Long>();
+	// as follower: the master we granted a lease to and until when (in nanotime)
+	private String leaseGrantedTo;
+	private long leaseGrantedUntil;
+	// the maximum amount of time a single election round (inquiry or victory) can take, if not set the victory timeout is used
+	private Long electionTimeout;
+	private BullyCodec codec;
+	private BullyBinaryCodec binaryCodec = new BullyBinaryCodec();
+	// whether or not we use the binary format with peers that support it
+	private boolean binary = true;
+	private Set<String> binaryPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private BullyMetrics metrics;
+	// the master changes, term changes and samples for the subscribers of the stream
+	private EventHub events;
+	// the name we are registered under in jmx, if at all
+	private ObjectName objectName;
+	private BullyScheduler scheduler;
+	// whether we created the scheduler ourselves and should close it
+	private boolean ownScheduler;
+	// once closed, the client no longer schedules any work
+	private volatile boolean closed;
 
 	public BullyClient(String host, String rootPath, final MasterController controller, Long victoryTimeout, HTTPClient client, Principal principal, boolean secure, String...hosts) {
 		this(host, rootPath, controller, victoryTimeout, client, principal, secure, Arrays.asList(hosts));
@@ -94,48 +174,28 @@ public class BullyClient {
 	
 	public BullyClient(String host, String rootPath, final MasterController controller, Long victoryTimeout, HTTPClient client, Principal principal, boolean secure, List<String> hosts) {
 		this.host = host;
-		this.controller = new MasterController() {
+		this.delegate = controller;
+		this.controller = new TermAwareMasterController() {
 			@Override
 			public void setMaster(String master) {
-				synchronized(BullyClient.this) {
-					// reset the current master if we are going for an election
-					// during this time there is no master, we are in limbo
-					if (master == null) {
-						logger.info("Unsetting master");
-						currentMaster = null;
-						if (controller != null) {
-							controller.setMaster(null);
-						}
-						stopHeartbeat();
-					}
-					else {
-						logger.info("Setting master to '" + master + "'");
-						if (cancelElection()) {
-							// set locally before we set in the controller, that way anyone listening can do isMaster() properly
-							currentMaster = master;
-							if (controller != null) {
-								controller.setMaster(master);
-							}
-							// resolve the futures
-							synchronized (futures) {
-								for (MasterFuture future : futures) {
-									future.master = master;
-								}
-								futures.clear();
-							}
-							// make sure we have a heartbeat to the master
-							startHeartbeat();
-						}
-						else {
-							logger.warn("Could not cancel election, not accepting '" + master + "' as new master");
-						}
-					}
+				setMaster(master, term.get());
+			}
+			@Override
+			public void setMaster(String master, long term) {
+				// reset the current master if we are going for an election
+				// during this time there is no master, we are in limbo
+				if (master == null) {
+					unsetMaster(ElectionRole.FOLLOWER, term, false);
+				}
+				else {
+					acceptMaster(master, term);
 				}
 			}
 		};
 		this.victoryTimeout = victoryTimeout == null || victoryTimeout == 0 ? 60*1000 : victoryTimeout;
 		// we want to keep roughly one hours worth of data
-		this.historySize = (int) ((60*1000*60) / this.victoryTimeout);
+		this.history = new HistoryStore(getHistoryCapacity());
+		this.history.setClock(clock);
 		this.rootPath = rootPath == null || rootPath.trim().isEmpty() ? "/" : rootPath;
 		if (!this.rootPath.endsWith("/")) {
 			this.rootPath += "/";
@@ -143,299 +203,1422 @@ public class BullyClient {
 		if (!this.rootPath.startsWith("/")) {
 			this.rootPath = "/" + this.rootPath;
 		}
-		this.client = client;
-		this.principal = principal;
-		this.secure = secure;
-		this.hosts = new ArrayList<String>(hosts);
-		Collections.sort(this.hosts);
-		Collections.reverse(this.hosts);
+		this.transport = new HTTPClientTransport(client, principal, secure);
+		this.membership = new AtomicReference<Membership>(new Membership(0, hosts));
 		
-		runtimeMXBean = ManagementFactory.getRuntimeMXBean();
-		operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
-		threadMXBean = ManagementFactory.getThreadMXBean();
-		memoryMXBean = ManagementFactory.getMemoryMXBean();
+		// use the default charset, all servers should be configured the same
+		this.codec = new BullyCodec(Charset.defaultCharset());
+		this.metrics = new BullyMetrics(this);
+		this.events = new EventHub(codec, 1024);
 	}
 	
 	public EventHandler<HTTPRequest, HTTPResponse> newHandler() {
 		// strip the ending "/" if necessary
-		return new RESTHandler(rootPath.equals("/") ? rootPath : rootPath.substring(0, rootPath.length() - 1), BullyREST.class, null, this, this.host, controller, logger);
+		RESTHandler handler = new RESTHandler(rootPath.equals("/") ? rootPath : rootPath.substring(0, rootPath.length() - 1), BullyREST.class, null, this, this.host, controller, logger);
+		return new BullyStreamHandler(new BullyBinaryHandler(handler, this, new BullyREST(host, this, controller, logger), rootPath, logger), this, rootPath, logger);
 	}
 	
 	public boolean isCurrentMaster() {
-		return currentMaster != null && host.equals(currentMaster);
+		return host.equals(state.get().getMaster());
 	}
 	
 	public String getCurrentMaster() {
-		return currentMaster;
+		return state.get().getMaster();
 	}
 	
-	private class MasterFuture implements Future<String> {
-
-		private volatile String master;
-		
-		@Override
-		public boolean cancel(boolean mayInterruptIfRunning) {
-			return cancelElection();
-		}
-
-		@Override
-		public boolean isCancelled() {
+	public ElectionState getElectionState() {
+		return state.get();
+	}
+	
+	public void addElectionListener(ElectionListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeElectionListener(ElectionListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Replaces the state if it is still the expected one
+	 */
+	private boolean update(ElectionState expected, ElectionState next) {
+		if (!state.compareAndSet(expected, next)) {
 			return false;
 		}
-
-		@Override
-		public boolean isDone() {
-			return master != null;
-		}
-
-		@Override
-		public String get() throws InterruptedException, ExecutionException {
+		logger.debug("Election state: " + expected + " -> " + next);
+		publish(expected, next);
+		for (ElectionListener listener : listeners) {
 			try {
-				return get(365, TimeUnit.DAYS);
+				listener.transitioned(expected, next);
 			}
-			catch (TimeoutException e) {
-				throw new RuntimeException("You have a lot of patience my friend", e);
+			catch (Exception e) {
+				logger.error("Election listener failed", e);
 			}
 		}
+		return true;
+	}
+	
+	private void publish(ElectionState from, ElectionState to) {
+		boolean masterChanged = to.getMaster() == null ? from.getMaster() != null : !to.getMaster().equals(from.getMaster());
+		if (masterChanged || to.getTerm() != from.getTerm()) {
+			BullyQuery event = new BullyQuery(host);
+			event.setMaster(to.getMaster());
+			event.setTerm(to.getTerm());
+			events.publish(masterChanged ? StreamEvent.MASTER : StreamEvent.TERM, event);
+		}
+	}
+	
+	/**
+	 * Subscribes to the events of this client, the keep alives of the stream are sent from our scheduler
+	 */
+	Subscription subscribe(String lastId) {
+		return events.subscribe(lastId, getScheduler());
+	}
+	
+	public EventHub getEvents() {
+		return events;
+	}
+	
+	/**
+	 * Switches roles if we are still in the expected role for the given term
+	 */
+	private boolean changeRole(ElectionRole expected, long term, ElectionRole role) {
+		ElectionState current = state.get();
+		while (current.getRole() == expected && current.getTerm() == term) {
+			if (update(current, current.withRole(role))) {
+				return true;
+			}
+			current = state.get();
+		}
+		return false;
+	}
+	
+	/**
+	 * There is no master until an election produces one, if requested an election that is still waiting is cancelled
+	 */
+	private void unsetMaster(ElectionRole role, long term, boolean cancelPending) {
+		ElectionState next;
+		while (true) {
+			ElectionState current = state.get();
+			WaitAndElect pending = current.getPending();
+			if (cancelPending && pending != null) {
+				// if it is already running (for instance because it is the one calling us), we simply let go of it
+				pending.cancel();
+			}
+			next = current.next(role, null, term, cancelPending ? null : pending);
+			if (update(current, next)) {
+				break;
+			}
+		}
+		logger.info("Unsetting master");
+		metrics.masterLost(clock.nanoTime());
+		leases.clear();
+		notifyController(next);
+		stopHeartbeat();
+	}
+	
+	private void acceptMaster(String master, long term) {
+		ElectionState next;
+		while (true) {
+			ElectionState current = state.get();
+			// a newer election has already started, this master is outdated
+			if (term < this.term.get()) {
+				logger.warn("Not accepting '" + master + "' as new master, its term " + term + " is older than the current term " + this.term.get());
+				return;
+			}
+			// we can only accept the master if our own election has not started yet
+			WaitAndElect pending = current.getPending();
+			if (pending != null && !pending.isFinished() && !pending.cancel()) {
+				logger.warn("Could not cancel election, not accepting '" + master + "' as new master");
+				return;
+			}
+			next = current.next(host.equals(master) ? ElectionRole.LEADER : ElectionRole.FOLLOWER, master, term, null);
+			if (update(current, next)) {
+				break;
+			}
+		}
+		logger.info("Setting master to '" + master + "' for term " + term);
+		metrics.masterFound(master, clock.nanoTime());
+		// leases granted to a previous mastership are not carried over
+		leases.clear();
+		// start learning the heartbeats of the master from scratch
+		getFailureDetector().remove(master);
+		getFailureDetector().heartbeat(master, clock.currentTimeMillis());
+		// the state is set before we notify the controller, that way anyone listening can do isMaster() properly
+		notifyController(next);
+		// pick up the futures that are waiting, they are resolved outside of the lock so callbacks can not block the client
+		List<MasterFuture> resolved;
+		synchronized (futures) {
+			resolved = new ArrayList<MasterFuture>(futures);
+			futures.clear();
+		}
+		// make sure we have a heartbeat to the master
+		startHeartbeat();
+		for (MasterFuture future : resolved) {
+			future.complete(master);
+		}
+	}
+	
+	/**
+	 * Concurrent changes may arrive here out of order, the controller only ever sees newer states
+	 */
+	private void notifyController(ElectionState state) {
+		if (delegate != null) {
+			synchronized(notifyLock) {
+				if (state.getVersion() <= notifiedVersion) {
+					return;
+				}
+				notifiedVersion = state.getVersion();
+				if (delegate instanceof TermAwareMasterController) {
+					((TermAwareMasterController) delegate).setMaster(state.getMaster(), state.getTerm());
+				}
+				else {
+					delegate.setMaster(state.getMaster());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The highest election term this client has seen
+	 */
+	public long getTerm() {
+		return term.get();
+	}
+	
+	/**
+	 * The term in which the current master was elected, this can be used as a fencing token
+	 */
+	public long getMasterTerm() {
+		return state.get().getTerm();
+	}
+	
+	/**
+	 * Makes sure our term is at least the given one, returns true if the term was updated
+	 */
+	boolean observeTerm(long observed) {
+		long current = term.get();
+		while (current < observed) {
+			if (term.compareAndSet(current, observed)) {
+				snapshotScores(observed);
+				return true;
+			}
+			current = term.get();
+		}
+		return false;
+	}
+	
+	void setMaster(String master, long term) {
+		controller.setMaster(master, term);
+	}
+	
+	/**
+	 * A future that is completed as soon as a master is set, waiting threads are woken up immediately.
+	 * Use {@link BullyClient#getMasterOrNull(long, TimeUnit)} to get null instead of a timeout.
+	 */
+	private class MasterFuture extends CompletableFuture<String> {
 
 		@Override
-		public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-			if (master != null) {
-				return master;
-			}
-			Date started = new Date();
-			timeout = TimeUnit.MILLISECONDS.convert(timeout, unit);
-			while (new Date().getTime() - started.getTime() < timeout) {
-				if (master != null) {
-					return master;
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			// no need to keep track of it anymore
+			if (cancelled) {
+				synchronized(futures) {
+					futures.remove(this);
 				}
-				Thread.sleep(Math.min(timeout - (new Date().getTime() - started.getTime()), 25));
 			}
-			return master;
+			return cancelled;
 		}
 	}
 	
-	public Future<String> getMaster() {
+	public CompletableFuture<String> getMaster() {
 		MasterFuture future = new MasterFuture();
 		synchronized(futures) {
-			future.master = currentMaster;
+			String master = state.get().getMaster();
 			// await future resolving
-			if (future.master == null) {
+			if (master == null) {
 				futures.add(future);
 			}
+			else {
+				future.complete(master);
+			}
 		}
 		return future;
 	}
 	
+	/**
+	 * Waits at most the given time for a master, unlike the future of {@link #getMaster()} this returns null if there is none by then
+	 */
+	public String getMasterOrNull(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+		CompletableFuture<String> future = getMaster();
+		try {
+			return future.get(timeout, unit);
+		}
+		catch (TimeoutException e) {
+			// we are no longer waiting for it
+			future.cancel(false);
+			return null;
+		}
+	}
+	
 	public String getHost() {
 		return host;
 	}
 	
 	public List<String> getHosts() {
-		return hosts;
+		return membership.get().getHosts();
+	}
+	
+	public Membership getMembership() {
+		return membership.get();
+	}
+	
+	public boolean isMember(String host) {
+		return membership.get().contains(host);
+	}
+	
+	/**
+	 * Adds a host to the cluster. Membership changes are made by the master which spreads them to the followers with the heartbeats, if we follow another master the change is forwarded to it.
+	 * Returns whether the change was accepted, while no master is known (e.g. during an election) changes are rejected.
+	 */
+	public boolean addHost(String host) {
+		return changeMembership(host, true, false);
+	}
+	
+	/**
+	 * Removes a host from the cluster, the master itself can not be removed, it should abdicate first
+	 */
+	public boolean removeHost(String host) {
+		return changeMembership(host, false, false);
+	}
+	
+	boolean changeMembership(String member, boolean add, boolean forwarded) {
+		if (member == null || member.trim().isEmpty()) {
+			throw new IllegalArgumentException("Missing host");
+		}
+		String currentMaster = getCurrentMaster();
+		if (!add && member.equals(currentMaster)) {
+			throw new IllegalStateException("Can not remove the master '" + member + "', it should abdicate first");
+		}
+		// without a master a local change could be lost or conflict with one made elsewhere, the caller should try again once there is a master
+		if (currentMaster == null) {
+			logger.warn("Rejecting the membership change for '" + member + "', no master is known");
+			return false;
+		}
+		// the master makes the change, it spreads it to the followers with the heartbeats
+		else if (currentMaster.equals(host)) {
+			while (true) {
+				Membership current = membership.get();
+				// the version carries our term so it never collides with a change of an earlier master
+				long masterTerm = getMasterTerm();
+				Membership next = add ? current.with(member, masterTerm) : current.without(member, masterTerm);
+				if (next == current) {
+					return true;
+				}
+				if (membership.compareAndSet(current, next)) {
+					logger.info((add ? "Added '" : "Removed '") + member + "', membership is now " + next);
+					if (!add) {
+						leases.remove(member);
+						metrics.removeRoundTrip(member);
+					}
+					return true;
+				}
+			}
+		}
+		// the master is the only one that changes the membership, a forwarded change should never be forwarded again
+		else if (forwarded) {
+			return false;
+		}
+		try {
+			byte [] content = new byte[0];
+			HTTPResponse response = transport.execute(currentMaster, new DefaultHTTPRequest(add ? "PUT" : "DELETE", rootPath + "bully/members/" + URLEncoder.encode(member, "UTF-8") + "?forwarded=true",
+				new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+					new MimeHeader("Content-Length", "0"),
+					new MimeHeader("Host", currentMaster)
+				))
+			);
+			return response != null && response.getCode() >= 200 && response.getCode() < 300;
+		}
+		catch (Exception e) {
+			logger.warn("Could not forward the membership change for '" + member + "' to master '" + currentMaster + "'", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Fetches the members from a peer that announced a newer membership version, this happens in the background
+	 */
+	void fetchMembership(final String peer) {
+		if (peer == null || peer.equals(host) || closed || !fetchingMembership.compareAndSet(false, true)) {
+			return;
+		}
+		getScheduler().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					HTTPResponse response = transport.execute(peer, new DefaultHTTPRequest("GET", rootPath + "bully/members",
+						new PlainMimeContentPart(null, IOUtils.wrap(new byte[0], true),
+							new MimeHeader("Content-Length", "0"),
+							new MimeHeader("Accept", codec.getContentType()),
+							new MimeHeader("Host", peer)
+						))
+					);
+					if (response == null || response.getCode() < 200 || response.getCode() >= 300 || !(response.getContent() instanceof ContentPart)) {
+						logger.debug("Could not fetch the members from '" + peer + "' (" + (response == null ? "no response" : response.getCode()) + ")");
+						return;
+					}
+					BullyMembers members = codec.unmarshalMembers(IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable()));
+					if (members != null && members.getHosts() != null) {
+						adoptMembership(members.getVersion(), members.getHosts());
+					}
+				}
+				catch (Exception e) {
+					logger.warn("Could not fetch the members from '" + peer + "'", e);
+				}
+				finally {
+					fetchingMembership.set(false);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Adopts the membership the master sent us, the master has the final word unless we know a newer version
+	 */
+	void adoptMembership(long version, List<String> members) {
+		while (true) {
+			Membership current = membership.get();
+			if (version < current.getVersion() || (version == current.getVersion() && current.hasSameHosts(members))) {
+				return;
+			}
+			Membership next = new Membership(version, members);
+			if (membership.compareAndSet(current, next)) {
+				logger.info("Adopted membership " + next);
+				// the round trips to the servers that left are no longer measured
+				for (String peer : metrics.getRoundTrips().keySet()) {
+					if (!next.contains(peer)) {
+						metrics.removeRoundTrip(peer);
+					}
+				}
+				if (!next.contains(host)) {
+					logger.warn("This server is no longer a member of the cluster");
+				}
+				return;
+			}
+		}
 	}
 	
 	// start an election
-	public Future<String> elect() {
+	public CompletableFuture<String> elect() {
+		if (abdicated) {
+			logger.info("Not starting an election, this server has abdicated");
+			return getMaster();
+		}
 		logger.info("Starting elections");
+		long started = clock.nanoTime();
+		
+		// every election has its own term, messages from older elections are ignored
+		long electionTerm = term.incrementAndGet();
+		
+		// remember who was master, back to back elections keep the one from before the first
+		String currentMaster = getCurrentMaster();
+		if (currentMaster != null) {
+			previousMaster = currentMaster;
+		}
+		// unset master while we elect a new one, this election supersedes any that is still waiting
+		unsetMaster(ElectionRole.CANDIDATE, electionTerm, true);
+		try {
+			return elect(electionTerm, started);
+		}
+		catch (RuntimeException e) {
+			// a candidate without a pending election would never start another one, we wait as if a victory is due and try again
+			logger.error("Election in term " + electionTerm + " failed, trying again", e);
+			metrics.electionFinished(TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - started), false);
+			changeRole(ElectionRole.CANDIDATE, electionTerm, ElectionRole.AWAITING_VICTORY);
+			scheduleElection(false);
+			MasterFuture future = new MasterFuture();
+			synchronized(futures) {
+				futures.add(future);
+			}
+			return future;
+		}
+	}
+	
+	private CompletableFuture<String> elect(long electionTerm, long started) {
+		// the scores are fixed for the election, our own is the one we last reported so the others rank us on the same value
+		snapshotScores(electionTerm);
 		
-		// unset the wait thread, we may need to start a new one
-		waitAndElectThread = null;
+		Membership membership = this.membership.get();
+		List<String> higher, lower;
+		// the membership is sorted by name, which is the default ranking
+		if (rankingStrategy == null) {
+			higher = membership.getHigher(this.host);
+			lower = membership.getLower(this.host);
+		}
+		else {
+			higher = new ArrayList<String>();
+			lower = new ArrayList<String>();
+			for (String host : membership.getHosts()) {
+				int comparison = compareRank(host, this.host);
+				// it is ranked higher than this server
+				if (comparison > 0) {
+					higher.add(host);
+				}
+				else if (comparison < 0) {
+					lower.add(host);
+				}
+			}
+		}
 		
-		// unset master while we elect a new one
-		controller.setMaster(null);
+		// both rounds share a single deadline, unresponsive servers can not delay the election beyond it
+		long deadline = clock.currentTimeMillis() + getElectionTimeout();
 		
 		boolean potentialMasterFound = false;
 		boolean amIMaster = true;
-		for (String host : hosts) {
-			int comparison = host.compareTo(this.host);
-			// it is ranked higher than this server
-			if (comparison > 0) {
-				HTTPResponse response = request(host, "/bully/inquiry", newBullyQuery());
+		boolean outdated = false;
+		
+		// ask all the higher ranked servers at once, the first one to respond positively ends the round
+		Broadcast inquiry = new Broadcast("/bully/inquiry", higher, electionTerm);
+		metrics.inquiriesSent(higher.size());
+		try {
+			Answer answer;
+			while (!potentialMasterFound && (answer = inquiry.next(deadline)) != null) {
+				HTTPResponse response = answer.response;
 				// no response from the server, move on to the next
 				if (response == null) {
-					logger.warn("Did not get a response from '" + host + "', it is presumed to be down");
+					logger.warn("Did not get a response from '" + answer.host + "', it is presumed to be down");
 				}
 				else if (response.getCode() == 400) {
 					throw new RuntimeException("Received a 400 from the server");
 				}
 				else if (response.getCode() == 405) {
-					logger.error("Host '" + host + "' claims he is not in this cluster");
+					logger.error("Host '" + answer.host + "' claims he is not in this cluster");
+				}
+				// the server is shutting down, it does not take part in elections anymore
+				else if (response.getCode() == 503) {
+					logger.info("Host '" + answer.host + "' has abdicated");
 				}
 				// we have a new master!
 				// wait for his victory command to properly announce him though
 				else if (response.getCode() >= 200 && response.getCode() < 300) {
-					logger.info("Potential master found: " + host);
+					// the host is in a newer term than we are, our election is outdated
+					BullyQuery reply = readQuery(response);
+					observeScore(reply);
+					if (reply != null && reply.getTerm() > electionTerm) {
+						logger.info("Host '" + answer.host + "' is in term " + reply.getTerm() + ", restarting the election from term " + electionTerm);
+						observeTerm(reply.getTerm());
+						outdated = true;
+						break;
+					}
+					logger.info("Potential master found: " + answer.host);
+					changeRole(ElectionRole.CANDIDATE, electionTerm, ElectionRole.AWAITING_VICTORY);
 					// we need to make sure the master proclaims himself within the timeout
 					// otherwise new elections will be held
 					scheduleElection(false);
 					potentialMasterFound = true;
 				}
 				else {
-					throw new RuntimeException("Received error code " + response.getCode() + " from '" + host + "'");
-				}
-			}
-			// if we haven't found a master, proclaim victory
-			else if (comparison < 0 && !potentialMasterFound) {
-				HTTPResponse response = request(host, "/bully/victory", newBullyQuery());
-				if (response == null) {
-					logger.warn("Did not get a response from '" + host + "', it is presumed to be down");
-				}
-				else if (response.getCode() == 400) {
-					throw new RuntimeException("Received a 400 from the server");
-				}
-				// we fucked up
-				else if (response.getCode() == 409) {
-					logger.error("Received a 409 from another participant indicating one of us has wrong data");
-					amIMaster = false;
+					throw new RuntimeException("Received error code " + response.getCode() + " from '" + answer.host + "'");
 				}
 			}
 		}
+		finally {
+			inquiry.cancel();
+		}
+		
 		MasterFuture future = new MasterFuture();
 		synchronized(futures) {
 			futures.add(future);
 		}
+		
+		// a newer election is going on, run it again with the new term
+		if (outdated || term.get() != electionTerm) {
+			metrics.electionFinished(TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - started), false);
+			scheduleElection(true);
+			return future;
+		}
+		
+		// if we haven't found a master, proclaim victory to all the lower ranked servers at once
+		if (!potentialMasterFound) {
+			Broadcast victory = new Broadcast("/bully/victory", lower, electionTerm);
+			metrics.victoriesSent(lower.size());
+			try {
+				Answer answer;
+				while ((answer = victory.next(deadline)) != null) {
+					HTTPResponse response = answer.response;
+					if (response == null) {
+						logger.warn("Did not get a response from '" + answer.host + "', it is presumed to be down");
+					}
+					else if (response.getCode() == 400) {
+						throw new RuntimeException("Received a 400 from the server");
+					}
+					// we fucked up
+					else if (response.getCode() == 409) {
+						logger.error("Received a 409 from another participant indicating one of us has wrong data");
+						metrics.conflictReceived();
+						amIMaster = false;
+					}
+				}
+			}
+			finally {
+				victory.cancel();
+			}
+		}
 		if (amIMaster && !potentialMasterFound) {
-			controller.setMaster(host);
+			controller.setMaster(host, electionTerm);
 		}
 		else if (!amIMaster && !potentialMasterFound) {
 			logger.error("Failed to become master but no other master has been found");
+			// someone objected, they will start an election of their own, if no victory arrives in time we try again
+			changeRole(ElectionRole.CANDIDATE, electionTerm, ElectionRole.AWAITING_VICTORY);
+			scheduleElection(false);
 		}
+		metrics.electionFinished(TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - started), amIMaster && !potentialMasterFound);
 		return future;
 	}
 
-	private BullyQuery newBullyQuery() {
-		BullyQuery bullyQuery = new BullyQuery(this.host);
-		if (runtimeMXBean != null) {
-			bullyQuery.setUptime(runtimeMXBean.getUptime());
+	/**
+	 * Asks the other servers who the master is and follows it without an election.
+	 * An election is only held if no master is known, if the master turns out to be this server (e.g. after a quick restart) or, unless the master is sticky, if we outrank the master.
+	 */
+	public CompletableFuture<String> join() {
+		logger.info("Joining the cluster");
+		List<String> others = new ArrayList<String>();
+		for (String host : getHosts()) {
+			if (!host.equals(this.host)) {
+				others.add(host);
+			}
+		}
+		String master = null;
+		long masterTerm = 0;
+		boolean fromMaster = false;
+		Broadcast join = new Broadcast("/bully/join", others, term.get());
+		try {
+			long deadline = clock.currentTimeMillis() + getElectionTimeout();
+			Answer answer;
+			while ((answer = join.next(deadline)) != null) {
+				if (answer.response != null && answer.response.getCode() >= 200 && answer.response.getCode() < 300) {
+					BullyQuery reply = readQuery(answer.response);
+					observeScore(reply);
+					if (reply != null && reply.getMaster() != null) {
+						// the newest master wins, within a term the word of the master itself counts most
+						boolean isMaster = answer.host.equals(reply.getMaster());
+						if (master == null || reply.getTerm() > masterTerm || (reply.getTerm() == masterTerm && isMaster && !fromMaster)) {
+							master = reply.getMaster();
+							masterTerm = reply.getTerm();
+							fromMaster = isMaster;
+						}
+						// the master itself has answered, no need to wait for the others
+						if (isMaster) {
+							break;
+						}
+					}
+				}
+			}
+		}
+		finally {
+			join.cancel();
+		}
+		if (master == null) {
+			logger.info("No master found, starting an election");
+			return elect();
+		}
+		else if (master.equals(host)) {
+			logger.info("The cluster still considers this server master, starting an election to confirm");
+			return elect();
+		}
+		else if (!stickyMaster && compareRank(host, master) > 0) {
+			logger.info("Found master '" + master + "' for term " + masterTerm + " but we outrank it, starting an election");
+			observeTerm(masterTerm);
+			return elect();
+		}
+		logger.info("Joining master '" + master + "' for term " + masterTerm);
+		observeTerm(masterTerm);
+		setMaster(master, masterTerm);
+		// we have seen a newer term than the one the master was elected in, it may already be deposed
+		if (!master.equals(getCurrentMaster())) {
+			return elect();
+		}
+		return getMaster();
+	}
+	
+	/**
+	 * Stops this server from becoming master. If it is the master, the mastership is handed over to the highest ranked server that accepts it.
+	 * The followers are told about the new master directly so nobody has to wait for a missed heartbeat. Returns the new master, if any.
+	 */
+	public String abdicate() {
+		abdicated = true;
+		if (!isCurrentMaster()) {
+			return getCurrentMaster();
+		}
+		logger.info("Abdicating");
+		List<String> candidates = new ArrayList<String>();
+		for (String host : getHosts()) {
+			if (!host.equals(this.host)) {
+				candidates.add(host);
+			}
+		}
+		Collections.sort(candidates, new Comparator<String>() {
+			@Override
+			public int compare(String host1, String host2) {
+				return compareRank(host2, host1);
+			}
+		});
+		String successor = null;
+		long successorTerm = 0;
+		long deadline = clock.currentTimeMillis() + getElectionTimeout();
+		// the successor has to be the highest ranked server that is alive, otherwise the next election would move the mastership again
+		// the candidates are asked one at a time, each request only gets the time that remains until the deadline
+		for (String candidate : candidates) {
+			Broadcast handover = new Broadcast("/bully/handover", Arrays.asList(candidate), getMasterTerm());
+			Answer answer = handover.next(deadline);
+			if (answer == null) {
+				// the candidate may still accept after we stop waiting, asking the next one could leave us with two successors
+				handover.cancel();
+				logger.warn("Host '" + candidate + "' did not answer the hand over in time, the followers will hold an election");
+				break;
+			}
+			HTTPResponse response = answer.response;
+			if (response != null && response.getCode() >= 200 && response.getCode() < 300) {
+				BullyQuery reply = readQuery(response);
+				if (reply != null) {
+					observeScore(reply);
+					successor = candidate;
+					successorTerm = reply.getTerm();
+					break;
+				}
+			}
+			logger.info("Host '" + candidate + "' did not accept the hand over (" + (response == null ? "no response" : response.getCode()) + ")");
+		}
+		if (successor == null) {
+			logger.warn("No server accepted the hand over, the followers will hold an election");
+		}
+		else {
+			logger.info("Handed over to '" + successor + "' for term " + successorTerm);
+			observeTerm(successorTerm);
+		}
+		// tell everyone else who the new master is, without a successor they start an election right away
+		BullyQuery announcement = newBullyQuery(successor == null ? term.get() : successorTerm);
+		announcement.setMaster(successor);
+		candidates.remove(successor);
+		Broadcast abdication = new Broadcast("/bully/abdicate", candidates, announcement);
+		try {
+			while (abdication.next(deadline) != null) {
+				// nothing to do with the answers
+			}
+		}
+		finally {
+			abdication.cancel();
+		}
+		if (successor == null) {
+			unsetMaster(ElectionRole.FOLLOWER, term.get(), true);
+		}
+		else {
+			setMaster(successor, successorTerm);
+		}
+		return successor;
+	}
+	
+	/**
+	 * Allows a server that has abdicated to become master again
+	 */
+	public void resume() {
+		abdicated = false;
+	}
+	
+	public boolean isAbdicated() {
+		return abdicated;
+	}
+	
+	/**
+	 * The master handed over its role to us, we take it in a new term. Returns the term or -1 if we could not take over.
+	 */
+	long takeOver() {
+		long newTerm = term.incrementAndGet();
+		snapshotScores(newTerm);
+		setMaster(host, newTerm);
+		return isCurrentMaster() && getMasterTerm() == newTerm ? newTerm : -1;
+	}
+	
+	/**
+	 * The scheduler that runs the work of this client, it is not recreated once the client is closed
+	 */
+	public synchronized BullyScheduler getScheduler() {
+		if (closed) {
+			throw new IllegalStateException("The client has been closed");
+		}
+		if (scheduler == null) {
+			scheduler = new BullyScheduler();
+			ownScheduler = true;
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * Set a scheduler that is shared with other clients, the owner is responsible for closing it
+	 */
+	public synchronized void setScheduler(BullyScheduler scheduler) {
+		if (this.scheduler != null && ownScheduler) {
+			this.scheduler.close();
+		}
+		this.scheduler = scheduler;
+		this.ownScheduler = false;
+	}
+	
+	public void start() {
+		getScheduler().start();
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Stops all scheduled work for this client, the scheduler is only closed if it was created by this client
+	 */
+	@Override
+	public void close() {
+		BullyScheduler current;
+		synchronized(this) {
+			current = this.scheduler;
+		}
+		// hand over the mastership while we can still reach the others, a client that was never started has nothing to hand over
+		if (current != null && current.isStarted() && isCurrentMaster()) {
+			abdicate();
+		}
+		closed = true;
+		cancelElection();
+		stopHeartbeat();
+		unregisterMBean();
+		// a shared store is closed by the client that records it
+		if (historyRecorded) {
+			history.close();
+		}
+		events.close();
+		BullyScheduler scheduler;
+		synchronized(this) {
+			scheduler = ownScheduler ? this.scheduler : null;
+			if (ownScheduler) {
+				this.scheduler = null;
+			}
+		}
+		if (scheduler != null) {
+			scheduler.close();
+		}
+	}
+	
+	private static class Answer {
+		private String host;
+		private HTTPResponse response;
+	}
+	
+	/**
+	 * Sends the same message to a number of hosts in parallel, the answers can be consumed in the order they arrive.
+	 * The requests run on the request executor, the worker that waits for the answers never waits on requests queued behind other waiting workers.
+	 */
+	private class Broadcast {
+		
+		private CompletionService<Answer> completionService = new ExecutorCompletionService<Answer>(getScheduler().getRequestExecutor());
+		private List<Future<Answer>> futures = new ArrayList<Future<Answer>>();
+		private List<String> hosts;
+		private int pending;
+		
+		public Broadcast(String path, List<String> hosts, long term) {
+			this(path, hosts, newBullyQuery(term));
+		}
+		
+		// the message is either a query or an overview
+		public Broadcast(final String path, List<String> hosts, final Object query) {
+			this.hosts = hosts;
+			for (final String host : hosts) {
+				futures.add(completionService.submit(new Callable<Answer>() {
+					@Override
+					public Answer call() throws Exception {
+						Answer answer = new Answer();
+						answer.host = host;
+						answer.response = request(host, path, query);
+						return answer;
+					}
+				}));
+			}
+			pending = hosts.size();
+		}
+		
+		/**
+		 * Returns the next answer or null if all the hosts have answered or the deadline has passed
+		 */
+		public Answer next(long deadline) {
+			while (pending > 0) {
+				long remaining = deadline - clock.currentTimeMillis();
+				if (remaining <= 0) {
+					logUnanswered();
+					return null;
+				}
+				Future<Answer> future;
+				try {
+					future = completionService.poll(remaining, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+				if (future == null) {
+					logUnanswered();
+					return null;
+				}
+				pending--;
+				try {
+					return future.get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			return null;
 		}
-		if (operatingSystemMXBean != null) {
-			bullyQuery.setLoad(operatingSystemMXBean.getSystemLoadAverage() / operatingSystemMXBean.getAvailableProcessors());
+		
+		private void logUnanswered() {
+			for (int i = 0; i < futures.size(); i++) {
+				if (!futures.get(i).isDone()) {
+					logger.warn("Did not get a response from '" + hosts.get(i) + "' within the election timeout, it is presumed to be down");
+				}
+			}
 		}
-		if (threadMXBean != null) {
-			bullyQuery.setCurrentThreadCount(threadMXBean.getThreadCount());
+		
+		public void cancel() {
+			for (Future<Answer> future : futures) {
+				future.cancel(true);
+			}
 		}
-		if (memoryMXBean != null) {
-			MemoryUsage heapMemoryUsage = memoryMXBean.getHeapMemoryUsage();
-			bullyQuery.setHeapUsed(heapMemoryUsage.getUsed());
-			MemoryUsage nonHeapMemoryUsage = memoryMXBean.getNonHeapMemoryUsage();
-			bullyQuery.setNonHeapUsed(nonHeapMemoryUsage.getUsed());
+	}
+	
+	private BullyQuery newBullyQuery(long term) {
+		BullyQuery query = newBullyQuery();
+		query.setTerm(term);
+		return query;
+	}
+	
+	/**
+	 * The query this server sends on a heartbeat, it is built from the last snapshot of the sampler
+	 */
+	public BullyQuery newBullyQuery() {
+		BullyQuery bullyQuery = new BullyQuery(this.host);
+		bullyQuery.setCreated(new Date(clock.currentTimeMillis()));
+		bullyQuery.setTerm(term.get());
+		MetricsSampler sampler = getSampler();
+		MetricsSnapshot snapshot = sampler.getSnapshot();
+		// the uptime is the only value we can bring up to date for free, as long as the snapshot was taken on our clock
+		bullyQuery.setUptime(snapshot.getUptime() + (sampler.getClock() == clock ? Math.max(0, clock.currentTimeMillis() - snapshot.getTimestamp()) : 0));
+		bullyQuery.setLoad(snapshot.getLoad());
+		bullyQuery.setCurrentThreadCount(snapshot.getThreadCount());
+		bullyQuery.setHeapUsed(snapshot.getHeapUsed());
+		bullyQuery.setNonHeapUsed(snapshot.getNonHeapUsed());
+		if (rankingStrategy instanceof ReportedScoreRanking) {
+			double score = ((ReportedScoreRanking) rankingStrategy).getOwnScore();
+			if (!Double.isNaN(score)) {
+				bullyQuery.setScore(score);
+			}
 		}
 		return bullyQuery;
 	}
 	
+	/**
+	 * A query that goes in the history, it also has the metrics of the providers
+	 */
+	BullyQuery newSample() {
+		// outside of an election the master we follow is the one that keeps its bonus
+		if (rankingStrategy instanceof ReportedScoreRanking) {
+			String master = getCurrentMaster();
+			((ReportedScoreRanking) rankingStrategy).determineOwnScore(master == null ? previousMaster : master);
+		}
+		BullyQuery sample = newBullyQuery();
+		sample.setMetrics(getSampler().getSnapshot().getMetrics());
+		return sample;
+	}
+	
+	public synchronized MetricsSampler getSampler() {
+		if (sampler == null) {
+			sampler = MetricsSampler.getShared();
+		}
+		return sampler;
+	}
+	
+	/**
+	 * Use a sampler with other providers or another interval, the sampler should be started by its owner
+	 */
+	public synchronized void setSampler(MetricsSampler sampler) {
+		this.sampler = sampler;
+	}
+	
 	void startHeartbeat() {
-		if (heartBeat == null) {
-			synchronized(this) {
-				if (heartBeat == null) {
-					heartBeat = new Thread(new Runnable() {
-						@SuppressWarnings("unchecked")
-						@Override
-						public void run() {
-							while (!Thread.interrupted()) {
-								try {
-									Thread.sleep(heartBeatInterval);
-								}
-								catch (InterruptedException e1) {
-									break;
-								}
-								// only poll _other_ servers
-								if (currentMaster != null && !currentMaster.equals(host)) {
-									try {
-										HTTPResponse response = request(currentMaster, "/bully/alive", newBullyQuery());
-										if (response.getCode() >= 200 && response.getCode() < 300) {
-											logger.debug("Heartbeat to '" + currentMaster + "' is ok");
-											XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(BullyQueryOverview.class), Charset.defaultCharset());
-											ComplexContent unmarshal = binding.unmarshal(IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable()), new Window[0]);
-											overview = ((BeanInstance<BullyQueryOverview>) unmarshal).getUnwrapped();
-										}
-									}
-									// master is having issues
-									catch (Exception e) {
-										logger.warn("Master '" + currentMaster + "' failed to respond to heartbeat, starting new election");
-										scheduleElection(true);
-									}
+		if (!closed && heartBeat.get() == null) {
+			Runnable runnable = new Runnable() {
+				@Override
+				public void run() {
+					String currentMaster = state.get().getMaster();
+					if (currentMaster != null && heartBeatMode == HeartBeatMode.GOSSIP) {
+						gossip(currentMaster);
+					}
+					// only poll _other_ servers
+					else if (currentMaster != null && !currentMaster.equals(host)) {
+						try {
+							// if we do not record the history, nobody needs our metrics either
+							BullyQuery query = historyRecorded ? newSample() : newBullyQuery();
+							// only ask for the entries we don't have yet
+							query.setSince(getReplicatedSequence(currentMaster));
+							query.setMembershipVersion(membership.get().getVersion());
+							if (leaseDuration > 0) {
+								query.setLease(leaseDuration);
+							}
+							HTTPResponse response;
+							long sent = clock.nanoTime();
+							try {
+								response = request(currentMaster, "/bully/alive", query);
+							}
+							finally {
+								// whatever the outcome, the master may have received the grant so we have to honour it
+								if (query.getLease() != null) {
+									grantLease(currentMaster, query.getLease());
 								}
-								// push a history entry for ourselves so everyone knows how we are doing
-								else {
-									push(newBullyQuery());
+							}
+							if (response != null && response.getCode() >= 200 && response.getCode() < 300) {
+								logger.debug("Heartbeat to '" + currentMaster + "' is ok");
+								metrics.heartbeat(currentMaster, TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - sent));
+								getFailureDetector().heartbeat(currentMaster, clock.currentTimeMillis());
+								BullyQueryOverview overview = readOverview(response);
+								if (overview != null) {
+									replicate(currentMaster, overview);
 								}
 							}
+							else {
+								metrics.heartbeatFailed(currentMaster);
+								suspect(currentMaster);
+							}
+						}
+						// master is having issues
+						catch (Exception e) {
+							logger.debug("Master '" + currentMaster + "' failed to respond to heartbeat", e);
+							metrics.heartbeatFailed(currentMaster);
+							suspect(currentMaster);
 						}
-					});
-					heartBeat.start();
+					}
+					// push a history entry for ourselves so everyone knows how we are doing
+					else if (currentMaster != null) {
+						push(newSample());
+						// another server may be better suited to be master
+						if (rankingStrategy instanceof HandOffStrategy && ((HandOffStrategy) rankingStrategy).shouldHandOff(host, getHosts())) {
+							logger.info("Handing off mastership, starting a new election");
+							scheduleElection(true);
+						}
+					}
 				}
+			};
+			BullyScheduler.Task task = heartBeatAligned
+				? getScheduler().scheduleAligned(runnable, heartBeatInterval, clock)
+				: getScheduler().scheduleWithFixedDelay(runnable, heartBeatInterval, heartBeatInterval);
+			if (!heartBeat.compareAndSet(null, task)) {
+				task.cancel();
+			}
+			// the master may have been unset while we were starting, in which case the stop may have come too early
+			else if (state.get().getMaster() == null) {
+				stopHeartbeat();
 			}
 		}
 	}
 	
+	/**
+	 * A gossip round: exchange samples with a few random peers, the master is suspected if its newest sample is older than it takes a sample to spread
+	 */
+	private void gossip(String currentMaster) {
+		BullyGossip gossip = getGossip();
+		gossip.prune();
+		gossip.update(newSample());
+		Broadcast broadcast = new Broadcast("/bully/gossip", gossip.getTargets(gossipFanout), gossip.digest(gossipPayload));
+		try {
+			// a round should not run into the next one
+			long deadline = clock.currentTimeMillis() + Math.min(heartBeatInterval, getElectionTimeout());
+			Answer answer;
+			while ((answer = broadcast.next(deadline)) != null) {
+				if (answer.response != null && answer.response.getCode() >= 200 && answer.response.getCode() < 300) {
+					BullyQueryOverview overview = readOverview(answer.response);
+					if (overview != null) {
+						gossip.merge(overview, answer.host);
+					}
+				}
+				else if (answer.response != null) {
+					logger.debug("Host '" + answer.host + "' did not accept gossip: " + answer.response.getCode());
+				}
+			}
+		}
+		catch (Exception e) {
+			logger.debug("Gossip round failed", e);
+		}
+		finally {
+			broadcast.cancel();
+		}
+		if (currentMaster.equals(host)) {
+			// another server may be better suited to be master
+			if (rankingStrategy instanceof HandOffStrategy && ((HandOffStrategy) rankingStrategy).shouldHandOff(host, getHosts())) {
+				logger.info("Handing off mastership, starting a new election");
+				scheduleElection(true);
+			}
+		}
+		else if (gossip.isMasterStale(currentMaster, heartBeatInterval)) {
+			// the master is suspected for as long as it stays stale, that counts as a single failed heartbeat
+			if (!currentMaster.equals(gossipSuspect)) {
+				gossipSuspect = currentMaster;
+				metrics.heartbeatFailed(currentMaster);
+			}
+			suspect(currentMaster);
+		}
+		else {
+			gossipSuspect = null;
+		}
+	}
+	
+	/**
+	 * A peer sent us its samples, we answer with ours
+	 */
+	BullyQueryOverview receiveGossip(BullyQueryOverview overview) {
+		BullyGossip gossip = getGossip();
+		// the message does not say who sent it
+		gossip.merge(overview, null);
+		return gossip.digest(gossipPayload);
+	}
+	
+	private synchronized BullyGossip getGossip() {
+		if (gossip == null) {
+			gossip = new BullyGossip(this);
+		}
+		return gossip;
+	}
+	
+	/**
+	 * The master missed a heartbeat, only start an election if the failure detector no longer considers it available
+	 */
+	private void suspect(String master) {
+		FailureDetector failureDetector = getFailureDetector();
+		long now = clock.currentTimeMillis();
+		if (failureDetector.isAvailable(master, now)) {
+			logger.info("Master '" + master + "' missed a heartbeat but is not suspected yet (suspicion: " + failureDetector.getSuspicion(master, now) + ")");
+		}
+		else {
+			logger.warn("Master '" + master + "' failed to respond to heartbeat (suspicion: " + failureDetector.getSuspicion(master, now) + "), starting new election");
+			failureDetector.remove(master);
+			scheduleElection(true);
+		}
+	}
+	
+	public synchronized FailureDetector getFailureDetector() {
+		if (failureDetector == null) {
+			failureDetector = new PhiAccrualFailureDetector(heartBeatInterval);
+		}
+		return failureDetector;
+	}
+
+	public synchronized void setFailureDetector(FailureDetector failureDetector) {
+		this.failureDetector = failureDetector;
+	}
+
 	public long getHeartBeatInterval() {
 		return heartBeatInterval;
 	}
 
 	public void setHeartBeatInterval(long heartBeatInterval) {
 		this.heartBeatInterval = heartBeatInterval;
+		// the default history capacity depends on the interval
+		if (historyCapacity == null && history.getCapacity() != getHistoryCapacity()) {
+			try {
+				rebuildHistory();
+			}
+			catch (IOException e) {
+				logger.error("Could not resize the history", e);
+			}
+			catch (IllegalStateException e) {
+				logger.warn("Keeping the history capacity at " + history.getCapacity() + ": " + e.getMessage());
+			}
+		}
 	}
 
-	void stopHeartbeat() {
-		if (heartBeat != null) {
-			synchronized(this) {
-				if (heartBeat != null) {
-					heartBeat.interrupt();
-					heartBeat = null;
-				}
+	public boolean isHeartBeatAligned() {
+		return heartBeatAligned;
+	}
+
+	/**
+	 * Send the heartbeats at multiples of the interval, clients with the same interval then send at the same moment which allows a transport to batch them
+	 */
+	public void setHeartBeatAligned(boolean heartBeatAligned) {
+		this.heartBeatAligned = heartBeatAligned;
+	}
+
+	public HeartBeatMode getHeartBeatMode() {
+		return heartBeatMode;
+	}
+
+	/**
+	 * The master mode (default) has every follower check in with the master, the gossip mode spreads the samples between the servers themselves.
+	 * All servers in a cluster should use the same mode. Leases are only granted in the master mode.
+	 */
+	public void setHeartBeatMode(HeartBeatMode heartBeatMode) {
+		this.heartBeatMode = heartBeatMode == null ? HeartBeatMode.MASTER : heartBeatMode;
+	}
+
+	public int getGossipFanout() {
+		return gossipFanout;
+	}
+
+	public void setGossipFanout(int gossipFanout) {
+		this.gossipFanout = Math.max(1, gossipFanout);
+	}
+
+	public int getGossipPayload() {
+		return gossipPayload;
+	}
+
+	/**
+	 * The maximum amount of samples in a single gossip message, our own sample is always sent on top of this
+	 */
+	public void setGossipPayload(int gossipPayload) {
+		this.gossipPayload = Math.max(0, gossipPayload);
+	}
+
+	public boolean isStickyMaster() {
+		return stickyMaster;
+	}
+
+	/**
+	 * A sticky master is not pre-empted by a higher ranked server that joins, it remains master until it fails or hands off
+	 */
+	public void setStickyMaster(boolean stickyMaster) {
+		this.stickyMaster = stickyMaster;
+	}
+
+	public RankingStrategy getRankingStrategy() {
+		return rankingStrategy;
+	}
+
+	/**
+	 * By default the hosts are ranked by name
+	 */
+	public void setRankingStrategy(RankingStrategy rankingStrategy) {
+		this.rankingStrategy = rankingStrategy;
+	}
+
+	/**
+	 * Positive if the first host outranks the second
+	 */
+	int compareRank(String host1, String host2) {
+		return rankingStrategy == null ? host1.compareTo(host2) : rankingStrategy.compare(host1, host2);
+	}
+
+	/**
+	 * We entered a new term, the ranking fixes the scores it compares on
+	 */
+	private void snapshotScores(long term) {
+		if (rankingStrategy instanceof ReportedScoreRanking) {
+			((ReportedScoreRanking) rankingStrategy).snapshot(term);
+		}
+	}
+
+	/**
+	 * Passes the score another server reported in a message on to the ranking
+	 */
+	void observeScore(BullyQuery query) {
+		if (query != null && query.getScore() != null && query.getHost() != null && !query.getHost().equals(host) && rankingStrategy instanceof ReportedScoreRanking) {
+			long timestamp = query.getCreated() == null ? clock.currentTimeMillis() : query.getCreated().getTime();
+			((ReportedScoreRanking) rankingStrategy).setReportedScore(query.getHost(), query.getScore(), timestamp);
+		}
+	}
+
+	/**
+	 * Whether we are the master and a majority of the cluster (including ourselves) has granted us a lease that is still valid.
+	 * As long as this is true, no other server can become master so this can be checked before doing master-only work without going over the network.
+	 */
+	public boolean hasValidLease() {
+		if (leaseDuration <= 0 || !isCurrentMaster()) {
+			return false;
+		}
+		long now = clock.nanoTime();
+		int valid = 1;
+		for (Long expiry : leases.values()) {
+			if (expiry - now > 0) {
+				valid++;
 			}
 		}
+		return valid > membership.get().size() / 2;
+	}
+	
+	/**
+	 * A follower granted us a lease of the given duration (ms), we count it from now which is before the follower starts counting
+	 */
+	void registerLease(String follower, long duration) {
+		if (isCurrentMaster() && duration > 0) {
+			long margin = leaseDriftMargin == null ? duration / 10 : leaseDriftMargin;
+			leases.put(follower, clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration - margin));
+		}
+	}
+	
+	/**
+	 * The master we granted a lease to no longer needs it
+	 */
+	synchronized void releaseLease(String master) {
+		if (master.equals(leaseGrantedTo)) {
+			leaseGrantedTo = null;
+		}
+	}
+	
+	private synchronized void grantLease(String master, long duration) {
+		leaseGrantedTo = master;
+		leaseGrantedUntil = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+	}
+	
+	/**
+	 * The time (ms) that the lease we granted to the given server blocks others from becoming master, if the server is the one we granted it to, it is not blocked
+	 */
+	synchronized long getGrantedLeaseRemaining(String candidate) {
+		if (leaseGrantedTo == null || leaseGrantedTo.equals(candidate)) {
+			return 0;
+		}
+		return getGrantedLeaseRemaining();
+	}
+	
+	private synchronized long getGrantedLeaseRemaining() {
+		if (leaseGrantedTo == null) {
+			return 0;
+		}
+		long remaining = TimeUnit.NANOSECONDS.toMillis(leaseGrantedUntil - clock.nanoTime());
+		if (remaining <= 0) {
+			leaseGrantedTo = null;
+			return 0;
+		}
+		return remaining;
+	}
+	
+	public long getLeaseDuration() {
+		return leaseDuration;
+	}
+
+	/**
+	 * The duration (ms) of the leases followers grant the master, this should be larger than the heartbeat interval for the lease to be continuous
+	 */
+	public void setLeaseDuration(long leaseDuration) {
+		this.leaseDuration = leaseDuration;
+	}
+
+	public Long getLeaseDriftMargin() {
+		return leaseDriftMargin;
+	}
+
+	public void setLeaseDriftMargin(Long leaseDriftMargin) {
+		this.leaseDriftMargin = leaseDriftMargin;
+	}
+
+	public long getElectionTimeout() {
+		return electionTimeout == null ? victoryTimeout : electionTimeout;
+	}
+
+	public void setElectionTimeout(Long electionTimeout) {
+		this.electionTimeout = electionTimeout;
+	}
+
+	void stopHeartbeat() {
+		BullyScheduler.Task task = heartBeat.getAndSet(null);
+		if (task != null) {
+			task.cancel();
+		}
 	}
 	
 	public void scheduleElection(boolean immediate) {
-		if (waitAndElectThread == null || !waitAndElectThread.isAlive()) {
-			synchronized(this) {
-				if (waitAndElectThread == null || !waitAndElectThread.isAlive()) {
-					waitAndElect = new WaitAndElect(this, immediate ? 0 : victoryTimeout);
-					waitAndElectThread = new Thread(waitAndElect);
-					waitAndElectThread.start();
+		if (closed) {
+			return;
+		}
+		// we can not take part in an election as long as the lease we granted to the master is valid
+		long timeout = Math.max(immediate ? 0 : victoryTimeout, getGrantedLeaseRemaining());
+		while (true) {
+			ElectionState current = state.get();
+			WaitAndElect pending = current.getPending();
+			if (pending != null && !pending.isFinished()) {
+				// an immediate election takes precedence over one that is still waiting for a victory
+				if (!immediate || pending.getTimeout() <= timeout || !pending.cancel()) {
+					return;
+				}
+			}
+			WaitAndElect election = new WaitAndElect(this, timeout);
+			// only the thread that gets its election into the state schedules it, concurrent calls can not lead to double elections
+			if (update(current, current.withPending(election))) {
+				if (timeout > 0 && immediate) {
+					logger.info("Delaying election by " + timeout + "ms, a lease granted to another master is still valid");
 				}
+				election.setTask(getScheduler().schedule(election, timeout));
+				return;
 			}
 		}
 	}
 	
 	boolean cancelElection() {
-		if (waitAndElectThread != null && waitAndElectThread.isAlive() && !waitAndElect.isElecting()) {
-			synchronized(this) {
-				if (waitAndElectThread != null && waitAndElectThread.isAlive() && !waitAndElect.isElecting()) {
-					waitAndElectThread.interrupt();
-					waitAndElectThread = null;
-					// we succeeded in canceling if the election has not started yet
-					return !waitAndElect.isElecting();
-				}
+		while (true) {
+			ElectionState current = state.get();
+			WaitAndElect pending = current.getPending();
+			if (pending == null || pending.isFinished()) {
+				return true;
+			}
+			// we succeeded in canceling if the election has not started yet
+			if (!pending.cancel()) {
+				return false;
+			}
+			if (update(current, current.withPending(null))) {
+				return true;
 			}
 		}
-		return true;
 	}
 	
-	private HTTPResponse request(String host, String path, BullyQuery query) {
+	private HTTPResponse request(String host, String path, Object query) {
 		String fullPath = this.rootPath + (path.startsWith("/") ? path.substring(1) : path);
-		// use the default charset, all servers should be configured the same
-		XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(BullyQuery.class), Charset.defaultCharset());
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		boolean binary = this.binary && binaryPeers.contains(host);
+		HTTPResponse response = execute(host, fullPath, query, binary);
+		if (response != null && this.binary) {
+			if (BullyBinaryCodec.CONTENT_TYPE.equals(getContentType(response))) {
+				binaryPeers.add(host);
+			}
+			// the peer may have been downgraded, try again in XML
+			else if (binary && (response.getCode() == 400 || response.getCode() == 415)) {
+				logger.info("Host '" + host + "' no longer supports the binary format");
+				binaryPeers.remove(host);
+				response = execute(host, fullPath, query, false);
+			}
+		}
+		return response;
+	}
+	
+	private HTTPResponse execute(String host, String fullPath, Object query, boolean binary) {
+		byte [] content;
 		try {
-			binding.marshal(output, new BeanInstance<BullyQuery>(query));
+			if (query instanceof BullyQueryOverview) {
+				content = binary ? binaryCodec.marshal((BullyQueryOverview) query) : codec.marshal((BullyQueryOverview) query);
+			}
+			else {
+				content = binary ? binaryCodec.marshal((BullyQuery) query) : codec.marshal((BullyQuery) query);
+			}
 		}
 		catch (IOException e) {
 			throw new RuntimeException("This should not happen!", e);
 		}
-		byte [] content = output.toByteArray();
 		try {
-			return client.execute(new DefaultHTTPRequest("POST", fullPath, 
+			return transport.execute(host, new DefaultHTTPRequest("POST", fullPath, 
 				new PlainMimeContentPart(null, IOUtils.wrap(content, true), 
 					new MimeHeader("Content-Length", "" + content.length),
-					new MimeHeader("Content-Type", "application/xml"),
+					new MimeHeader("Content-Type", binary ? binaryCodec.getContentType() : codec.getContentType()),
+					// let the other party know that we understand the binary format
+					new MimeHeader("Accept", this.binary ? binaryCodec.getContentType() + ", " + codec.getContentType() : codec.getContentType()),
 					new MimeHeader("Host", host)
-				)), 
-				principal,
-				secure, 
-				false
+				))
 			);
 		}
 		catch (IOException e) {
@@ -453,45 +1636,335 @@ public class BullyClient {
 		}
 	}
 	
+	private static String getContentType(HTTPResponse response) {
+		Header header = response.getContent() == null ? null : MimeUtils.getHeader("Content-Type", response.getContent().getHeaders());
+		if (header == null || header.getValue() == null) {
+			return null;
+		}
+		// strip any parameters like the charset
+		int index = header.getValue().indexOf(';');
+		return (index >= 0 ? header.getValue().substring(0, index) : header.getValue()).trim();
+	}
+	
+	/**
+	 * Reads the query a peer sent back, older peers do not send anything back
+	 */
+	private BullyQuery readQuery(HTTPResponse response) {
+		if (!(response.getContent() instanceof ContentPart)) {
+			return null;
+		}
+		Header header = MimeUtils.getHeader("Content-Length", response.getContent().getHeaders());
+		if (header != null && "0".equals(header.getValue().trim())) {
+			return null;
+		}
+		try {
+			InputStream input = IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable());
+			return BullyBinaryCodec.CONTENT_TYPE.equals(getContentType(response)) ? binaryCodec.unmarshalQuery(input) : codec.unmarshalQuery(input);
+		}
+		catch (Exception e) {
+			logger.debug("Could not read reply", e);
+			return null;
+		}
+	}
+	
+	private BullyQueryOverview readOverview(HTTPResponse response) throws IOException, ParseException {
+		if (!(response.getContent() instanceof ContentPart)) {
+			return null;
+		}
+		InputStream input = IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable());
+		return BullyBinaryCodec.CONTENT_TYPE.equals(getContentType(response)) ? binaryCodec.unmarshalOverview(input) : codec.unmarshalOverview(input);
+	}
+	
+	public BullyTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Replace the transport used to reach the other servers, by default they are contacted over HTTP with the client given at construction
+	 */
+	public void setTransport(BullyTransport transport) {
+		this.transport = transport;
+	}
+
+	public BullyClock getClock() {
+		return clock;
+	}
+
+	public void setClock(BullyClock clock) {
+		this.clock = clock;
+		history.setClock(clock);
+		// durations that are being measured can not span two clocks
+		metrics.clockChanged();
+	}
+	
+	public BullyMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Exposes the metrics of this client in the platform mbean server, the registration is removed when the client is closed
+	 */
+	public synchronized ObjectName registerMBean() throws JMException {
+		if (objectName == null) {
+			ObjectName name = new ObjectName("be.nabu.utils.bully:type=BullyClient,host=" + ObjectName.quote(host));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			objectName = name;
+		}
+		return objectName;
+	}
+	
+	public synchronized void unregisterMBean() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+			catch (JMException e) {
+				logger.warn("Could not unregister mbean: " + objectName, e);
+			}
+			objectName = null;
+		}
+	}
+	
+	public int getHistorySize() {
+		return history.size();
+	}
+
+	BullyCodec getCodec() {
+		return codec;
+	}
+	
+	BullyBinaryCodec getBinaryCodec() {
+		return binaryCodec;
+	}
+	
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
 	List<BullyQuery> getHistory(String host) {
-		List<BullyQuery> list = queries.get(host);
-		return list == null ? null : new ArrayList<BullyQuery>(list);
+		return history.getHistory(host, 0);
 	}
 	
 	public BullyQueryOverview getHistory() {
-		// if there is no master or we are not the master, simply send back the overview we got from the master
-		if (currentMaster == null || !currentMaster.equals(host)) {
+		return getHistory(0);
+	}
+	
+	/**
+	 * Builds the history from the local store, if we are not the master this is the copy we replicated from the master.
+	 * If a since is given, only newer entries are sent back.
+	 */
+	public BullyQueryOverview getHistory(long since) {
+		long current = history.getSequence();
+		// the client that records the history sends it
+		if (!historyRecorded) {
+			BullyQueryOverview overview = new BullyQueryOverview();
+			overview.setTerm(term.get());
+			overview.setSequence(current);
+			overview.setFull(false);
 			return overview;
 		}
-		// otherwise build it
+		// the requester has seen a newer sequence than we have ever assigned, it must have been replicating from someone else
+		if (since > current) {
+			since = 0;
+		}
 		BullyQueryOverview overview = new BullyQueryOverview();
+		overview.setTerm(term.get());
+		overview.setSequence(current);
+		overview.setFull(since <= 0);
 		overview.setLists(new ArrayList<BullyQueryList>());
-		for (String host : hosts) {
-			List<BullyQuery> history = getHistory(host);
-			if (history != null) {
+		for (String host : getHosts()) {
+			List<BullyQuery> queries = history.getHistory(host, since);
+			if (queries != null && (since <= 0 || !queries.isEmpty())) {
 				BullyQueryList list = new BullyQueryList();
 				list.setHost(host);
-				list.setQueries(history);
+				list.setQueries(queries);
 				overview.getLists().add(list);
 			}
 		}
 		return overview;
 	}
 	
-	void push(BullyQuery query) {
-		if (!queries.containsKey(query.getHost())) {
-			synchronized(queries) {
-				if (!queries.containsKey(query.getHost())) {
-					queries.put(query.getHost(), new ArrayList<BullyQuery>());
+	/**
+	 * The history of the given hosts (or all of them if null) within the time range (in ms, the end is exclusive)
+	 */
+	public BullyQueryOverview getHistory(List<String> hosts, long from, long to) {
+		BullyQueryOverview overview = new BullyQueryOverview();
+		overview.setTerm(term.get());
+		overview.setSequence(history.getSequence());
+		overview.setFull(true);
+		overview.setLists(new ArrayList<BullyQueryList>());
+		for (String host : hosts == null ? getHosts() : hosts) {
+			HostHistory hostHistory = history.findHostHistory(host);
+			if (hostHistory != null) {
+				BullyQueryList list = new BullyQueryList();
+				list.setHost(host);
+				list.setQueries(hostHistory.snapshot(from, to));
+				overview.getLists().add(list);
+			}
+		}
+		return overview;
+	}
+	
+	/**
+	 * Aggregates the history without copying it, see {@link HistoryQuery}
+	 */
+	public List<Series> aggregate(HistoryQuery query) {
+		return query.execute(history);
+	}
+	
+	private synchronized long getReplicatedSequence(String master) {
+		return master.equals(replicatedFrom) ? replicatedSequence : 0;
+	}
+	
+	/**
+	 * Merge the entries we received from the master into our local copy.
+	 * A full overview is merged like any other: we only take the entries that are newer than the ones we have, what we already have is kept.
+	 */
+	void replicate(String master, BullyQueryOverview overview) {
+		observeTerm(overview.getTerm());
+		if (overview.getMembershipVersion() != null && overview.getMembers() != null) {
+			adoptMembership(overview.getMembershipVersion(), overview.getMembers());
+		}
+		if (overview.getLists() != null && historyRecorded) {
+			for (BullyQueryList received : overview.getLists()) {
+				if (received.getHost() != null && received.getQueries() != null) {
+					for (BullyQuery query : received.getQueries()) {
+						// the host is not always repeated in the entries
+						query.setHost(received.getHost());
+						if (history.replicate(query)) {
+							observeScore(query);
+							events.publish(StreamEvent.SAMPLE, query);
+						}
+					}
 				}
 			}
 		}
-		List<BullyQuery> list = queries.get(query.getHost());
-		synchronized(list) {
-			if (list.size() > historySize) {
-				list.remove(0);
+		history.advanceSequence(overview.getSequence());
+		synchronized(this) {
+			replicatedFrom = master;
+			replicatedSequence = overview.getSequence();
+		}
+	}
+	
+	void push(BullyQuery query) {
+		observeScore(query);
+		if (historyRecorded) {
+			history.push(query);
+		}
+		events.publish(StreamEvent.SAMPLE, query);
+	}
+	
+	public HistoryStore getHistoryStore() {
+		return history;
+	}
+	
+	/**
+	 * Serve the history of the given store without recording or replicating anything ourselves, the store is kept up to date by the client it belongs to.
+	 * This is used by clients that run on the same server for the same hosts (like the groups) so the history is only kept, sent and replicated once.
+	 * This can not be changed while the heartbeat is running.
+	 */
+	public synchronized void shareHistory(HistoryStore history) {
+		if (heartBeat.get() != null) {
+			throw new IllegalStateException("The history can not be changed while the heartbeat is running");
+		}
+		HistoryStore previous = this.history;
+		this.history = history;
+		this.historyRecorded = false;
+		if (previous != history) {
+			previous.close();
+		}
+	}
+	
+	/**
+	 * Whether this client records (and replicates) the history in its store, false if it shares the store of another client
+	 */
+	public boolean isHistoryRecorded() {
+		return historyRecorded;
+	}
+	
+	/**
+	 * Takes over the recording of a shared store, e.g. because the client that recorded it is going away
+	 */
+	public void setHistoryRecorded(boolean historyRecorded) {
+		this.historyRecorded = historyRecorded;
+	}
+	
+	/**
+	 * Keep the history in memory mapped files in the given directory so it survives a restart, any history that is already there is loaded.
+	 * Followers persist what they replicate so a new master can serve the history right away.
+	 * This can not be changed while the heartbeat is running, the entries we already have are copied into the new directory.
+	 */
+	public void setHistoryDirectory(File directory) throws IOException {
+		this.historyDirectory = directory;
+		rebuildHistory();
+	}
+	
+	public File getHistoryDirectory() {
+		return historyDirectory;
+	}
+	
+	public int getHistoryCapacity() {
+		return historyCapacity == null ? (int) Math.max(1, (60*60*1000) / heartBeatInterval) : historyCapacity;
+	}
+	
+	/**
+	 * The amount of raw entries kept per host, older entries only live on in the rollups.
+	 * This can not be changed while the heartbeat is running, the most recent entries we already have are kept.
+	 */
+	public void setHistoryCapacity(int historyCapacity) throws IOException {
+		this.historyCapacity = historyCapacity;
+		rebuildHistory();
+	}
+	
+	/**
+	 * The amount of minute and hour rollups kept per host, the memory used per host is fixed by these and the capacity regardless of how long the cluster runs
+	 */
+	public void setHistoryRollups(int minutes, int hours) throws IOException {
+		this.historyMinutes = minutes;
+		this.historyHours = hours;
+		rebuildHistory();
+	}
+	
+	public int getHistoryMinutes() {
+		return historyMinutes;
+	}
+	
+	public int getHistoryHours() {
+		return historyHours;
+	}
+	
+	/**
+	 * Replaces the history store with one that has the current settings. If the directory stays the same, everything is reloaded from it, otherwise only the raw entries are carried over and the rollups start over.
+	 * The heartbeats (and the servers that check in with us) write to the store, so it is only replaced while the heartbeat is not running.
+	 */
+	private synchronized void rebuildHistory() throws IOException {
+		if (heartBeat.get() != null) {
+			throw new IllegalStateException("The history can not be changed while the heartbeat is running");
+		}
+		HistoryStore previous = history;
+		HistoryStore next;
+		// the previous store has to let go of its files before they are reopened, the new store loads them again
+		if (historyDirectory != null && historyDirectory.equals(previous.getDirectory())) {
+			previous.close();
+			next = new HistoryStore(getHistoryCapacity(), historyMinutes, historyHours, historyDirectory);
+		}
+		else {
+			next = new HistoryStore(getHistoryCapacity(), historyMinutes, historyHours, historyDirectory);
+			for (HostHistory host : previous.getHostHistories()) {
+				List<BullyQuery> entries = previous.getHistory(host.getHost(), 0);
+				// if the new store is smaller, only the most recent entries fit
+				for (int i = Math.max(0, entries.size() - next.getCapacity()); i < entries.size(); i++) {
+					next.replicate(entries.get(i));
+				}
 			}
-			list.add(query);
+			next.advanceSequence(previous.getSequence());
+			previous.close();
 		}
+		next.setClock(clock);
+		history = next;
 	}
 }
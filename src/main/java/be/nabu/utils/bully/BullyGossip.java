@@ -0,0 +1,233 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Spreads the latest sample of every server by exchanging it with a few random peers per round (push-pull).
+ * Every sample is passed on a limited amount of times after it changed, like the dissemination in SWIM, and a message never carries more than a fixed amount of samples.
+ * A newer sample of the master counts as a heartbeat of the master, so the followers do not have to contact it directly.
+ * A sample takes a logarithmic amount of rounds to reach everyone, the master is only suspected once its newest sample is older (on our clock) than that.
+ */
+class BullyGossip {
+
+	private BullyClient client;
+	private Random random = new Random();
+	// the newest sample we know per host
+	private ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// the master and when (on our clock) we started following it
+	private String lastMaster;
+	private long lastMasterSeen;
+
+	BullyGossip(BullyClient client) {
+		this.client = client;
+	}
+
+	private static class Entry {
+		private BullyQuery sample;
+		// when (on our clock) we received this sample
+		private long received;
+		// how many times we have passed on this sample, guarded by the gossip
+		private int sent;
+
+		Entry(BullyQuery sample, long received) {
+			this.sample = sample;
+			this.received = received;
+		}
+
+		long getCreated() {
+			return sample.getCreated() == null ? 0 : sample.getCreated().getTime();
+		}
+	}
+
+	/**
+	 * Picks the peers for this round at random, ourselves excluded
+	 */
+	List<String> getTargets(int fanout) {
+		List<String> peers = new ArrayList<String>(client.getHosts());
+		peers.remove(client.getHost());
+		Collections.shuffle(peers, random);
+		return peers.size() > fanout ? peers.subList(0, fanout) : peers;
+	}
+
+	/**
+	 * Builds a message with our own sample and the samples that have been passed on the least, it also carries the membership version and our term.
+	 * The members themselves are not sent, a peer that finds a newer version fetches them.
+	 * Digests are built one at a time so the amount of times a sample was sent is only read and updated under the same lock.
+	 */
+	synchronized BullyQueryOverview digest(int maxSamples) {
+		int retransmits = getRetransmits();
+		List<Entry> candidates = new ArrayList<Entry>();
+		Entry own = null;
+		for (Entry entry : entries.values()) {
+			if (entry.sample.getHost().equals(client.getHost())) {
+				own = entry;
+			}
+			else if (entry.sent < retransmits) {
+				candidates.add(entry);
+			}
+		}
+		Collections.sort(candidates, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry entry1, Entry entry2) {
+				return entry1.sent - entry2.sent;
+			}
+		});
+		List<BullyQueryList> lists = new ArrayList<BullyQueryList>();
+		if (own != null) {
+			lists.add(newList(own.sample));
+		}
+		for (Entry entry : candidates) {
+			if (lists.size() >= maxSamples) {
+				break;
+			}
+			entry.sent++;
+			lists.add(newList(entry.sample));
+		}
+		BullyQueryOverview overview = new BullyQueryOverview();
+		overview.setTerm(client.getTerm());
+		overview.setSequence(client.getHistoryStore().getSequence());
+		overview.setFull(false);
+		overview.setLists(lists);
+		overview.setMembershipVersion(client.getMembership().getVersion());
+		return overview;
+	}
+
+	// a sample should reach everyone, which takes a logarithmic amount of rounds
+	private int getRetransmits() {
+		return 3 * getRounds();
+	}
+
+	// the amount of rounds it takes a sample to spread over the membership
+	private int getRounds() {
+		int size = Math.max(1, client.getMembership().size());
+		return 32 - Integer.numberOfLeadingZeros(size);
+	}
+
+	private static BullyQueryList newList(BullyQuery sample) {
+		BullyQueryList list = new BullyQueryList();
+		list.setHost(sample.getHost());
+		list.setQueries(Collections.singletonList(sample));
+		return list;
+	}
+
+	/**
+	 * Our own sample for this round, it is always part of the messages we send
+	 */
+	void update(BullyQuery own) {
+		entries.put(own.getHost(), new Entry(own, client.getClock().currentTimeMillis()));
+		// the history assigns a sequence, the sample we pass on must not change with it
+		client.push(copy(own));
+	}
+
+	/**
+	 * Merges the samples of a peer, only newer samples are kept. Samples are only compared with samples of the same server so the clocks of the servers do not have to agree.
+	 * If the peer knows a newer membership, it is fetched from the peer or, if we do not know who sent the message, from the master.
+	 */
+	void merge(BullyQueryOverview overview, String peer) {
+		client.observeTerm(overview.getTerm());
+		if (overview.getMembershipVersion() != null) {
+			// older peers still send the members along
+			if (overview.getMembers() != null) {
+				client.adoptMembership(overview.getMembershipVersion(), overview.getMembers());
+			}
+			else if (overview.getMembershipVersion() > client.getMembership().getVersion()) {
+				client.fetchMembership(peer == null ? client.getCurrentMaster() : peer);
+			}
+		}
+		if (overview.getLists() == null) {
+			return;
+		}
+		for (BullyQueryList list : overview.getLists()) {
+			if (list.getHost() == null || list.getQueries() == null || list.getQueries().isEmpty() || list.getHost().equals(client.getHost())) {
+				continue;
+			}
+			BullyQuery sample = list.getQueries().get(list.getQueries().size() - 1);
+			sample.setHost(list.getHost());
+			if (sample.getCreated() == null || !client.isMember(sample.getHost())) {
+				continue;
+			}
+			Entry received = new Entry(sample, client.getClock().currentTimeMillis());
+			while (true) {
+				Entry current = entries.get(sample.getHost());
+				if (current != null && current.getCreated() >= received.getCreated()) {
+					break;
+				}
+				if (current == null ? entries.putIfAbsent(sample.getHost(), received) == null : entries.replace(sample.getHost(), current, received)) {
+					client.push(copy(sample));
+					if (sample.getHost().equals(client.getCurrentMaster())) {
+						client.getFailureDetector().heartbeat(sample.getHost(), client.getClock().currentTimeMillis());
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether the newest sample of the master we received is older than the rounds it takes to reach us (plus one), given the interval (ms) between rounds.
+	 * A master we just started following is given the same time to reach us.
+	 */
+	synchronized boolean isMasterStale(String master, long interval) {
+		long now = client.getClock().currentTimeMillis();
+		if (!master.equals(lastMaster)) {
+			lastMaster = master;
+			lastMasterSeen = now;
+			client.getFailureDetector().heartbeat(master, now);
+			return false;
+		}
+		Entry entry = entries.get(master);
+		long latest = Math.max(lastMasterSeen, entry == null ? 0 : entry.received);
+		return now - latest > interval * (getRounds() + 1);
+	}
+
+	private static BullyQuery copy(BullyQuery sample) {
+		BullyQuery copy = new BullyQuery();
+		copy.setHost(sample.getHost());
+		copy.setCreated(sample.getCreated());
+		copy.setLoad(sample.getLoad());
+		copy.setHeapUsed(sample.getHeapUsed());
+		copy.setNonHeapUsed(sample.getNonHeapUsed());
+		copy.setCurrentThreadCount(sample.getCurrentThreadCount());
+		copy.setUptime(sample.getUptime());
+		copy.setTerm(sample.getTerm());
+		copy.setMaster(sample.getMaster());
+		copy.setMembershipVersion(sample.getMembershipVersion());
+		copy.setMetrics(sample.getMetrics());
+		copy.setScore(sample.getScore());
+		return copy;
+	}
+
+	/**
+	 * Forgets the samples of hosts that are no longer members
+	 */
+	void prune() {
+		for (String host : entries.keySet()) {
+			if (!client.isMember(host)) {
+				entries.remove(host);
+			}
+		}
+	}
+}
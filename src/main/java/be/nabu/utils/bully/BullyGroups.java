@@ -0,0 +1,344 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Principal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.HTTPException;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.bully.utils.BatchEntry;
+import be.nabu.utils.bully.utils.BatchingTransport;
+import be.nabu.utils.bully.utils.BullyBinaryCodec;
+import be.nabu.utils.bully.utils.BullyScheduler;
+import be.nabu.utils.bully.utils.HTTPClientTransport;
+import be.nabu.utils.bully.utils.RendezvousRanking;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Runs an independent election for each group over the same set of hosts, every group has its own master and controller.
+ * The hosts are ranked per group with rendezvous hashing so the masters are spread over the cluster.
+ * 
+ * All groups share one scheduler and their heartbeats are aligned, messages that go to the same peer at the same time are combined into a single batch.
+ * The history of the hosts is the same for every group, it is recorded and replicated by one group and the others serve that same store.
+ * Only that group sends the metrics along with its heartbeats, the heartbeats of the other groups only carry what the election needs.
+ * The groups are served under {rootPath}groups/{group}/, the batches are posted to {rootPath}bully/batch.
+ */
+public class BullyGroups implements Closeable {
+
+	private static final Pattern GROUP_ID = Pattern.compile("[\\w.-]+");
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private String host, rootPath;
+	private List<String> hosts;
+	private Long victoryTimeout;
+	private long heartBeatInterval = 60*1000;
+	private BullyScheduler scheduler = new BullyScheduler();
+	private BatchingTransport transport;
+	private BullyBinaryCodec codec = new BullyBinaryCodec();
+	private ConcurrentMap<String, BullyClient> groups = new ConcurrentHashMap<String, BullyClient>();
+	private ConcurrentMap<String, EventHandler<HTTPRequest, HTTPResponse>> handlers = new ConcurrentHashMap<String, EventHandler<HTTPRequest, HTTPResponse>>();
+
+	public BullyGroups(String host, String rootPath, Long victoryTimeout, HTTPClient client, Principal principal, boolean secure, List<String> hosts) {
+		this.host = host;
+		this.rootPath = rootPath == null || rootPath.trim().isEmpty() ? "/" : rootPath;
+		if (!this.rootPath.endsWith("/")) {
+			this.rootPath += "/";
+		}
+		if (!this.rootPath.startsWith("/")) {
+			this.rootPath = "/" + this.rootPath;
+		}
+		this.victoryTimeout = victoryTimeout;
+		this.hosts = new ArrayList<String>(hosts);
+		// a few ms is enough for the requests that were started by the same tick to join
+		this.transport = new BatchingTransport(new HTTPClientTransport(client, principal, secure), scheduler, this.rootPath + "bully/batch", 10);
+	}
+
+	/**
+	 * Adds a group with its own election, it takes part in elections as soon as the groups are started (or right away if they already are)
+	 */
+	public synchronized BullyClient addGroup(String group, MasterController controller) {
+		if (group == null || !GROUP_ID.matcher(group).matches()) {
+			throw new IllegalArgumentException("Invalid group id: " + group);
+		}
+		BullyClient client = new BullyClient(host, rootPath + "groups/" + group, controller, victoryTimeout, null, null, false, getHosts());
+		client.setScheduler(scheduler);
+		client.setTransport(transport);
+		client.setRankingStrategy(new RendezvousRanking(group));
+		client.setHeartBeatInterval(heartBeatInterval);
+		client.setHeartBeatAligned(true);
+		if (groups.containsKey(group)) {
+			throw new IllegalStateException("The group '" + group + "' already exists");
+		}
+		BullyClient recorder = getRecorder();
+		if (recorder != null) {
+			client.shareHistory(recorder.getHistoryStore());
+		}
+		groups.put(group, client);
+		handlers.put(group, client.newHandler());
+		if (scheduler.isStarted()) {
+			join(client);
+		}
+		return client;
+	}
+
+	public synchronized void removeGroup(String group) {
+		BullyClient client = groups.remove(group);
+		if (client != null) {
+			handlers.remove(group);
+			// another group takes over the recording of the history, the store stays open for it
+			if (client.isHistoryRecorded() && !groups.isEmpty()) {
+				client.setHistoryRecorded(false);
+				groups.values().iterator().next().setHistoryRecorded(true);
+			}
+			client.close();
+		}
+	}
+
+	/**
+	 * The group that records the history for all of them, null if there are no groups
+	 */
+	private BullyClient getRecorder() {
+		for (BullyClient client : groups.values()) {
+			if (client.isHistoryRecorded()) {
+				return client;
+			}
+		}
+		return null;
+	}
+
+	public BullyClient getGroup(String group) {
+		return groups.get(group);
+	}
+
+	public Set<String> getGroups() {
+		return groups.keySet();
+	}
+
+	/**
+	 * Every group joins the master it already has in the cluster, groups without a master hold an election
+	 */
+	public void start() {
+		scheduler.start();
+		for (BullyClient client : groups.values()) {
+			join(client);
+		}
+	}
+
+	private void join(final BullyClient client) {
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					client.join();
+				}
+				catch (Exception e) {
+					logger.error("Could not join group, starting an election", e);
+					client.scheduleElection(true);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		for (BullyClient client : groups.values()) {
+			client.close();
+		}
+		scheduler.close();
+	}
+
+	public EventHandler<HTTPRequest, HTTPResponse> newHandler() {
+		return new EventHandler<HTTPRequest, HTTPResponse>() {
+			@Override
+			public HTTPResponse handle(HTTPRequest request) {
+				String path = getPath(request);
+				if (path == null) {
+					return null;
+				}
+				else if (path.equals("bully/batch") && request.getMethod().equalsIgnoreCase("POST")) {
+					return handleBatch(request);
+				}
+				return dispatch(path, request);
+			}
+		};
+	}
+
+	private HTTPResponse dispatch(String path, HTTPRequest request) {
+		if (path.startsWith("groups/")) {
+			int index = path.indexOf('/', "groups/".length());
+			EventHandler<HTTPRequest, HTTPResponse> handler = handlers.get(index < 0 ? path.substring("groups/".length()) : path.substring("groups/".length(), index));
+			if (handler != null) {
+				return handler.handle(request);
+			}
+		}
+		return null;
+	}
+
+	private HTTPResponse handleBatch(HTTPRequest request) {
+		List<BatchEntry> entries;
+		try {
+			if (!(request.getContent() instanceof ContentPart)) {
+				throw new HTTPException(400, "Missing content");
+			}
+			InputStream input = IOUtils.toInputStream(((ContentPart) request.getContent()).getReadable());
+			entries = codec.unmarshalBatch(input);
+		}
+		catch (IOException e) {
+			logger.warn("Could not read batch", e);
+			return newResponse(400, "Could not read batch", null);
+		}
+		catch (ParseException e) {
+			logger.warn("Could not parse batch", e);
+			return newResponse(400, "Could not parse batch", null);
+		}
+		List<BatchEntry> answers = new ArrayList<BatchEntry>(entries.size());
+		for (BatchEntry entry : entries) {
+			answers.add(handleEntry(entry));
+		}
+		return newResponse(200, "OK", codec.marshalBatch(answers));
+	}
+
+	private BatchEntry handleEntry(BatchEntry entry) {
+		try {
+			HTTPRequest request = BatchingTransport.toRequest(host, entry);
+			String path = getPath(request);
+			HTTPResponse response = path == null ? null : dispatch(path, request);
+			if (response == null) {
+				return new BatchEntry(null, 404, null, null, null);
+			}
+			return new BatchEntry(null, response.getCode(), BatchingTransport.getHeader(response.getContent(), "Content-Type"), null, BatchingTransport.getContent(response.getContent()));
+		}
+		catch (HTTPException e) {
+			return new BatchEntry(null, e.getCode(), null, null, null);
+		}
+		catch (Exception e) {
+			logger.error("Could not handle batched message for: " + entry.getTarget(), e);
+			return new BatchEntry(null, 500, null, null, null);
+		}
+	}
+
+	private String getPath(HTTPRequest request) {
+		String target = request.getTarget();
+		if (target == null) {
+			return null;
+		}
+		int index = target.indexOf('?');
+		if (index >= 0) {
+			target = target.substring(0, index);
+		}
+		return target.startsWith(rootPath) ? target.substring(rootPath.length()) : null;
+	}
+
+	private static HTTPResponse newResponse(int code, String message, byte[] content) {
+		if (content == null) {
+			content = new byte[0];
+		}
+		return new DefaultHTTPResponse(code, message, new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+			new MimeHeader("Content-Length", "" + content.length),
+			new MimeHeader("Content-Type", BullyBinaryCodec.CONTENT_TYPE)
+		));
+	}
+
+	public long getHeartBeatInterval() {
+		return heartBeatInterval;
+	}
+
+	/**
+	 * Applies to groups that are added afterwards
+	 */
+	public void setHeartBeatInterval(long heartBeatInterval) {
+		this.heartBeatInterval = heartBeatInterval;
+	}
+
+	/**
+	 * How long (ms) a message waits for others to the same peer before it is sent
+	 */
+	public void setLinger(long linger) {
+		transport.setLinger(linger);
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public synchronized List<String> getHosts() {
+		return new ArrayList<String>(hosts);
+	}
+
+	/**
+	 * Adds the host to every group, groups that are added later start with it as well.
+	 * Returns false if a group did not accept the change (e.g. it has no master yet), the groups that are added later then do not start with the host, the change can be retried.
+	 */
+	public boolean addHost(String host) {
+		boolean accepted = true;
+		for (Map.Entry<String, BullyClient> group : groups.entrySet()) {
+			if (!group.getValue().addHost(host)) {
+				logger.warn("Group '" + group.getKey() + "' did not accept host '" + host + "'");
+				accepted = false;
+			}
+		}
+		if (accepted) {
+			synchronized(this) {
+				if (!hosts.contains(host)) {
+					hosts.add(host);
+				}
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Removes the host from every group, returns false if a group did not accept the change, the host is then kept for the groups that are added later
+	 */
+	public boolean removeHost(String host) {
+		boolean accepted = true;
+		for (Map.Entry<String, BullyClient> group : groups.entrySet()) {
+			if (!group.getValue().removeHost(host)) {
+				logger.warn("Group '" + group.getKey() + "' did not accept the removal of host '" + host + "'");
+				accepted = false;
+			}
+		}
+		if (accepted) {
+			synchronized(this) {
+				hosts.remove(host);
+			}
+		}
+		return accepted;
+	}
+}
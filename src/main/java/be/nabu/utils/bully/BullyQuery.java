@@ -18,6 +18,7 @@
 package be.nabu.utils.bully;
 
 import java.util.Date;
+import java.util.List;
 
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -28,6 +29,22 @@ public class BullyQuery {
 	private double load, heapUsed, nonHeapUsed;
 	private int currentThreadCount;
 	private long uptime;
+	// the sequence assigned by the master when it stored this entry
+	private long sequence;
+	// when checking in, the last sequence we received from the master
+	private Long since;
+	// the election term the sender is in
+	private long term;
+	// when checking in, the duration (ms) of the lease we grant the master
+	private Long lease;
+	// when answering a join, the master the sender follows (the term is then the term of that master)
+	private String master;
+	// when checking in, the version of the membership the sender knows
+	private Long membershipVersion;
+	// the metrics of the sampler (cpu, gc,...), only sent along with the samples that go in the history
+	private List<BullyMetric> metrics;
+	// the score the sender ranks itself with, only set if the ranking is based on reported scores
+	private Double score;
 
 	public BullyQuery() {
 		// auto
@@ -78,4 +95,52 @@ public class BullyQuery {
 	public void setUptime(long uptime) {
 		this.uptime = uptime;
 	}
+	public long getSequence() {
+		return sequence;
+	}
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+	public Long getSince() {
+		return since;
+	}
+	public void setSince(Long since) {
+		this.since = since;
+	}
+	public long getTerm() {
+		return term;
+	}
+	public void setTerm(long term) {
+		this.term = term;
+	}
+	public Long getLease() {
+		return lease;
+	}
+	public void setLease(Long lease) {
+		this.lease = lease;
+	}
+	public String getMaster() {
+		return master;
+	}
+	public void setMaster(String master) {
+		this.master = master;
+	}
+	public Long getMembershipVersion() {
+		return membershipVersion;
+	}
+	public void setMembershipVersion(Long membershipVersion) {
+		this.membershipVersion = membershipVersion;
+	}
+	public List<BullyMetric> getMetrics() {
+		return metrics;
+	}
+	public void setMetrics(List<BullyMetric> metrics) {
+		this.metrics = metrics;
+	}
+	public Double getScore() {
+		return score;
+	}
+	public void setScore(Double score) {
+		this.score = score;
+	}
 }
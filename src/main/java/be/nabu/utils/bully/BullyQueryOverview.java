@@ -24,6 +24,15 @@ import javax.xml.bind.annotation.XmlRootElement;
 @XmlRootElement(name = "overview")
 public class BullyQueryOverview {
 	private List<BullyQueryList> lists;
+	// the last sequence the master had assigned when this overview was built
+	private long sequence;
+	// whether this is the full history or only the entries since the requested sequence, older masters always send the full history
+	private Boolean full;
+	// the election term of the master
+	private long term;
+	// the version of the membership of the master and, if the requester has an older version, the members themselves
+	private Long membershipVersion;
+	private List<String> members;
 
 	public List<BullyQueryList> getLists() {
 		return lists;
@@ -32,5 +41,45 @@ public class BullyQueryOverview {
 	public void setLists(List<BullyQueryList> lists) {
 		this.lists = lists;
 	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public Boolean getFull() {
+		return full;
+	}
+
+	public void setFull(Boolean full) {
+		this.full = full;
+	}
+
+	public long getTerm() {
+		return term;
+	}
+
+	public void setTerm(long term) {
+		this.term = term;
+	}
+
+	public Long getMembershipVersion() {
+		return membershipVersion;
+	}
+
+	public void setMembershipVersion(Long membershipVersion) {
+		this.membershipVersion = membershipVersion;
+	}
+
+	public List<String> getMembers() {
+		return members;
+	}
+
+	public void setMembers(List<String> members) {
+		this.members = members;
+	}
 	
 }
@@ -17,16 +17,25 @@
 
 package be.nabu.utils.bully;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 
 import org.slf4j.Logger;
 
 import be.nabu.libs.http.HTTPException;
+import be.nabu.utils.bully.history.HistoryField;
+import be.nabu.utils.bully.history.HistoryQuery;
 
 @Path(value = "/bully")
 public class BullyREST {
@@ -43,37 +52,268 @@ public class BullyREST {
 	@Context
 	private Logger logger;
 	
+	public BullyREST() {
+		// auto
+	}
+	
+	BullyREST(String localHost, BullyClient client, MasterController controller, Logger logger) {
+		this.localHost = localHost;
+		this.client = client;
+		this.controller = controller;
+		this.logger = logger;
+	}
+	
 	@GET
 	@Path(value = "/history")
-	public BullyQueryOverview overview() {
-		return client.getHistory();
+	// optionally limited to a comma separated list of hosts and a time range, see the aggregate for the parameters
+	public BullyQueryOverview overview(@QueryParam("host") String host, @QueryParam("from") Long from, @QueryParam("to") Long to) {
+		if (host == null && from == null && to == null) {
+			return client.getHistory();
+		}
+		long now = client.getClock().currentTimeMillis();
+		return client.getHistory(split(host), getTime(from, Long.MIN_VALUE, now), getTime(to, Long.MAX_VALUE, now));
+	}
+	
+	@GET
+	@Path(value = "/history/aggregate")
+	// aggregates fields of the history per bucket (ms), e.g. ?host=a&from=-300000&fields=load&functions=avg,p95&bucket=60000
+	public BullyAggregation aggregate(@QueryParam("host") String host, @QueryParam("from") Long from, @QueryParam("to") Long to, @QueryParam("fields") String fields, @QueryParam("functions") String functions, @QueryParam("bucket") Long bucket) {
+		long now = client.getClock().currentTimeMillis();
+		HistoryQuery query = new HistoryQuery();
+		try {
+			query.setHosts(split(host));
+			query.setFrom(getTime(from, Long.MIN_VALUE, now));
+			query.setTo(getTime(to, Long.MAX_VALUE, now));
+			if (bucket != null) {
+				query.setBucket(bucket);
+			}
+			if (fields != null) {
+				List<HistoryField> parsed = new ArrayList<HistoryField>();
+				for (String field : split(fields)) {
+					parsed.add(HistoryField.parse(field));
+				}
+				query.setFields(parsed);
+			}
+			if (functions != null) {
+				query.setFunctions(split(functions.toLowerCase()));
+			}
+			BullyAggregation aggregation = new BullyAggregation();
+			// the range may need rollups that can not answer the query
+			aggregation.setSeries(client.aggregate(query));
+			return aggregation;
+		}
+		catch (IllegalArgumentException e) {
+			throw new HTTPException(400, e.getMessage());
+		}
+	}
+	
+	// a negative time is relative to now
+	private static long getTime(Long time, long defaultValue, long now) {
+		if (time == null) {
+			return defaultValue;
+		}
+		return time < 0 ? now + time : time;
+	}
+	
+	static List<String> split(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		List<String> values = new ArrayList<String>();
+		for (String part : value.split(",")) {
+			if (!part.trim().isEmpty()) {
+				values.add(part.trim());
+			}
+		}
+		return values;
 	}
 	
 	@POST
 	@Path(value = "/alive")
 	public BullyQueryOverview alive(BullyQuery query) {
 		logger.info("Server '" + query.getHost() + "' is checking in");
+		client.observeTerm(query.getTerm());
+		if (query.getLease() != null) {
+			client.registerLease(query.getHost(), query.getLease());
+		}
 		client.push(query);
-		return client.getHistory();
+		// only send back what the server has not seen yet
+		BullyQueryOverview overview = client.getHistory(query.getSince() == null ? 0 : query.getSince());
+		Membership membership = client.getMembership();
+		overview.setMembershipVersion(membership.getVersion());
+		// older clients do not send a version, they can not use the members either
+		if (query.getMembershipVersion() != null && query.getMembershipVersion() != membership.getVersion()) {
+			overview.setMembers(membership.getHosts());
+		}
+		return overview;
+	}
+	
+	@POST
+	@Path(value = "/gossip")
+	@Consumes(value = { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+	// a peer exchanges its samples with us, we send back ours
+	public BullyQueryOverview gossip(BullyQueryOverview overview) {
+		if (client.getHeartBeatMode() != HeartBeatMode.GOSSIP) {
+			throw new HTTPException(409, "Gossip is not enabled");
+		}
+		return client.receiveGossip(overview);
+	}
+	
+	@GET
+	@Path(value = "/members")
+	public BullyMembers members() {
+		return new BullyMembers(client.getMembership());
+	}
+	
+	@PUT
+	@Path(value = "/members/{host}")
+	public BullyMembers addMember(@PathParam("host") String host, @QueryParam("forwarded") Boolean forwarded) {
+		logger.info("Adding member '" + host + "'");
+		changeMembership(host, true, forwarded);
+		return new BullyMembers(client.getMembership());
+	}
+	
+	@DELETE
+	@Path(value = "/members/{host}")
+	public BullyMembers removeMember(@PathParam("host") String host, @QueryParam("forwarded") Boolean forwarded) {
+		logger.info("Removing member '" + host + "'");
+		changeMembership(host, false, forwarded);
+		return new BullyMembers(client.getMembership());
+	}
+	
+	private void changeMembership(String host, boolean add, Boolean forwarded) {
+		// only the master changes the membership, without one the caller has to come back later
+		if (client.getCurrentMaster() == null) {
+			throw new HTTPException(503, "No master is known, the membership can not be changed right now");
+		}
+		try {
+			if (!client.changeMembership(host, add, forwarded != null && forwarded)) {
+				throw new HTTPException(forwarded != null && forwarded ? 409 : 502, "The membership change was not accepted by the master");
+			}
+		}
+		catch (IllegalArgumentException e) {
+			throw new HTTPException(400, e.getMessage());
+		}
+		catch (IllegalStateException e) {
+			throw new HTTPException(409, e.getMessage());
+		}
+	}
+	
+	@POST
+	@Path(value = "/join")
+	@Consumes(value = { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+	// a starting server asks who the master is, we answer with the master we follow and the term it was elected in
+	public BullyQuery join(BullyQuery query) {
+		logger.info("Join from '" + query.getHost() + "'");
+		if (query.getHost() == null) {
+			throw new HTTPException(400, "Missing host");
+		}
+		else if (query.getHost().equals(localHost)) {
+			throw new HTTPException(500, "Getting messages from same host");
+		}
+		else if (!client.isMember(query.getHost())) {
+			throw new HTTPException(405, "We are not part of the same cluster");
+		}
+		client.observeScore(query);
+		BullyQuery reply = client.newBullyQuery();
+		ElectionState state = client.getElectionState();
+		if (state.getMaster() != null) {
+			reply.setMaster(state.getMaster());
+			reply.setTerm(state.getTerm());
+		}
+		return reply;
+	}
+	
+	@POST
+	@Path(value = "/handover")
+	@Consumes(value = { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+	// the master is stepping down and has chosen us as its successor
+	public BullyQuery handover(BullyQuery query) {
+		logger.info("Hand over from '" + query.getHost() + "'");
+		validateMaster(query);
+		if (client.isAbdicated()) {
+			throw new HTTPException(503, "This server has abdicated");
+		}
+		client.releaseLease(query.getHost());
+		client.observeTerm(query.getTerm());
+		long term = client.takeOver();
+		if (term < 0) {
+			throw new HTTPException(409, "Could not take over");
+		}
+		BullyQuery reply = client.newBullyQuery();
+		reply.setMaster(localHost);
+		reply.setTerm(term);
+		return reply;
+	}
+	
+	@POST
+	@Path(value = "/abdicate")
+	@Consumes(value = { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+	// the master is stepping down, it tells us who it handed over to
+	public void abdicate(BullyQuery query) {
+		logger.info("Abdication from '" + query.getHost() + "' in favour of '" + query.getMaster() + "'");
+		validateMaster(query);
+		client.releaseLease(query.getHost());
+		if (query.getMaster() == null) {
+			client.scheduleElection(true);
+		}
+		// we may already have heard from the successor itself
+		else if (!query.getMaster().equals(client.getCurrentMaster())) {
+			if (query.getTerm() < client.getTerm()) {
+				throw new HTTPException(409, "Abdication for term " + query.getTerm() + " is outdated, we are in term " + client.getTerm());
+			}
+			client.observeTerm(query.getTerm());
+			client.setMaster(query.getMaster(), query.getTerm());
+		}
+	}
+	
+	// only the master we follow (or any member if we have none) can hand over
+	private void validateMaster(BullyQuery query) {
+		if (query.getHost() == null) {
+			throw new HTTPException(400, "Missing host");
+		}
+		else if (query.getHost().equals(localHost)) {
+			throw new HTTPException(500, "Getting messages from same host");
+		}
+		else if (!client.isMember(query.getHost())) {
+			throw new HTTPException(405, "We are not part of the same cluster");
+		}
+		String currentMaster = client.getCurrentMaster();
+		if (currentMaster != null && !currentMaster.equals(query.getHost())) {
+			throw new HTTPException(409, "'" + query.getHost() + "' is not our master");
+		}
 	}
 	
 	@POST
 	@Path(value = "/inquiry")
 	@Consumes(value = { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
-	// an incoming query
-	public void inquiry(BullyQuery query) {
+	// an incoming query, we send back our own state so the sender can check its term
+	public BullyQuery inquiry(BullyQuery query) {
 		logger.info("Inquiry from '" + query.getHost() + "'");
+		client.getMetrics().inquiryReceived();
 		if (query.getHost() == null) {
 			throw new HTTPException(400, "Missing host");
 		}
+		// we are shutting down, the sender should not wait for us to become master
+		else if (client.isAbdicated()) {
+			throw new HTTPException(503, "This server has abdicated");
+		}
 		else if (query.getHost().equals(localHost)) {
 			throw new HTTPException(500, "Getting messages from same host");
 		}
-		else if (!client.hosts.contains(query.getHost())) {
+		else if (!client.isMember(query.getHost())) {
 			throw new HTTPException(405, "We are not part of the same cluster");
 		}
+		// a delayed inquiry from an older election should not trigger a new one, the sender learns the current term from our reply
+		// older clients do not send a term at all
+		else if (query.getTerm() > 0 && query.getTerm() < client.getTerm()) {
+			logger.info("Ignoring inquiry from '" + query.getHost() + "' for term " + query.getTerm() + ", we are in term " + client.getTerm());
+		}
 		else {
-			int comparison = query.getHost().compareTo(localHost);
+			client.observeTerm(query.getTerm());
+			// rank the sender on the score it reported in this inquiry
+			client.observeScore(query);
+			int comparison = client.compareRank(query.getHost(), localHost);
 			// the host in the query is higher ranked than this one
 			// let's give him a sec to also send a victory, if not, we restart elections
 			if (comparison > 0) {
@@ -84,6 +324,7 @@ public class BullyREST {
 				client.scheduleElection(true);
 			}
 		}
+		return client.newBullyQuery();
 	}
 	
 	@POST
@@ -91,21 +332,45 @@ public class BullyREST {
 	@Consumes(value = { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
 	public void victory(BullyQuery query) {
 		logger.info("Victory from '" + query.getHost() + "'");
+		client.getMetrics().victoryReceived();
 		if (query.getHost() == null) {
 			throw new HTTPException(400, "Missing host");
 		}
 		else if (query.getHost().equals(localHost)) {
 			throw new HTTPException(500, "Getting messages from same host");
 		}
+		client.observeScore(query);
+		if (query.getTerm() > 0 && query.getTerm() < client.getTerm()) {
+			String currentMaster = client.getCurrentMaster();
+			// if the sender should be master, it is running behind (e.g. it restarted), our inquiry will tell it about the current term
+			if (currentMaster == null || client.compareRank(query.getHost(), currentMaster) > 0) {
+				client.scheduleElection(true);
+			}
+			client.getMetrics().conflictSent();
+			throw new HTTPException(409, "Victory for term " + query.getTerm() + " is outdated, we are in term " + client.getTerm());
+		}
+		// we promised the current master that we would not accept anyone else for now
+		else if (client.getGrantedLeaseRemaining(query.getHost()) > 0) {
+			client.getMetrics().conflictSent();
+			throw new HTTPException(409, "A lease was granted to another master");
+		}
 		else {
-			int comparison = query.getHost().compareTo(localHost);
+			int comparison = client.compareRank(query.getHost(), localHost);
 			// the host in the query is higher ranked than this one, it's ok
 			if (comparison > 0) {
-				controller.setMaster(query.getHost());
+				// older clients do not send a term, they are accepted in the current one
+				if (query.getTerm() > 0) {
+					client.observeTerm(query.getTerm());
+					client.setMaster(query.getHost(), query.getTerm());
+				}
+				else {
+					controller.setMaster(query.getHost());
+				}
 			}
 			else {
 				// a lower level server thinks it can become master, let's put an end to that immediately
 				client.scheduleElection(true);
+				client.getMetrics().conflictSent();
 				throw new HTTPException(409, "Lower host is proclaiming victory");
 			}
 		}
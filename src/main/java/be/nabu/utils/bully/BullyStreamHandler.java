@@ -0,0 +1,88 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import org.slf4j.Logger;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.bully.stream.Subscription;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Serves the events of a client as server-sent events, everything else is passed on to the parent handler.
+ * The stream can not be expressed as a rest response and it does not depend on the format the peers use.
+ */
+class BullyStreamHandler implements EventHandler<HTTPRequest, HTTPResponse> {
+
+	private EventHandler<HTTPRequest, HTTPResponse> parent;
+	private BullyClient client;
+	private String rootPath;
+	private Logger logger;
+
+	BullyStreamHandler(EventHandler<HTTPRequest, HTTPResponse> parent, BullyClient client, String rootPath, Logger logger) {
+		this.parent = parent;
+		this.client = client;
+		this.rootPath = rootPath;
+		this.logger = logger;
+	}
+
+	@Override
+	public HTTPResponse handle(HTTPRequest request) {
+		if ("bully/stream".equals(BullyBinaryHandler.getPath(request, rootPath)) && request.getMethod().equalsIgnoreCase("GET")) {
+			return stream(request);
+		}
+		return parent.handle(request);
+	}
+
+	/**
+	 * A subscriber can resume with the last id it has seen (the Last-Event-ID header or the since parameter)
+	 */
+	private HTTPResponse stream(HTTPRequest request) {
+		String since = BullyBinaryHandler.getParameter(request, "since");
+		if (since == null) {
+			Header header = request.getContent() == null ? null : MimeUtils.getHeader("Last-Event-ID", request.getContent().getHeaders());
+			since = header == null ? null : header.getValue();
+		}
+		Subscription subscription;
+		try {
+			subscription = client.subscribe(since);
+		}
+		catch (IllegalArgumentException e) {
+			return newResponse(400, "Invalid event id");
+		}
+		logger.info("New subscriber for the event stream" + (since == null ? "" : " from " + since));
+		return new DefaultHTTPResponse(200, "OK", new PlainMimeContentPart(null, subscription,
+			new MimeHeader("Content-Type", "text/event-stream"),
+			new MimeHeader("Transfer-Encoding", "chunked"),
+			new MimeHeader("Cache-Control", "no-cache")
+		));
+	}
+
+	private static HTTPResponse newResponse(int code, String message) {
+		return new DefaultHTTPResponse(code, message, new PlainMimeContentPart(null, IOUtils.wrap(new byte[0], true),
+			new MimeHeader("Content-Length", "0")
+		));
+	}
+}
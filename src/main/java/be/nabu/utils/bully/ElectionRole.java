@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+public enum ElectionRole {
+	// following the current master, if there is no master yet we are waiting for an election
+	FOLLOWER,
+	// running an election of our own
+	CANDIDATE,
+	// a higher ranked server has answered our inquiry, we are waiting for it to proclaim victory
+	AWAITING_VICTORY,
+	// we are the master
+	LEADER
+}
@@ -0,0 +1,91 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import be.nabu.utils.bully.utils.WaitAndElect;
+
+/**
+ * An immutable snapshot of where a client stands in the election.
+ * The client only ever replaces the state as a whole with a compare and set, every replacement gets a higher version.
+ */
+public class ElectionState {
+
+	private final long version;
+	private final ElectionRole role;
+	private final String master;
+	// the term the master was elected in or, while there is no master, the term of the ongoing election
+	private final long term;
+	// the election that is scheduled to run if no master makes itself known in time
+	private final WaitAndElect pending;
+
+	ElectionState() {
+		this(0, ElectionRole.FOLLOWER, null, 0, null);
+	}
+
+	private ElectionState(long version, ElectionRole role, String master, long term, WaitAndElect pending) {
+		this.version = version;
+		this.role = role;
+		this.master = master;
+		this.term = term;
+		this.pending = pending;
+	}
+
+	ElectionState next(ElectionRole role, String master, long term, WaitAndElect pending) {
+		return new ElectionState(version + 1, role, master, term, pending);
+	}
+
+	ElectionState withRole(ElectionRole role) {
+		return next(role, master, term, pending);
+	}
+
+	ElectionState withPending(WaitAndElect pending) {
+		return next(role, master, term, pending);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public ElectionRole getRole() {
+		return role;
+	}
+
+	public String getMaster() {
+		return master;
+	}
+
+	public long getTerm() {
+		return term;
+	}
+
+	WaitAndElect getPending() {
+		return pending;
+	}
+
+	/**
+	 * Whether an election is scheduled that has not run yet
+	 */
+	public boolean isElectionPending() {
+		return pending != null && !pending.isFinished() && !pending.isElecting();
+	}
+
+	@Override
+	public String toString() {
+		return "v" + version + " " + role + (master == null ? "" : " of '" + master + "'") + " in term " + term + (isElectionPending() ? " (election pending)" : "");
+	}
+}
@@ -0,0 +1,33 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+/**
+ * Decides whether a peer should be considered down based on the heartbeats we received from it.
+ * All timestamps are in ms.
+ */
+public interface FailureDetector {
+	// a successful heartbeat was exchanged with the peer
+	public void heartbeat(String peer, long timestamp);
+	// whether the peer should still be considered alive at the given time
+	public boolean isAvailable(String peer, long timestamp);
+	// how suspicious the peer is at the given time, the scale depends on the implementation
+	public double getSuspicion(String peer, long timestamp);
+	// forget everything we know about the peer
+	public void remove(String peer);
+}
@@ -0,0 +1,28 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.util.List;
+
+/**
+ * Lets a master voluntarily give up its role, it is checked by the master on every heartbeat.
+ * When it returns true the master holds a new election, if another server outranks it that server takes over.
+ */
+public interface HandOffStrategy {
+	public boolean shouldHandOff(String master, List<String> hosts);
+}
@@ -0,0 +1,147 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An immutable, versioned view of the hosts in the cluster, a change produces a new view with a higher version.
+ * The version is a (term, counter) pair packed in a long: the term of the master that made the change in the high bits and a counter within that term in the low bits.
+ * Two masters in succession can never hand out the same version for different hosts and the changes of a newer master always win.
+ * The hosts are kept in descending order of name, which is the default ranking, so the hosts above or below a given host are found with a binary search.
+ */
+public class Membership {
+
+	// the amount of low bits used for the counter within a term
+	public static final int COUNTER_BITS = 24;
+
+	private final long version;
+	private final String [] hosts;
+	private final List<String> view;
+	private final Set<String> lookup;
+
+	public Membership(long version, Collection<String> hosts) {
+		this.version = version;
+		TreeSet<String> sorted = new TreeSet<String>(Collections.reverseOrder());
+		sorted.addAll(hosts);
+		this.hosts = sorted.toArray(new String[sorted.size()]);
+		this.view = Collections.unmodifiableList(Arrays.asList(this.hosts));
+		this.lookup = new HashSet<String>(sorted);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * The term of the master that made the last change
+	 */
+	public long getTerm() {
+		return version >>> COUNTER_BITS;
+	}
+
+	/**
+	 * The amount of changes the master made within its term
+	 */
+	public long getCounter() {
+		return version & ((1L << COUNTER_BITS) - 1);
+	}
+
+	/**
+	 * The version for a change made by a master in the given term, it is always higher than the current one
+	 */
+	long nextVersion(long term) {
+		long first = (term << COUNTER_BITS) + 1;
+		return version >= first ? version + 1 : first;
+	}
+
+	public List<String> getHosts() {
+		return view;
+	}
+
+	public boolean contains(String host) {
+		return host != null && lookup.contains(host);
+	}
+
+	public int size() {
+		return hosts.length;
+	}
+
+	/**
+	 * The hosts with a higher name than the given one
+	 */
+	public List<String> getHigher(String host) {
+		return view.subList(0, position(host, false));
+	}
+
+	/**
+	 * The hosts with a lower name than the given one
+	 */
+	public List<String> getLower(String host) {
+		return view.subList(position(host, true), hosts.length);
+	}
+
+	// the index of the host, or where it would be, optionally skipping the host itself
+	private int position(String host, boolean skip) {
+		int index = Arrays.binarySearch(hosts, host, Collections.reverseOrder());
+		if (index < 0) {
+			return -(index + 1);
+		}
+		return skip ? index + 1 : index;
+	}
+
+	/**
+	 * A new view that includes the host, or this view if it is already included. The term is the term of the master that makes the change.
+	 */
+	public Membership with(String host, long term) {
+		if (contains(host)) {
+			return this;
+		}
+		List<String> hosts = new ArrayList<String>(view);
+		hosts.add(host);
+		return new Membership(nextVersion(term), hosts);
+	}
+
+	/**
+	 * A new view without the host, or this view if it is not included. The term is the term of the master that makes the change.
+	 */
+	public Membership without(String host, long term) {
+		if (!contains(host)) {
+			return this;
+		}
+		List<String> hosts = new ArrayList<String>(view);
+		hosts.remove(host);
+		return new Membership(nextVersion(term), hosts);
+	}
+
+	public boolean hasSameHosts(Collection<String> hosts) {
+		return lookup.size() == hosts.size() && lookup.containsAll(hosts);
+	}
+
+	@Override
+	public String toString() {
+		return "v" + getTerm() + "." + getCounter() + " " + view;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+/**
+ * Decides which server outranks which in an election, the highest ranked server that is alive becomes master.
+ * All servers in a cluster must use the same strategy.
+ */
+public interface RankingStrategy {
+	/**
+	 * Returns a positive number if the first host is ranked higher than the second, negative if it is ranked lower and 0 only if they are the same host
+	 */
+	public int compare(String host1, String host2);
+}
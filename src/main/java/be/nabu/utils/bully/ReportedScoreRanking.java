@@ -0,0 +1,43 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+/**
+ * A ranking on a score that every server determines for itself and sends along with its messages.
+ * Servers never compute the score of another server, they compare the score it reported so all servers rank on the same values.
+ * The comparisons use the scores as they were when this server entered the current term, reports that arrive during an election do not change its outcome.
+ */
+public interface ReportedScoreRanking extends RankingStrategy {
+	/**
+	 * Determines the score this server reports for itself until the next call, it is called with every heartbeat.
+	 * The previous master is the master this server followed before the current election (if any), the score is NaN if it can not be determined yet.
+	 */
+	public double determineOwnScore(String previousMaster);
+	/**
+	 * The score that was last determined, this is the score that is sent along and that the comparisons use for this server
+	 */
+	public double getOwnScore();
+	/**
+	 * Another server reported its score, the timestamp is when it determined the score so older reports do not overwrite newer ones
+	 */
+	public void setReportedScore(String host, double score, long timestamp);
+	/**
+	 * This server entered the given term, the comparisons use the scores as they are now (including our own) until a newer term is entered
+	 */
+	public void snapshot(long term);
+}
@@ -0,0 +1,47 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+/**
+ * The numeric fields of the history that can be aggregated
+ */
+public enum HistoryField {
+	LOAD("load"),
+	HEAP_USED("heapUsed"),
+	NON_HEAP_USED("nonHeapUsed"),
+	THREADS("threads");
+
+	private String name;
+
+	private HistoryField(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public static HistoryField parse(String name) {
+		for (HistoryField field : values()) {
+			if (field.name.equalsIgnoreCase(name.trim()) || field.name().equalsIgnoreCase(name.trim())) {
+				return field;
+			}
+		}
+		throw new IllegalArgumentException("Unknown field: " + name);
+	}
+}
@@ -0,0 +1,175 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory mapped ring of fixed size records with the history of a single host.
+ * The header holds the capacity and the positions of the ring, the records use the same positions as the in-memory history so it can be reloaded with a bulk copy.
+ * Writes go to the page cache, they survive a crash of the process but only survive a crash of the machine once they are forced.
+ */
+class HistoryFile implements Closeable {
+
+	private static final int MAGIC = 0xB1A5F11E, VERSION = 1;
+	// magic, version, capacity, record size, written, first
+	private static final int HEADER_SIZE = 32;
+	// created, sequence, uptime, load, heap, non heap, thread count and some padding
+	static final int RECORD_SIZE = 56;
+
+	private static final int WRITTEN = 16, FIRST = 24;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+
+	HistoryFile(File target, int capacity) throws IOException {
+		boolean exists = target.exists() && target.length() >= HEADER_SIZE;
+		this.file = new RandomAccessFile(target, "rw");
+		this.channel = file.getChannel();
+		if (exists) {
+			map(channel.size());
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(12) != RECORD_SIZE) {
+				// not something we can read, start over
+				exists = false;
+			}
+			else if (buffer.getInt(8) != capacity) {
+				resize(capacity);
+			}
+		}
+		if (!exists) {
+			initialize(capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	private void map(long size) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void initialize(int capacity) throws IOException {
+		channel.truncate(0);
+		map(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, capacity);
+		buffer.putInt(12, RECORD_SIZE);
+		buffer.putLong(WRITTEN, 0);
+		buffer.putLong(FIRST, 0);
+	}
+
+	/**
+	 * The capacity has changed since the file was written, keep the newest records that fit
+	 */
+	private void resize(int capacity) throws IOException {
+		int oldCapacity = buffer.getInt(8);
+		long written = buffer.getLong(WRITTEN);
+		long start = Math.max(buffer.getLong(FIRST), Math.max(written - oldCapacity, written - capacity));
+		int amount = (int) (written - start);
+		byte [] records = new byte[amount * RECORD_SIZE];
+		for (int i = 0; i < amount; i++) {
+			buffer.position(offset(start + i, oldCapacity));
+			buffer.get(records, i * RECORD_SIZE, RECORD_SIZE);
+		}
+		initialize(capacity);
+		buffer.position(HEADER_SIZE);
+		buffer.put(records);
+		buffer.putLong(WRITTEN, amount);
+	}
+
+	private static int offset(long position, int capacity) {
+		return HEADER_SIZE + (int) (position % capacity) * RECORD_SIZE;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	long getWritten() {
+		return buffer.getLong(WRITTEN);
+	}
+
+	long getFirst() {
+		return buffer.getLong(FIRST);
+	}
+
+	void setFirst(long first) {
+		buffer.putLong(FIRST, first);
+	}
+
+	/**
+	 * Writes the record at the given position, the position is published afterwards so a partially written record is never loaded
+	 */
+	void write(long position, long created, long sequence, long uptime, double load, double heapUsed, double nonHeapUsed, int threadCount) {
+		int offset = offset(position, capacity);
+		buffer.putLong(offset, created);
+		buffer.putLong(offset + 8, sequence);
+		buffer.putLong(offset + 16, uptime);
+		buffer.putDouble(offset + 24, load);
+		buffer.putDouble(offset + 32, heapUsed);
+		buffer.putDouble(offset + 40, nonHeapUsed);
+		buffer.putInt(offset + 48, threadCount);
+		buffer.putLong(WRITTEN, position + 1);
+	}
+
+	long getCreated(int slot) {
+		return buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE);
+	}
+
+	long getSequence(int slot) {
+		return buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE + 8);
+	}
+
+	long getUptime(int slot) {
+		return buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE + 16);
+	}
+
+	double getLoad(int slot) {
+		return buffer.getDouble(HEADER_SIZE + slot * RECORD_SIZE + 24);
+	}
+
+	double getHeapUsed(int slot) {
+		return buffer.getDouble(HEADER_SIZE + slot * RECORD_SIZE + 32);
+	}
+
+	double getNonHeapUsed(int slot) {
+		return buffer.getDouble(HEADER_SIZE + slot * RECORD_SIZE + 40);
+	}
+
+	int getThreadCount(int slot) {
+		return buffer.getInt(HEADER_SIZE + slot * RECORD_SIZE + 48);
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		// the mapping itself is released when the buffer is collected
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,300 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates fields of the history per time bucket, e.g. the 95th percentile of the load of a host per minute over the last hour.
+ * The raw entries are read straight from the arrays of the history, if the raw entries no longer cover the requested range, the rollups are used instead.
+ * Without a start, the query covers what the raw entries have.
+ * A query is never answered with partial data: if the range needs the rollups, the bucket must be a multiple of their resolution (a minute or an hour) and percentiles are not possible, otherwise the query fails.
+ * Supported functions are avg, min, max, last, count and percentiles like p50, p95 or p99.9, the latter always need the raw entries.
+ */
+public class HistoryQuery {
+
+	private List<String> hosts;
+	private long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+	// the size of a bucket in ms, 0 puts everything in a single bucket
+	private long bucket;
+	private List<HistoryField> fields = Arrays.asList(HistoryField.values());
+	private List<String> functions = Arrays.asList("avg");
+
+	public List<String> getHosts() {
+		return hosts;
+	}
+
+	/**
+	 * The hosts to aggregate, all of them if not set
+	 */
+	public void setHosts(List<String> hosts) {
+		this.hosts = hosts;
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	/**
+	 * The start of the range (in ms), if it is not set the query covers the raw entries
+	 */
+	public void setFrom(long from) {
+		this.from = from;
+	}
+
+	public long getTo() {
+		return to;
+	}
+
+	public void setTo(long to) {
+		this.to = to;
+	}
+
+	public long getBucket() {
+		return bucket;
+	}
+
+	public void setBucket(long bucket) {
+		if (bucket < 0) {
+			throw new IllegalArgumentException("The bucket can not be negative");
+		}
+		this.bucket = bucket;
+	}
+
+	public List<HistoryField> getFields() {
+		return fields;
+	}
+
+	public void setFields(List<HistoryField> fields) {
+		this.fields = fields;
+	}
+
+	public List<String> getFunctions() {
+		return functions;
+	}
+
+	public void setFunctions(List<String> functions) {
+		for (String function : functions) {
+			if (!function.equals("avg") && !function.equals("min") && !function.equals("max") && !function.equals("last") && !function.equals("count")) {
+				getPercentile(function);
+			}
+		}
+		this.functions = functions;
+	}
+
+	private static double getPercentile(String function) {
+		if (function.startsWith("p")) {
+			try {
+				double percentile = Double.parseDouble(function.substring(1));
+				if (percentile >= 0 && percentile <= 100) {
+					return percentile;
+				}
+			}
+			catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+		throw new IllegalArgumentException("Unknown function: " + function);
+	}
+
+	private boolean hasPercentiles() {
+		for (String function : functions) {
+			if (function.startsWith("p")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fails with an IllegalArgumentException if the range needs the rollups and the query can not be answered by them
+	 */
+	public List<Series> execute(HistoryStore store) {
+		List<String> hosts = this.hosts;
+		if (hosts == null) {
+			hosts = new ArrayList<String>();
+			for (HostHistory history : store.getHostHistories()) {
+				hosts.add(history.getHost());
+			}
+			Collections.sort(hosts);
+		}
+		List<Series> result = new ArrayList<Series>();
+		// the buffers are shared by all the hosts and fields
+		long [] times = new long[store.getCapacity()];
+		double [] values = new double[store.getCapacity()];
+		for (String host : hosts) {
+			HostHistory history = store.findHostHistory(host);
+			if (history == null) {
+				continue;
+			}
+			Rollup rollup = getRollup(history);
+			for (HistoryField field : fields) {
+				Map<Long, Bucket> buckets = rollup == null ? aggregate(history, field, times, values) : aggregate(rollup, field);
+				for (String function : functions) {
+					Series series = new Series();
+					series.setHost(host);
+					series.setField(field.getName());
+					series.setFunction(function);
+					series.setPoints(new ArrayList<SeriesPoint>(buckets.size()));
+					for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+						series.getPoints().add(new SeriesPoint(new Date(entry.getKey()), entry.getValue().count, entry.getValue().get(function)));
+					}
+					result.add(series);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The rollup to use if the raw entries do not go back far enough, null if the raw entries should be used
+	 */
+	private Rollup getRollup(HostHistory history) {
+		long oldest = history.getOldest();
+		Rollup minutes = history.getMinutes(), hours = history.getHours();
+		// the rollups only help if they go back further than the raw entries
+		if (from == Long.MIN_VALUE || from >= oldest || Math.min(minutes.getOldest(), hours.getOldest()) >= oldest) {
+			return null;
+		}
+		if (hasPercentiles()) {
+			throw new IllegalArgumentException("The raw entries of '" + history.getHost() + "' only go back to " + oldest + ", percentiles can not be calculated from the rollups");
+		}
+		if (bucket % minutes.getResolution() == 0 && from >= minutes.getOldest()) {
+			return minutes;
+		}
+		else if (bucket % hours.getResolution() == 0) {
+			return hours;
+		}
+		throw new IllegalArgumentException("The raw entries of '" + history.getHost() + "' only go back to " + oldest + ", the bucket must be a multiple of " + (from >= minutes.getOldest() ? "a minute" : "an hour") + " to use the rollups");
+	}
+
+	private long getStart(long timestamp) {
+		if (bucket == 0) {
+			return from == Long.MIN_VALUE ? 0 : from;
+		}
+		return timestamp - (timestamp % bucket);
+	}
+
+	private Map<Long, Bucket> aggregate(HostHistory history, HistoryField field, long [] times, double [] values) {
+		int amount = history.read(from, to, field, times, values);
+		Map<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+		Bucket current = null;
+		long currentStart = 0;
+		for (int i = 0; i < amount; i++) {
+			long start = getStart(times[i]);
+			if (current == null || start != currentStart) {
+				current = buckets.get(start);
+				if (current == null) {
+					current = new Bucket();
+					buckets.put(start, current);
+				}
+				currentStart = start;
+			}
+			current.add(times[i], values[i]);
+		}
+		return buckets;
+	}
+
+	private Map<Long, Bucket> aggregate(Rollup rollup, HistoryField field) {
+		Map<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+		for (RollupEntry entry : rollup.snapshot(from, to)) {
+			long start = getStart(entry.getStart().getTime());
+			Bucket bucket = buckets.get(start);
+			if (bucket == null) {
+				bucket = new Bucket();
+				buckets.put(start, bucket);
+			}
+			bucket.add(entry.getStart().getTime(), entry.getCount(), getStatistic(entry, field));
+		}
+		return buckets;
+	}
+
+	private static Statistic getStatistic(RollupEntry entry, HistoryField field) {
+		switch(field) {
+			case LOAD: return entry.getLoad();
+			case HEAP_USED: return entry.getHeapUsed();
+			case NON_HEAP_USED: return entry.getNonHeapUsed();
+			default: return entry.getThreads();
+		}
+	}
+
+	private static class Bucket {
+		private long count, lastTime = Long.MIN_VALUE;
+		private double sum, min = Double.MAX_VALUE, max = -Double.MAX_VALUE, last;
+		// the raw values, only kept when reading raw entries, they are sorted when the first percentile is calculated
+		private double [] values;
+		private boolean sorted;
+
+		void add(long time, double value) {
+			if (values == null) {
+				values = new double[8];
+			}
+			else if (count == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			values[(int) count] = value;
+			add(time, 1, value, value, value, value);
+		}
+
+		void add(long time, long count, Statistic statistic) {
+			add(time, count, statistic.getAvg() * count, statistic.getMin(), statistic.getMax(), statistic.getLast());
+		}
+
+		private void add(long time, long count, double sum, double min, double max, double last) {
+			this.count += count;
+			this.sum += sum;
+			this.min = Math.min(this.min, min);
+			this.max = Math.max(this.max, max);
+			if (time >= lastTime) {
+				lastTime = time;
+				this.last = last;
+			}
+		}
+
+		double get(String function) {
+			if (function.equals("count")) {
+				return count;
+			}
+			else if (function.equals("avg")) {
+				return sum / count;
+			}
+			else if (function.equals("min")) {
+				return min;
+			}
+			else if (function.equals("max")) {
+				return max;
+			}
+			else if (function.equals("last")) {
+				return last;
+			}
+			if (!sorted) {
+				Arrays.sort(values, 0, (int) count);
+				sorted = true;
+			}
+			// nearest rank
+			int rank = (int) Math.ceil(getPercentile(function) / 100 * count);
+			return values[Math.max(0, rank - 1)];
+		}
+	}
+}
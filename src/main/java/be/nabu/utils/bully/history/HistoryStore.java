@@ -0,0 +1,266 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.utils.bully.BullyClock;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.utils.SystemClock;
+
+/**
+ * Keeps a fixed amount of history per host and assigns the sequences used for replication.
+ * If a directory is given, the history and the rollups of every host are also kept in memory mapped files there so they survive a restart.
+ * The sequences follow the clock (in ms) of the store but never go back, a restarted master continues after both the time and the newest sequence it stored.
+ */
+public class HistoryStore implements Closeable {
+
+	private static final String EXTENSION = ".history", MINUTES_EXTENSION = ".minutes", HOURS_EXTENSION = ".hours";
+
+	private int capacity;
+	private ConcurrentMap<String, HostHistory> hosts = new ConcurrentHashMap<String, HostHistory>();
+	private AtomicLong sequence = new AtomicLong();
+	private BullyClock clock = SystemClock.getInstance();
+
+	private File directory;
+	// the amount of minute and hour buckets kept per host
+	private int minutes = HostHistory.DEFAULT_MINUTES, hours = HostHistory.DEFAULT_HOURS;
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	public HistoryStore(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * A store that persists the history in the given directory, any history that is already there is loaded
+	 */
+	public HistoryStore(int capacity, File directory) throws IOException {
+		this(capacity, HostHistory.DEFAULT_MINUTES, HostHistory.DEFAULT_HOURS, directory);
+	}
+
+	/**
+	 * Keeps the given amount of raw entries, minute buckets and hour buckets per host, the directory is optional
+	 */
+	public HistoryStore(int capacity, int minutes, int hours, File directory) throws IOException {
+		this(capacity);
+		this.minutes = Math.max(1, minutes);
+		this.hours = Math.max(1, hours);
+		if (directory == null) {
+			return;
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create history directory: " + directory);
+		}
+		this.directory = directory;
+		File [] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(EXTENSION)) {
+					String host = URLDecoder.decode(file.getName().substring(0, file.getName().length() - EXTENSION.length()), "UTF-8");
+					HostHistory history = open(host, file);
+					hosts.put(host, history);
+					// we continue after the newest sequence we stored
+					advanceSequence(history.getLastSequence());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores a new entry, it is assigned the next sequence
+	 */
+	public void push(BullyQuery query) {
+		HostHistory history = getHostHistory(query.getHost());
+		synchronized(history) {
+			// assign the sequence within the lock so the history stays ordered
+			advanceSequence(clock.currentTimeMillis());
+			long next = sequence.incrementAndGet();
+			query.setSequence(next);
+			history.append(query, next);
+		}
+	}
+
+	/**
+	 * Stores an entry we received from the master, it keeps its sequence. Returns false if we already had it.
+	 * Entries without a sequence (from older masters) are always stored.
+	 */
+	public boolean replicate(BullyQuery query) {
+		HostHistory history = getHostHistory(query.getHost());
+		synchronized(history) {
+			if (query.getSequence() > 0 && history.size() > 0 && history.getLastSequence() >= query.getSequence()) {
+				return false;
+			}
+			history.append(query, query.getSequence());
+		}
+		// should we become master, the sequences we assign must be higher than the ones we replicated
+		advanceSequence(query.getSequence());
+		return true;
+	}
+
+	public void advanceSequence(long minimum) {
+		long current = sequence.get();
+		while (current < minimum && !sequence.compareAndSet(current, minimum)) {
+			current = sequence.get();
+		}
+	}
+
+	public long getSequence() {
+		return sequence.get();
+	}
+
+	public BullyClock getClock() {
+		return clock;
+	}
+
+	public void setClock(BullyClock clock) {
+		this.clock = clock;
+	}
+
+	public void clear() {
+		for (HostHistory history : hosts.values()) {
+			history.clear();
+		}
+	}
+
+	/**
+	 * A view on the history of the host, or null if we have nothing for that host
+	 */
+	public List<BullyQuery> getHistory(String host, long since) {
+		HostHistory history = hosts.get(host);
+		return history == null ? null : history.snapshot(since);
+	}
+
+	public HostHistory getHostHistory(String host) {
+		HostHistory history = hosts.get(host);
+		if (history == null) {
+			// synchronized so a file is never opened twice
+			synchronized(this) {
+				history = hosts.get(host);
+				if (history == null) {
+					history = newHostHistory(host);
+					hosts.put(host, history);
+				}
+			}
+		}
+		return history;
+	}
+
+	private HostHistory newHostHistory(String host) {
+		if (directory != null) {
+			try {
+				return open(host, new File(directory, URLEncoder.encode(host, "UTF-8") + EXTENSION));
+			}
+			catch (IOException e) {
+				logger.error("Could not open the history file for '" + host + "', it is kept in memory only", e);
+			}
+		}
+		return new HostHistory(host, capacity, minutes, hours);
+	}
+
+	/**
+	 * Opens the files of a host, the rollups are kept next to the history file
+	 */
+	private HostHistory open(String host, File file) throws IOException {
+		String base = file.getPath().substring(0, file.getPath().length() - EXTENSION.length());
+		return new HostHistory(host, capacity, minutes, hours, new HistoryFile(file, capacity),
+			new RollupFile(new File(base + MINUTES_EXTENSION), Rollup.MINUTE, minutes),
+			new RollupFile(new File(base + HOURS_EXTENSION), Rollup.HOUR, hours));
+	}
+
+	/**
+	 * The buckets of the given resolution (in ms) for the host within the time range, null if there is no such rollup or we have nothing for the host
+	 */
+	public List<RollupEntry> getRollup(String host, long resolution, long from, long to) {
+		HostHistory history = hosts.get(host);
+		Rollup rollup = history == null ? null : history.getRollup(resolution);
+		return rollup == null ? null : rollup.snapshot(from, to);
+	}
+
+	/**
+	 * Makes sure all the persisted history is on disk
+	 */
+	public void flush() {
+		for (HostHistory history : hosts.values()) {
+			history.force();
+		}
+	}
+
+	@Override
+	public void close() {
+		for (HostHistory history : hosts.values()) {
+			if (history.getFile() != null) {
+				try {
+					history.close();
+				}
+				catch (IOException e) {
+					logger.warn("Could not close the history file for '" + history.getHost() + "'", e);
+				}
+			}
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * The history of the host or null if we have nothing for that host
+	 */
+	public HostHistory findHostHistory(String host) {
+		return hosts.get(host);
+	}
+
+	public Collection<HostHistory> getHostHistories() {
+		return hosts.values();
+	}
+
+	/**
+	 * The total amount of entries over all hosts
+	 */
+	public int size() {
+		int size = 0;
+		for (HostHistory history : hosts.values()) {
+			size += history.size();
+		}
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getMinutes() {
+		return minutes;
+	}
+
+	public int getHours() {
+		return hours;
+	}
+}
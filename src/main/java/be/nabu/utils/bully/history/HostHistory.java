@@ -0,0 +1,460 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.StampedLock;
+
+import be.nabu.utils.bully.BullyMetric;
+import be.nabu.utils.bully.BullyQuery;
+
+/**
+ * A fixed capacity ring buffer with the history of a single host, the fields are stored in parallel primitive arrays.
+ * Appends take the write lock of a stamped lock, there is normally only one writer (the host checking in or the replication from the master) so it is never contended.
+ * Readers use an optimistic read: they copy the primitive values of the range they cover and validate afterwards that no write happened in the meantime.
+ * Only a reader that keeps being overtaken falls back to the read lock. The queries of a snapshot are only created when they are accessed.
+ * The snapshot has to copy: the ring is overwritten in place, a view on it would change (or become invalid) under the reader.
+ * If a file is given, every entry is also written to it and the history is reloaded from it on creation.
+ * Next to the raw entries, every entry is rolled up in buckets of a minute and of an hour which are kept for much longer.
+ */
+public class HostHistory {
+
+	// marks an entry without a creation date
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	// by default we keep 6 hours of minutes and 2 weeks of hours
+	public static final int DEFAULT_MINUTES = 6*60, DEFAULT_HOURS = 14*24;
+
+	private String host;
+	private int capacity;
+	private long [] created, sequences, uptimes;
+	private double [] loads, heapUsed, nonHeapUsed;
+	private int [] threadCounts;
+	// the metrics of the sampler per entry, they are only kept in memory
+	private Object [] metrics;
+	// the amount of optimistic reads we try before we wait for the writer
+	private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+	// the total amount of entries ever written, the last capacity entries are still available
+	private volatile long written;
+	// the position of the first entry after the history was last cleared
+	private volatile long first;
+	private final StampedLock lock = new StampedLock();
+	private HistoryFile file;
+	private Rollup minutes, hours;
+
+	public HostHistory(String host, int capacity) {
+		this(host, capacity, DEFAULT_MINUTES, DEFAULT_HOURS);
+	}
+
+	public HostHistory(String host, int capacity, int minutes, int hours) {
+		this.host = host;
+		this.capacity = capacity;
+		this.created = new long[capacity];
+		this.sequences = new long[capacity];
+		this.uptimes = new long[capacity];
+		this.loads = new double[capacity];
+		this.heapUsed = new double[capacity];
+		this.nonHeapUsed = new double[capacity];
+		this.threadCounts = new int[capacity];
+		this.metrics = new Object[capacity];
+		this.minutes = new Rollup(Rollup.MINUTE, minutes);
+		this.hours = new Rollup(Rollup.HOUR, hours);
+	}
+
+	/**
+	 * Loads the history from the given files, the rollup files are optional. The raw entries that are newer than a rollup are added to it.
+	 */
+	HostHistory(String host, int capacity, int minutes, int hours, HistoryFile file, RollupFile minuteFile, RollupFile hourFile) {
+		this(host, capacity, minutes, hours);
+		this.file = file;
+		if (minuteFile != null) {
+			this.minutes = new Rollup(Rollup.MINUTE, minutes, minuteFile);
+		}
+		if (hourFile != null) {
+			this.hours = new Rollup(Rollup.HOUR, hours, hourFile);
+		}
+		// the file uses the same positions so the slots can be copied as is
+		long written = file.getWritten();
+		long start = Math.max(file.getFirst(), written - capacity);
+		for (long position = start; position < written; position++) {
+			int slot = (int) (position % capacity);
+			created[slot] = file.getCreated(slot);
+			sequences[slot] = file.getSequence(slot);
+			uptimes[slot] = file.getUptime(slot);
+			loads[slot] = file.getLoad(slot);
+			heapUsed[slot] = file.getHeapUsed(slot);
+			nonHeapUsed[slot] = file.getNonHeapUsed(slot);
+			threadCounts[slot] = file.getThreadCount(slot);
+			rollup(slot);
+		}
+		this.first = start;
+		this.written = written;
+	}
+
+	void append(BullyQuery query, long sequence) {
+		long stamp = lock.writeLock();
+		try {
+			write(query, sequence);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private void write(BullyQuery query, long sequence) {
+		long position = written;
+		int slot = (int) (position % capacity);
+		created[slot] = query.getCreated() == null ? NO_DATE : query.getCreated().getTime();
+		sequences[slot] = sequence;
+		uptimes[slot] = query.getUptime();
+		loads[slot] = query.getLoad();
+		heapUsed[slot] = query.getHeapUsed();
+		nonHeapUsed[slot] = query.getNonHeapUsed();
+		threadCounts[slot] = query.getCurrentThreadCount();
+		metrics[slot] = query.getMetrics();
+		rollup(slot);
+		if (file != null) {
+			file.write(position, created[slot], sequence, uptimes[slot], loads[slot], heapUsed[slot], nonHeapUsed[slot], threadCounts[slot]);
+		}
+		// publish the entry
+		written = position + 1;
+	}
+
+	private void rollup(int slot) {
+		if (created[slot] != NO_DATE) {
+			minutes.add(created[slot], loads[slot], heapUsed[slot], nonHeapUsed[slot], threadCounts[slot]);
+			hours.add(created[slot], loads[slot], heapUsed[slot], nonHeapUsed[slot], threadCounts[slot]);
+		}
+	}
+
+	/**
+	 * The rollup of this host in buckets of a minute
+	 */
+	public Rollup getMinutes() {
+		return minutes;
+	}
+
+	/**
+	 * The rollup of this host in buckets of an hour
+	 */
+	public Rollup getHours() {
+		return hours;
+	}
+
+	/**
+	 * The rollup with the given resolution (in ms) or null if there is none
+	 */
+	public Rollup getRollup(long resolution) {
+		if (resolution == Rollup.MINUTE) {
+			return minutes;
+		}
+		else if (resolution == Rollup.HOUR) {
+			return hours;
+		}
+		return null;
+	}
+
+	// the rollups are not cleared, they only take samples that are newer than what they have
+	void clear() {
+		long stamp = lock.writeLock();
+		try {
+			first = written;
+			if (file != null) {
+				file.setFirst(first);
+			}
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	HistoryFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Makes sure everything that is persisted is on disk
+	 */
+	void force() {
+		if (file != null) {
+			file.force();
+		}
+		if (minutes.getFile() != null) {
+			minutes.getFile().force();
+		}
+		if (hours.getFile() != null) {
+			hours.getFile().force();
+		}
+	}
+
+	void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+		if (minutes.getFile() != null) {
+			minutes.getFile().close();
+		}
+		if (hours.getFile() != null) {
+			hours.getFile().close();
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return (int) Math.min(written - first, capacity);
+	}
+
+	/**
+	 * The sequence of the last entry or 0 if there are none
+	 */
+	public long getLastSequence() {
+		long written = this.written;
+		return written == first ? 0 : sequences[(int) ((written - 1) % capacity)];
+	}
+
+	/**
+	 * A view on all the entries that are currently available
+	 */
+	public List<BullyQuery> snapshot() {
+		return snapshot(0);
+	}
+
+	/**
+	 * A view on the entries with a sequence higher than the given one
+	 */
+	public List<BullyQuery> snapshot(long since) {
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				Snapshot snapshot = snapshotSince(since);
+				// if the writer has been at work while we were reading, read again
+				if (lock.validate(stamp)) {
+					return snapshot;
+				}
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return snapshotSince(since);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	// an optimistic read can see a torn state, this must never fail on it, the result is discarded anyway
+	private Snapshot snapshotSince(long since) {
+		long end = written;
+		long start = Math.min(end, Math.max(first, end - capacity));
+		if (since > 0) {
+			// the sequences are ascending, search for the first one we need
+			long low = start, high = end;
+			while (low < high) {
+				long middle = (low + high) >>> 1;
+				if (sequences[(int) (middle % capacity)] > since) {
+					high = middle;
+				}
+				else {
+					low = middle + 1;
+				}
+			}
+			start = low;
+		}
+		return new Snapshot(start, (int) (end - start));
+	}
+
+	/**
+	 * A view on the entries created within the given time range (in ms, the end is exclusive), the entries of a host are assumed to be in chronological order
+	 */
+	public List<BullyQuery> snapshot(long from, long to) {
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				Snapshot snapshot = snapshotBetween(from, to);
+				if (lock.validate(stamp)) {
+					return snapshot;
+				}
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return snapshotBetween(from, to);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private Snapshot snapshotBetween(long from, long to) {
+		long end = written;
+		long start = Math.min(end, Math.max(first, end - capacity));
+		while (start < end && isBefore(start, from)) {
+			start++;
+		}
+		long stop = start;
+		while (stop < end && isBefore(stop, to)) {
+			stop++;
+		}
+		return new Snapshot(start, (int) (stop - start));
+	}
+
+	private boolean isBefore(long position, long timestamp) {
+		long date = created[(int) (position % capacity)];
+		return date == NO_DATE || date < timestamp;
+	}
+
+	/**
+	 * The creation time of the oldest entry or Long.MAX_VALUE if there are none
+	 */
+	public long getOldest() {
+		long end = written;
+		for (long position = Math.max(first, end - capacity); position < end; position++) {
+			long date = created[(int) (position % capacity)];
+			if (date != NO_DATE) {
+				return date;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Copies the creation time and the value of the field of the entries within the time range into the arrays, which should be at least as large as the capacity.
+	 * Returns the amount of entries copied, no objects are created.
+	 */
+	int read(long from, long to, HistoryField field, long [] times, double [] values) {
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				int amount = readBetween(from, to, field, times, values);
+				if (lock.validate(stamp)) {
+					return amount;
+				}
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return readBetween(from, to, field, times, values);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private int readBetween(long from, long to, HistoryField field, long [] times, double [] values) {
+		long end = written;
+		long start = Math.max(first, end - capacity);
+		int amount = 0;
+		for (long position = start; position < end; position++) {
+			int slot = (int) (position % capacity);
+			long date = created[slot];
+			if (date == NO_DATE || date < from || date >= to) {
+				continue;
+			}
+			times[amount] = date;
+			values[amount++] = getValue(slot, field);
+		}
+		return amount;
+	}
+
+	private double getValue(int slot, HistoryField field) {
+		switch(field) {
+			case LOAD: return loads[slot];
+			case HEAP_USED: return heapUsed[slot];
+			case NON_HEAP_USED: return nonHeapUsed[slot];
+			default: return threadCounts[slot];
+		}
+	}
+
+	/**
+	 * Copies the positions from start (inclusive) to end (exclusive) of the ring into the target array which has the same type
+	 */
+	private void copy(Object source, Object target, long start, int size) {
+		int slot = (int) (start % capacity);
+		int first = Math.min(size, capacity - slot);
+		System.arraycopy(source, slot, target, 0, first);
+		if (first < size) {
+			System.arraycopy(source, 0, target, first, size - first);
+		}
+	}
+
+	private class Snapshot extends AbstractList<BullyQuery> implements RandomAccess {
+
+		private int size;
+		private long [] created, sequences, uptimes;
+		private double [] loads, heapUsed, nonHeapUsed;
+		private int [] threadCounts;
+		private Object [] metrics;
+
+		public Snapshot(long start, int size) {
+			this.size = size;
+			this.created = new long[size];
+			this.sequences = new long[size];
+			this.uptimes = new long[size];
+			this.loads = new double[size];
+			this.heapUsed = new double[size];
+			this.nonHeapUsed = new double[size];
+			this.threadCounts = new int[size];
+			this.metrics = new Object[size];
+			copy(HostHistory.this.created, created, start, size);
+			copy(HostHistory.this.sequences, sequences, start, size);
+			copy(HostHistory.this.uptimes, uptimes, start, size);
+			copy(HostHistory.this.loads, loads, start, size);
+			copy(HostHistory.this.heapUsed, heapUsed, start, size);
+			copy(HostHistory.this.nonHeapUsed, nonHeapUsed, start, size);
+			copy(HostHistory.this.threadCounts, threadCounts, start, size);
+			copy(HostHistory.this.metrics, metrics, start, size);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public BullyQuery get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+			}
+			BullyQuery query = new BullyQuery();
+			query.setHost(host);
+			long date = created[index];
+			query.setCreated(date == NO_DATE ? null : new Date(date));
+			query.setSequence(sequences[index]);
+			query.setUptime(uptimes[index]);
+			query.setLoad(loads[index]);
+			query.setHeapUsed(heapUsed[index]);
+			query.setNonHeapUsed(nonHeapUsed[index]);
+			query.setCurrentThreadCount(threadCounts[index]);
+			query.setMetrics((List<BullyMetric>) metrics[index]);
+			return query;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
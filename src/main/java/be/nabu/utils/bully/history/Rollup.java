@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A fixed amount of buckets of a fixed resolution with the min, max, sum and last value of every field, the memory use does not depend on how many samples go in.
+ * Samples are added as they are pushed, samples that are not newer than the last one (e.g. a replicated entry we already had) are ignored.
+ * If the rollup has a file, every bucket is written to it as it changes so the rollup survives a restart.
+ */
+public class Rollup {
+
+	public static final long MINUTE = 60*1000, HOUR = 60*MINUTE;
+
+	static final int LOAD = 0, HEAP_USED = 1, NON_HEAP_USED = 2, THREADS = 3, FIELDS = 4;
+
+	private long resolution;
+	private int capacity;
+	private long [] starts;
+	private int [] counts;
+	// per slot, the values of all the fields next to one another
+	private double [] min, max, sum, last;
+	// the total amount of buckets ever started, the last capacity buckets are still available
+	private long written;
+	// the timestamp of the newest sample
+	private long newest = Long.MIN_VALUE;
+	private RollupFile file;
+
+	public Rollup(long resolution, int capacity) {
+		this.resolution = resolution;
+		this.capacity = Math.max(1, capacity);
+		this.starts = new long[this.capacity];
+		this.counts = new int[this.capacity];
+		this.min = new double[this.capacity * FIELDS];
+		this.max = new double[this.capacity * FIELDS];
+		this.sum = new double[this.capacity * FIELDS];
+		this.last = new double[this.capacity * FIELDS];
+	}
+
+	Rollup(long resolution, int capacity, RollupFile file) {
+		this(resolution, capacity);
+		this.file = file;
+		// the file uses the same slots so they can be copied as is
+		written = file.getWritten();
+		for (long position = Math.max(0, written - this.capacity); position < written; position++) {
+			int slot = (int) (position % this.capacity);
+			starts[slot] = file.getStart(slot);
+			counts[slot] = file.getCount(slot);
+			file.read(slot, min, max, sum, last);
+		}
+		newest = file.getNewest();
+	}
+
+	synchronized void add(long timestamp, double load, double heapUsed, double nonHeapUsed, double threads) {
+		if (timestamp <= newest) {
+			return;
+		}
+		newest = timestamp;
+		long start = timestamp - (timestamp % resolution);
+		int slot;
+		if (written == 0 || starts[(int) ((written - 1) % capacity)] != start) {
+			slot = (int) (written % capacity);
+			starts[slot] = start;
+			counts[slot] = 0;
+			written++;
+		}
+		else {
+			slot = (int) ((written - 1) % capacity);
+		}
+		add(slot, LOAD, load);
+		add(slot, HEAP_USED, heapUsed);
+		add(slot, NON_HEAP_USED, nonHeapUsed);
+		add(slot, THREADS, threads);
+		counts[slot]++;
+		if (file != null) {
+			file.write(slot, starts[slot], counts[slot], min, max, sum, last, written, newest);
+		}
+	}
+
+	private void add(int slot, int field, double value) {
+		int index = slot * FIELDS + field;
+		if (counts[slot] == 0) {
+			min[index] = value;
+			max[index] = value;
+			sum[index] = value;
+		}
+		else {
+			min[index] = Math.min(min[index], value);
+			max[index] = Math.max(max[index], value);
+			sum[index] += value;
+		}
+		last[index] = value;
+	}
+
+	/**
+	 * The start of the oldest bucket or Long.MAX_VALUE if there are none
+	 */
+	public synchronized long getOldest() {
+		return written == 0 ? Long.MAX_VALUE : starts[(int) (Math.max(0, written - capacity) % capacity)];
+	}
+
+	public long getResolution() {
+		return resolution;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	RollupFile getFile() {
+		return file;
+	}
+
+	/**
+	 * All the buckets that are available, oldest first
+	 */
+	public List<RollupEntry> snapshot() {
+		return snapshot(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * The buckets that overlap with the given time range (in ms, the end is exclusive), oldest first
+	 */
+	public synchronized List<RollupEntry> snapshot(long from, long to) {
+		List<RollupEntry> entries = new ArrayList<RollupEntry>();
+		for (long position = Math.max(0, written - capacity); position < written; position++) {
+			int slot = (int) (position % capacity);
+			if (starts[slot] + resolution <= from || starts[slot] >= to) {
+				continue;
+			}
+			RollupEntry entry = new RollupEntry();
+			entry.setStart(new Date(starts[slot]));
+			entry.setResolution(resolution);
+			entry.setCount(counts[slot]);
+			entry.setLoad(getStatistic(slot, LOAD));
+			entry.setHeapUsed(getStatistic(slot, HEAP_USED));
+			entry.setNonHeapUsed(getStatistic(slot, NON_HEAP_USED));
+			entry.setThreads(getStatistic(slot, THREADS));
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	private Statistic getStatistic(int slot, int field) {
+		int index = slot * FIELDS + field;
+		return new Statistic(min[index], max[index], sum[index] / counts[slot], last[index]);
+	}
+}
@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.util.Date;
+
+/**
+ * The aggregated samples of a host within one bucket of a rollup
+ */
+public class RollupEntry {
+
+	private Date start;
+	// the size of the bucket in ms
+	private long resolution;
+	// the amount of samples in the bucket
+	private int count;
+	private Statistic load, heapUsed, nonHeapUsed, threads;
+
+	public Date getStart() {
+		return start;
+	}
+
+	public void setStart(Date start) {
+		this.start = start;
+	}
+
+	public long getResolution() {
+		return resolution;
+	}
+
+	public void setResolution(long resolution) {
+		this.resolution = resolution;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	public Statistic getLoad() {
+		return load;
+	}
+
+	public void setLoad(Statistic load) {
+		this.load = load;
+	}
+
+	public Statistic getHeapUsed() {
+		return heapUsed;
+	}
+
+	public void setHeapUsed(Statistic heapUsed) {
+		this.heapUsed = heapUsed;
+	}
+
+	public Statistic getNonHeapUsed() {
+		return nonHeapUsed;
+	}
+
+	public void setNonHeapUsed(Statistic nonHeapUsed) {
+		this.nonHeapUsed = nonHeapUsed;
+	}
+
+	public Statistic getThreads() {
+		return threads;
+	}
+
+	public void setThreads(Statistic threads) {
+		this.threads = threads;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory mapped copy of the buckets of a single rollup, it uses the same slots as the rollup so it can be reloaded as is.
+ * If the resolution or the amount of buckets changed, the file starts over and the rollup is rebuilt from the raw entries.
+ */
+class RollupFile implements Closeable {
+
+	private static final int MAGIC = 0xB1A5F12E, VERSION = 1;
+	// magic, version, capacity, record size, resolution, written, newest
+	private static final int HEADER_SIZE = 40;
+	// start, count and padding, followed by the min, max, sum and last of every field
+	static final int RECORD_SIZE = 16 + Rollup.FIELDS * 4 * 8;
+
+	private static final int RESOLUTION = 16, WRITTEN = 24, NEWEST = 32;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+
+	RollupFile(File target, long resolution, int capacity) throws IOException {
+		boolean exists = target.exists() && target.length() >= HEADER_SIZE;
+		this.file = new RandomAccessFile(target, "rw");
+		this.channel = file.getChannel();
+		this.capacity = capacity;
+		if (exists) {
+			map(channel.size());
+			exists = buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == capacity && buffer.getInt(12) == RECORD_SIZE && buffer.getLong(RESOLUTION) == resolution;
+		}
+		if (!exists) {
+			channel.truncate(0);
+			map(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, capacity);
+			buffer.putInt(12, RECORD_SIZE);
+			buffer.putLong(RESOLUTION, resolution);
+			buffer.putLong(WRITTEN, 0);
+			buffer.putLong(NEWEST, Long.MIN_VALUE);
+		}
+	}
+
+	private void map(long size) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	long getWritten() {
+		return buffer.getLong(WRITTEN);
+	}
+
+	long getNewest() {
+		return buffer.getLong(NEWEST);
+	}
+
+	long getStart(int slot) {
+		return buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE);
+	}
+
+	int getCount(int slot) {
+		return buffer.getInt(HEADER_SIZE + slot * RECORD_SIZE + 8);
+	}
+
+	/**
+	 * Copies the statistics of the slot into the given arrays (which have the same layout as the file)
+	 */
+	void read(int slot, double [] min, double [] max, double [] sum, double [] last) {
+		int offset = HEADER_SIZE + slot * RECORD_SIZE + 16;
+		for (int field = 0; field < Rollup.FIELDS; field++) {
+			int index = slot * Rollup.FIELDS + field;
+			min[index] = buffer.getDouble(offset);
+			max[index] = buffer.getDouble(offset + 8);
+			sum[index] = buffer.getDouble(offset + 16);
+			last[index] = buffer.getDouble(offset + 24);
+			offset += 32;
+		}
+	}
+
+	/**
+	 * Writes the slot, the position and the newest sample are only updated afterwards
+	 */
+	void write(int slot, long start, int count, double [] min, double [] max, double [] sum, double [] last, long written, long newest) {
+		int offset = HEADER_SIZE + slot * RECORD_SIZE;
+		buffer.putLong(offset, start);
+		buffer.putInt(offset + 8, count);
+		offset += 16;
+		for (int field = 0; field < Rollup.FIELDS; field++) {
+			int index = slot * Rollup.FIELDS + field;
+			buffer.putDouble(offset, min[index]);
+			buffer.putDouble(offset + 8, max[index]);
+			buffer.putDouble(offset + 16, sum[index]);
+			buffer.putDouble(offset + 24, last[index]);
+			offset += 32;
+		}
+		buffer.putLong(WRITTEN, written);
+		buffer.putLong(NEWEST, newest);
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		// the mapping itself is released when the buffer is collected
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,333 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import be.nabu.utils.bully.BullyClient;
+
+/**
+ * Collects what the client is doing, the recording methods are called on the election and heartbeat paths and do not allocate once a peer is known.
+ */
+public class BullyMetrics implements BullyMetricsMXBean {
+
+	private BullyClient client;
+	private LongAdder elections = new LongAdder(), electionsWon = new LongAdder();
+	private LongAdder inquiriesSent = new LongAdder(), inquiriesReceived = new LongAdder();
+	private LongAdder victoriesSent = new LongAdder(), victoriesReceived = new LongAdder();
+	private LongAdder conflictsSent = new LongAdder(), conflictsReceived = new LongAdder();
+	private LongAdder heartbeats = new LongAdder(), failedHeartbeats = new LongAdder();
+	private Histogram electionTime = new Histogram(), failoverTime = new Histogram();
+	private ConcurrentMap<String, Histogram> roundTrips = new ConcurrentHashMap<String, Histogram>();
+	// when (in nanotime) we lost our master, 0 if we have one
+	private AtomicLong masterlessSince = new AtomicLong();
+	private AtomicLong masterlessTotal = new AtomicLong();
+	private List<BullyMetricsListener> listeners = new CopyOnWriteArrayList<BullyMetricsListener>();
+
+	public BullyMetrics(BullyClient client) {
+		this.client = client;
+		// until the first election we are without a master
+		masterlessSince.set(client.getClock().nanoTime());
+	}
+
+	/**
+	 * The time without a master is counted again from now on the new clock
+	 */
+	public void clockChanged() {
+		long since = masterlessSince.get();
+		if (since != 0) {
+			long now = client.getClock().nanoTime();
+			masterlessSince.compareAndSet(since, now == 0 ? 1 : now);
+		}
+	}
+
+	public void electionFinished(long duration, boolean won) {
+		elections.increment();
+		if (won) {
+			electionsWon.increment();
+		}
+		electionTime.record(duration);
+	}
+
+	public void masterLost(long now) {
+		// nanotime can be 0, make sure we never mistake it for having a master
+		masterlessSince.compareAndSet(0, now == 0 ? 1 : now);
+	}
+
+	public void masterFound(String master, long now) {
+		for (BullyMetricsListener listener : listeners) {
+			listener.masterFound(master);
+		}
+		long since = masterlessSince.getAndSet(0);
+		if (since != 0) {
+			long duration = TimeUnit.NANOSECONDS.toMillis(now - since);
+			masterlessTotal.addAndGet(duration);
+			failoverTime.record(duration);
+		}
+	}
+
+	public void inquiriesSent(int amount) {
+		inquiriesSent.add(amount);
+	}
+
+	public void inquiryReceived() {
+		inquiriesReceived.increment();
+	}
+
+	public void victoriesSent(int amount) {
+		victoriesSent.add(amount);
+	}
+
+	public void victoryReceived() {
+		victoriesReceived.increment();
+	}
+
+	public void conflictSent() {
+		conflictsSent.increment();
+	}
+
+	public void conflictReceived() {
+		conflictsReceived.increment();
+	}
+
+	public void heartbeat(String peer, long roundTrip) {
+		heartbeats.increment();
+		getRoundTrip(peer).record(roundTrip);
+	}
+
+	public void heartbeatFailed(String peer) {
+		failedHeartbeats.increment();
+	}
+
+	public Histogram getRoundTrip(String peer) {
+		Histogram histogram = roundTrips.get(peer);
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram();
+			histogram = roundTrips.putIfAbsent(peer, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+				for (BullyMetricsListener listener : listeners) {
+					listener.roundTripAdded(peer, histogram);
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Stops tracking the round trip to a peer that is no longer a member
+	 */
+	public void removeRoundTrip(String peer) {
+		Histogram histogram = roundTrips.remove(peer);
+		if (histogram != null) {
+			for (BullyMetricsListener listener : listeners) {
+				listener.roundTripRemoved(peer, histogram);
+			}
+		}
+	}
+
+	/**
+	 * The round trips of all the peers we measured so far
+	 */
+	public Map<String, Histogram> getRoundTrips() {
+		return Collections.unmodifiableMap(roundTrips);
+	}
+
+	public void addListener(BullyMetricsListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(BullyMetricsListener listener) {
+		listeners.remove(listener);
+	}
+
+	public Histogram getElectionTime() {
+		return electionTime;
+	}
+
+	public Histogram getFailoverTime() {
+		return failoverTime;
+	}
+
+	@Override
+	public String getHost() {
+		return client.getHost();
+	}
+
+	@Override
+	public String getCurrentMaster() {
+		return client.getCurrentMaster();
+	}
+
+	@Override
+	public String getRole() {
+		return client.getElectionState().getRole().name();
+	}
+
+	@Override
+	public long getTerm() {
+		return client.getTerm();
+	}
+
+	@Override
+	public long getMasterTerm() {
+		return client.getMasterTerm();
+	}
+
+	@Override
+	public long getElections() {
+		return elections.sum();
+	}
+
+	@Override
+	public long getElectionsWon() {
+		return electionsWon.sum();
+	}
+
+	@Override
+	public double getElectionTimeMean() {
+		return electionTime.getMean();
+	}
+
+	@Override
+	public long getElectionTimeMax() {
+		return electionTime.getMax();
+	}
+
+	@Override
+	public long getElectionTime99() {
+		return electionTime.getPercentile(0.99);
+	}
+
+	@Override
+	public long getFailovers() {
+		return failoverTime.getCount();
+	}
+
+	@Override
+	public long getLastFailoverTime() {
+		return failoverTime.getLast();
+	}
+
+	@Override
+	public long getFailoverTimeMax() {
+		return failoverTime.getMax();
+	}
+
+	@Override
+	public long getFailoverTime99() {
+		return failoverTime.getPercentile(0.99);
+	}
+
+	@Override
+	public long getTimeWithoutMaster() {
+		long total = masterlessTotal.get();
+		long since = masterlessSince.get();
+		if (since != 0) {
+			total += TimeUnit.NANOSECONDS.toMillis(client.getClock().nanoTime() - since);
+		}
+		return total;
+	}
+
+	@Override
+	public long getInquiriesSent() {
+		return inquiriesSent.sum();
+	}
+
+	@Override
+	public long getInquiriesReceived() {
+		return inquiriesReceived.sum();
+	}
+
+	@Override
+	public long getVictoriesSent() {
+		return victoriesSent.sum();
+	}
+
+	@Override
+	public long getVictoriesReceived() {
+		return victoriesReceived.sum();
+	}
+
+	@Override
+	public long getConflictsSent() {
+		return conflictsSent.sum();
+	}
+
+	@Override
+	public long getConflictsReceived() {
+		return conflictsReceived.sum();
+	}
+
+	@Override
+	public long getHeartbeats() {
+		return heartbeats.sum();
+	}
+
+	@Override
+	public long getFailedHeartbeats() {
+		return failedHeartbeats.sum();
+	}
+
+	@Override
+	public Map<String, Long> getHeartbeatRoundTrip() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Histogram> entry : roundTrips.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getLast());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getHeartbeatRoundTripMax() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Histogram> entry : roundTrips.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getMax());
+		}
+		return result;
+	}
+
+	@Override
+	public long getHistorySize() {
+		return client.getHistorySize();
+	}
+
+	@Override
+	public int getStreamSubscribers() {
+		return client.getEvents().getSubscriberCount();
+	}
+
+	@Override
+	public long getStreamEventsDropped() {
+		return client.getEvents().getDropped();
+	}
+
+	@Override
+	public long getStreamSubscribersDisconnected() {
+		return client.getEvents().getDisconnected();
+	}
+}
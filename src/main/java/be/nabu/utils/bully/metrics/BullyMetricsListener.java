@@ -0,0 +1,36 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.metrics;
+
+/**
+ * Is told when the metrics start tracking something new, this allows for instance a registry to add meters as they become relevant.
+ */
+public interface BullyMetricsListener {
+	/**
+	 * We started measuring the round trip to a new peer
+	 */
+	public void roundTripAdded(String peer, Histogram roundTrip);
+	/**
+	 * The peer left the cluster, we no longer measure the round trip to it
+	 */
+	public void roundTripRemoved(String peer, Histogram roundTrip);
+	/**
+	 * We accepted a master, this is called for every new mastership, not only for masters we haven't seen before
+	 */
+	public void masterFound(String master);
+}
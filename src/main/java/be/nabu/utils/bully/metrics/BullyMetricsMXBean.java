@@ -0,0 +1,66 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.metrics;
+
+import java.util.Map;
+
+/**
+ * The metrics of a single bully client as they are exposed over JMX, all durations are in ms.
+ */
+public interface BullyMetricsMXBean {
+	public String getHost();
+	public String getCurrentMaster();
+	public String getRole();
+	public long getTerm();
+	public long getMasterTerm();
+	
+	public long getElections();
+	public long getElectionsWon();
+	public double getElectionTimeMean();
+	public long getElectionTimeMax();
+	public long getElectionTime99();
+	
+	// the time from losing a master (or starting up) to having a new one
+	public long getFailovers();
+	public long getLastFailoverTime();
+	public long getFailoverTimeMax();
+	public long getFailoverTime99();
+	// the total time we have spent without a master, including the current period if we have no master now
+	public long getTimeWithoutMaster();
+	
+	public long getInquiriesSent();
+	public long getInquiriesReceived();
+	public long getVictoriesSent();
+	public long getVictoriesReceived();
+	public long getConflictsSent();
+	public long getConflictsReceived();
+	
+	public long getHeartbeats();
+	public long getFailedHeartbeats();
+	public Map<String, Long> getHeartbeatRoundTrip();
+	public Map<String, Long> getHeartbeatRoundTripMax();
+	
+	public long getHistorySize();
+	
+	public int getStreamSubscribers();
+	
+	// the samples that were not streamed to a subscriber because it could not keep up
+	public long getStreamEventsDropped();
+	
+	public long getStreamSubscribersDisconnected();
+}
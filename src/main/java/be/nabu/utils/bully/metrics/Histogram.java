@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations (ms) with fixed buckets, recording does not allocate.
+ * Percentiles are estimated as the upper bound of the bucket they fall in.
+ */
+public class Histogram {
+
+	// the upper bounds of the buckets, anything above the last bound goes into an overflow bucket
+	private static final long [] BOUNDS = new long [] { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 30000, 60000, 120000, 300000 };
+
+	private AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private LongAdder count = new LongAdder(), sum = new LongAdder();
+	private AtomicLong max = new AtomicLong();
+	private volatile long last;
+
+	public void record(long duration) {
+		if (duration < 0) {
+			duration = 0;
+		}
+		int bucket = 0;
+		while (bucket < BOUNDS.length && duration > BOUNDS[bucket]) {
+			bucket++;
+		}
+		buckets.incrementAndGet(bucket);
+		count.increment();
+		sum.add(duration);
+		last = duration;
+		long current = max.get();
+		while (duration > current && !max.compareAndSet(current, duration)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getLast() {
+		return last;
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * The percentile (between 0 and 1) is estimated by the upper bound of its bucket, it is never more than the actual max
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			total += buckets.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return i < BOUNDS.length ? Math.min(BOUNDS[i], getMax()) : getMax();
+			}
+		}
+		return getMax();
+	}
+}
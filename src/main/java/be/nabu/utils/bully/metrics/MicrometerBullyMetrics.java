@@ -0,0 +1,213 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+import be.nabu.utils.bully.BullyClient;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Binds the metrics of a client to a micrometer registry, micrometer is an optional dependency so this class should only be used if it is available.
+ * All meters are read from the client when the registry is scraped, nothing is recorded twice.
+ * The round trip timers and the current master gauges are registered as the peers and the masters become known, the timer of a peer is removed when it leaves the cluster.
+ */
+public class MicrometerBullyMetrics implements MeterBinder {
+
+	private BullyClient client;
+	private Tags tags;
+
+	public MicrometerBullyMetrics(BullyClient client) {
+		this.client = client;
+		this.tags = Tags.of("host", client.getHost());
+	}
+
+	@Override
+	public void bindTo(final MeterRegistry registry) {
+		final BullyMetrics metrics = client.getMetrics();
+		// the masters we registered a gauge for in this registry
+		final Set<String> masters = ConcurrentHashMap.newKeySet();
+		// the round trip timers we registered in this registry
+		final Map<String, Meter> roundTrips = new ConcurrentHashMap<String, Meter>();
+		counter(registry, "bully.elections", "Elections held by this server", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getElections();
+			}
+		});
+		counter(registry, "bully.elections.won", "Elections won by this server", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getElectionsWon();
+			}
+		});
+		timer(registry, "bully.election.duration", "The duration of the elections held by this server", metrics.getElectionTime());
+		timer(registry, "bully.failover.duration", "The time from losing a master to having a new one", metrics.getFailoverTime());
+		TimeGauge.builder("bully.failover.max", metrics.getFailoverTime(), TimeUnit.MILLISECONDS, new ToDoubleFunction<Histogram>() {
+			@Override
+			public double applyAsDouble(Histogram histogram) {
+				return histogram.getMax();
+			}
+		}).tags(tags).description("The longest time it took to get a new master").register(registry);
+		TimeGauge.builder("bully.masterless.time", metrics, TimeUnit.MILLISECONDS, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getTimeWithoutMaster();
+			}
+		}).tags(tags).description("The total time this server has been without a master").register(registry);
+		counter(registry, "bully.inquiries.sent", "Inquiries sent to higher ranked servers", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getInquiriesSent();
+			}
+		});
+		counter(registry, "bully.inquiries.received", "Inquiries received from lower ranked servers", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getInquiriesReceived();
+			}
+		});
+		counter(registry, "bully.victories.sent", "Victories sent to lower ranked servers", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getVictoriesSent();
+			}
+		});
+		counter(registry, "bully.victories.received", "Victories received", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getVictoriesReceived();
+			}
+		});
+		counter(registry, "bully.conflicts.sent", "Victories that were refused with a 409", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getConflictsSent();
+			}
+		});
+		counter(registry, "bully.conflicts.received", "Victories of this server that were refused with a 409", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getConflictsReceived();
+			}
+		});
+		counter(registry, "bully.heartbeats", "Successful heartbeats to the master", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getHeartbeats();
+			}
+		});
+		counter(registry, "bully.heartbeats.failed", "Failed heartbeats to the master", metrics, new ToDoubleFunction<BullyMetrics>() {
+			@Override
+			public double applyAsDouble(BullyMetrics metrics) {
+				return metrics.getFailedHeartbeats();
+			}
+		});
+		// register the listener first so we can not miss anything, registering the same meter twice is harmless
+		metrics.addListener(new BullyMetricsListener() {
+			@Override
+			public void roundTripAdded(String peer, Histogram roundTrip) {
+				roundTrip(registry, roundTrips, peer, roundTrip);
+			}
+			@Override
+			public void roundTripRemoved(String peer, Histogram roundTrip) {
+				Meter meter = roundTrips.remove(peer);
+				if (meter != null) {
+					registry.remove(meter);
+				}
+			}
+			@Override
+			public void masterFound(String master) {
+				master(registry, masters, master);
+			}
+		});
+		for (Map.Entry<String, Histogram> entry : metrics.getRoundTrips().entrySet()) {
+			roundTrip(registry, roundTrips, entry.getKey(), entry.getValue());
+		}
+		String currentMaster = client.getCurrentMaster();
+		if (currentMaster != null) {
+			master(registry, masters, currentMaster);
+		}
+		Gauge.builder("bully.term", client, new ToDoubleFunction<BullyClient>() {
+			@Override
+			public double applyAsDouble(BullyClient client) {
+				return client.getTerm();
+			}
+		}).tags(tags).description("The highest election term this server has seen").register(registry);
+		Gauge.builder("bully.master", client, new ToDoubleFunction<BullyClient>() {
+			@Override
+			public double applyAsDouble(BullyClient client) {
+				return client.isCurrentMaster() ? 1 : 0;
+			}
+		}).tags(tags).description("Whether this server is the master").register(registry);
+		Gauge.builder("bully.history.size", client, new ToDoubleFunction<BullyClient>() {
+			@Override
+			public double applyAsDouble(BullyClient client) {
+				return client.getHistorySize();
+			}
+		}).tags(tags).description("The amount of entries in the history store").register(registry);
+	}
+
+	private void roundTrip(MeterRegistry registry, Map<String, Meter> roundTrips, String peer, Histogram roundTrip) {
+		roundTrips.put(peer, timer(registry, "bully.heartbeat.rtt", "The round trip time of the heartbeats", roundTrip, "peer", peer));
+	}
+
+	/**
+	 * A gauge per master that is 1 as long as it is the current master, dashboards can show the one that is set
+	 */
+	private void master(MeterRegistry registry, Set<String> masters, final String master) {
+		if (masters.add(master)) {
+			Gauge.builder("bully.master.current", client, new ToDoubleFunction<BullyClient>() {
+				@Override
+				public double applyAsDouble(BullyClient client) {
+					return master.equals(client.getCurrentMaster()) ? 1 : 0;
+				}
+			}).tags(tags.and("master", master)).description("Whether the server in the master tag is the current master according to this server").register(registry);
+		}
+	}
+
+	private void counter(MeterRegistry registry, String name, String description, BullyMetrics metrics, ToDoubleFunction<BullyMetrics> function) {
+		FunctionCounter.builder(name, metrics, function).tags(tags).description(description).register(registry);
+	}
+
+	private FunctionTimer timer(MeterRegistry registry, String name, String description, Histogram histogram, String...extraTags) {
+		return FunctionTimer.builder(name, histogram, new ToLongFunction<Histogram>() {
+			@Override
+			public long applyAsLong(Histogram histogram) {
+				return histogram.getCount();
+			}
+		}, new ToDoubleFunction<Histogram>() {
+			@Override
+			public double applyAsDouble(Histogram histogram) {
+				return histogram.getSum();
+			}
+		}, TimeUnit.MILLISECONDS).tags(tags.and(extraTags)).description(description).register(registry);
+	}
+}
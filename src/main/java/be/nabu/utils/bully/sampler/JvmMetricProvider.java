@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.sampler;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process cpu load, the garbage collections (count and time since the previous tick) and the allocation rate (bytes per second).
+ * The cpu load and the allocation rate are only available on jvms that have the com.sun.management extensions.
+ * 
+ * The allocation rate sums the allocated bytes of all live threads, which costs time in proportion to the amount of threads, so it is only measured once per allocation interval and the last rate is reported in between.
+ * It is a lower bound: a thread that ends between two measurements takes its allocations with it.
+ */
+public class JvmMetricProvider implements MetricProvider {
+
+	public static final String PROCESS_CPU_LOAD = "processCpuLoad", GC_COUNT = "gcCount", GC_TIME = "gcTime", ALLOCATION_RATE = "allocationRate";
+
+	private OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+	private ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private List<GarbageCollectorMXBean> garbageCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private boolean extended;
+	private long lastGcCount = -1, lastGcTime, lastAllocated = -1, lastAllocationSampled;
+	// how often (ms) the allocated bytes are summed
+	private long allocationInterval = 10000;
+	private double allocationRate = -1;
+
+	public JvmMetricProvider() {
+		try {
+			extended = operatingSystemMXBean instanceof com.sun.management.OperatingSystemMXBean
+				&& threadMXBean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported();
+		}
+		catch (LinkageError e) {
+			extended = false;
+		}
+	}
+
+	@Override
+	public synchronized void sample(Map<String, Double> metrics) {
+		long now = System.nanoTime();
+		long gcCount = 0, gcTime = 0;
+		for (GarbageCollectorMXBean garbageCollector : garbageCollectors) {
+			// -1 if not available
+			gcCount += Math.max(0, garbageCollector.getCollectionCount());
+			gcTime += Math.max(0, garbageCollector.getCollectionTime());
+		}
+		if (lastGcCount >= 0) {
+			metrics.put(GC_COUNT, (double) (gcCount - lastGcCount));
+			metrics.put(GC_TIME, (double) (gcTime - lastGcTime));
+		}
+		lastGcCount = gcCount;
+		lastGcTime = gcTime;
+		if (extended) {
+			double cpuLoad = ((com.sun.management.OperatingSystemMXBean) operatingSystemMXBean).getProcessCpuLoad();
+			if (cpuLoad >= 0) {
+				metrics.put(PROCESS_CPU_LOAD, cpuLoad);
+			}
+			if (lastAllocated < 0 || now - lastAllocationSampled >= TimeUnit.MILLISECONDS.toNanos(allocationInterval)) {
+				long allocated = 0;
+				for (long bytes : ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+					allocated += Math.max(0, bytes);
+				}
+				// threads that ended in between take their allocations with them, never report a negative rate
+				if (lastAllocated >= 0 && now > lastAllocationSampled) {
+					allocationRate = Math.max(0, allocated - lastAllocated) / ((now - lastAllocationSampled) / 1000000000d);
+				}
+				lastAllocated = allocated;
+				lastAllocationSampled = now;
+			}
+			if (allocationRate >= 0) {
+				metrics.put(ALLOCATION_RATE, allocationRate);
+			}
+		}
+	}
+
+	public long getAllocationInterval() {
+		return allocationInterval;
+	}
+
+	/**
+	 * How often (ms) the allocation rate is measured, it should be a multiple of the interval of the sampler
+	 */
+	public synchronized void setAllocationInterval(long allocationInterval) {
+		this.allocationInterval = Math.max(0, allocationInterval);
+	}
+}
@@ -0,0 +1,239 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.sampler;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.utils.bully.BullyClock;
+import be.nabu.utils.bully.BullyMetric;
+import be.nabu.utils.bully.utils.BullyScheduler;
+import be.nabu.utils.bully.utils.SystemClock;
+
+/**
+ * Samples the jvm and the operating system once per tick in the background, messages reuse the latest snapshot instead of querying the mxbeans themselves.
+ * Next to the values of the providers, the sampler reports how much later than planned its own tick ran ("pause"), a large value points to a safepoint or another stop of the jvm.
+ * On its own timer thread the pause only holds such stops, on a {@link BullyScheduler} it also holds the time the tick waited for a free worker.
+ * A single sampler is normally shared by all the clients in the jvm.
+ * The snapshots are timestamped with the clock of the sampler, clients that run on another clock should use a sampler with that clock.
+ */
+public class MetricsSampler implements Closeable {
+
+	public static final String PAUSE = "pause";
+
+	private static MetricsSampler shared;
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
+	private OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+	private ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+	private List<MetricProvider> providers = new CopyOnWriteArrayList<MetricProvider>();
+	private volatile MetricsSnapshot snapshot;
+	private long interval;
+	private BullyClock clock;
+	private BullyScheduler.Task task;
+	// when the sampler runs on its own timer thread
+	private ScheduledThreadPoolExecutor timer;
+	private ScheduledFuture<?> timerTask;
+	// when (in nanotime) we expect the next tick to start
+	private long expected;
+
+	public MetricsSampler(long interval) {
+		this(interval, SystemClock.getInstance());
+	}
+
+	public MetricsSampler(long interval, BullyClock clock) {
+		this.interval = interval;
+		this.clock = clock;
+	}
+
+	/**
+	 * The sampler shared by all the clients, it samples every second and has the jvm metrics.
+	 * Unless it was created with another scheduler, it runs on a timer thread of its own that is stopped with {@link #closeShared()}.
+	 */
+	public static synchronized MetricsSampler getShared() {
+		if (shared == null) {
+			MetricsSampler sampler = newShared();
+			sampler.start();
+			shared = sampler;
+		}
+		return shared;
+	}
+
+	/**
+	 * The shared sampler, if it does not exist yet it is started on the given scheduler. The caller remains the owner of the scheduler.
+	 */
+	public static synchronized MetricsSampler getShared(BullyScheduler scheduler) {
+		if (shared == null) {
+			MetricsSampler sampler = newShared();
+			sampler.start(scheduler);
+			shared = sampler;
+		}
+		return shared;
+	}
+
+	/**
+	 * Stops the shared sampler, a later call to getShared creates a new one
+	 */
+	public static synchronized void closeShared() {
+		if (shared != null) {
+			shared.close();
+			shared = null;
+		}
+	}
+
+	private static MetricsSampler newShared() {
+		MetricsSampler sampler = new MetricsSampler(1000);
+		sampler.addProvider(new JvmMetricProvider());
+		return sampler;
+	}
+
+	public void addProvider(MetricProvider provider) {
+		providers.add(provider);
+	}
+
+	public void removeProvider(MetricProvider provider) {
+		providers.remove(provider);
+	}
+
+	/**
+	 * The latest snapshot, if the sampler has not run yet, a snapshot is taken right away
+	 */
+	public MetricsSnapshot getSnapshot() {
+		MetricsSnapshot snapshot = this.snapshot;
+		return snapshot == null ? sample(0) : snapshot;
+	}
+
+	/**
+	 * Takes a new snapshot, the pause (ms) is the amount of time the tick was late
+	 */
+	public synchronized MetricsSnapshot sample(long pause) {
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		for (MetricProvider provider : providers) {
+			try {
+				provider.sample(values);
+			}
+			catch (Exception e) {
+				logger.warn("Metric provider failed: " + provider, e);
+			}
+		}
+		values.put(PAUSE, (double) pause);
+		List<BullyMetric> metrics = new ArrayList<BullyMetric>(values.size());
+		for (Map.Entry<String, Double> entry : values.entrySet()) {
+			if (entry.getValue() != null) {
+				metrics.add(new BullyMetric(entry.getKey(), entry.getValue()));
+			}
+		}
+		snapshot = new MetricsSnapshot(
+			clock.currentTimeMillis(),
+			runtimeMXBean.getUptime(),
+			operatingSystemMXBean.getSystemLoadAverage() / operatingSystemMXBean.getAvailableProcessors(),
+			memoryMXBean.getHeapMemoryUsage().getUsed(),
+			memoryMXBean.getNonHeapMemoryUsage().getUsed(),
+			threadMXBean.getThreadCount(),
+			Collections.unmodifiableList(metrics)
+		);
+		return snapshot;
+	}
+
+	/**
+	 * Starts sampling on a single daemon timer thread of its own, the thread is stopped when the sampler is closed
+	 */
+	public synchronized void start() {
+		if (task == null && timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "bully-sampler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			expected = System.nanoTime();
+			timerTask = timer.scheduleWithFixedDelay(newTick(), 0, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Starts sampling on the given scheduler, the scheduler is not closed when the sampler is closed.
+	 * The ticks run on the workers of the scheduler so the pause includes the time they were queued.
+	 */
+	public synchronized void start(BullyScheduler scheduler) {
+		if (task == null && timer == null) {
+			expected = System.nanoTime();
+			task = scheduler.scheduleWithFixedDelay(newTick(), 0, interval);
+		}
+	}
+
+	private Runnable newTick() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				long started = System.nanoTime();
+				long pause;
+				synchronized(MetricsSampler.this) {
+					pause = Math.max(0, TimeUnit.NANOSECONDS.toMillis(started - expected));
+				}
+				sample(pause);
+				synchronized(MetricsSampler.this) {
+					expected = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+				}
+			}
+		};
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public BullyClock getClock() {
+		return clock;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+		if (timer != null) {
+			timerTask.cancel(false);
+			timer.shutdownNow();
+			timerTask = null;
+			timer = null;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.sampler;
+
+import java.util.List;
+
+import be.nabu.utils.bully.BullyMetric;
+
+/**
+ * The values sampled in a single tick, a snapshot is never modified so it can be shared by all the messages built until the next tick
+ */
+public class MetricsSnapshot {
+
+	// when the snapshot was taken (ms)
+	private long timestamp;
+	private long uptime;
+	private double load, heapUsed, nonHeapUsed;
+	private int threadCount;
+	private List<BullyMetric> metrics;
+
+	MetricsSnapshot(long timestamp, long uptime, double load, double heapUsed, double nonHeapUsed, int threadCount, List<BullyMetric> metrics) {
+		this.timestamp = timestamp;
+		this.uptime = uptime;
+		this.load = load;
+		this.heapUsed = heapUsed;
+		this.nonHeapUsed = nonHeapUsed;
+		this.threadCount = threadCount;
+		this.metrics = metrics;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getUptime() {
+		return uptime;
+	}
+
+	public double getLoad() {
+		return load;
+	}
+
+	public double getHeapUsed() {
+		return heapUsed;
+	}
+
+	public double getNonHeapUsed() {
+		return nonHeapUsed;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * The metrics of the providers, the list can not be modified
+	 */
+	public List<BullyMetric> getMetrics() {
+		return metrics;
+	}
+
+	public Double getMetric(String name) {
+		for (BullyMetric metric : metrics) {
+			if (metric.getName().equals(name)) {
+				return metric.getValue();
+			}
+		}
+		return null;
+	}
+}
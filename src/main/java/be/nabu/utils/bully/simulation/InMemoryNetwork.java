@@ -0,0 +1,171 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.simulation;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.bully.BullyTransport;
+
+/**
+ * Connects the handlers of servers running in the same JVM.
+ * Latency, message loss, crashed servers and partitions can be injected, all randomness comes from a seeded generator.
+ *
+ * Requests are delivered synchronously and the latency is added to the simulated clock, in a parallel election round the latencies therefore add up.
+ * The time to elect a master measured over this network is an upper bound.
+ */
+public class InMemoryNetwork {
+
+	private SimulatedClock clock;
+	private Random random;
+	private Map<String, EventHandler<HTTPRequest, HTTPResponse>> handlers = new HashMap<String, EventHandler<HTTPRequest, HTTPResponse>>();
+	private Set<String> down = new HashSet<String>();
+	// servers in different partitions can not reach one another, servers that are not in a partition are in partition 0
+	private Map<String, Integer> partitions = new HashMap<String, Integer>();
+	private long latency, jitter, timeout;
+	private double dropRate;
+	private Map<String, Long> messages = new TreeMap<String, Long>();
+	private long dropped;
+
+	public InMemoryNetwork(SimulatedClock clock, long seed) {
+		this.clock = clock;
+		this.random = new Random(seed);
+	}
+
+	public void register(String host, EventHandler<HTTPRequest, HTTPResponse> handler) {
+		handlers.put(host, handler);
+	}
+
+	public BullyTransport newTransport(final String from) {
+		return new BullyTransport() {
+			@Override
+			public HTTPResponse execute(String host, HTTPRequest request) throws IOException {
+				return deliver(from, host, request);
+			}
+		};
+	}
+
+	private HTTPResponse deliver(String from, String to, HTTPRequest request) throws IOException {
+		String target = request.getTarget();
+		int index = target.lastIndexOf("/bully/");
+		String type = index >= 0 ? target.substring(index + "/bully/".length()) : target;
+		Long count = messages.get(type);
+		messages.put(type, count == null ? 1 : count + 1);
+		
+		EventHandler<HTTPRequest, HTTPResponse> handler = handlers.get(to);
+		if (handler == null || down.contains(from) || down.contains(to) || getPartition(from) != getPartition(to)) {
+			dropped++;
+			throw new IOException("Can not reach '" + to + "' from '" + from + "'");
+		}
+		if (dropRate > 0 && random.nextDouble() < dropRate) {
+			dropped++;
+			throw new IOException("Message from '" + from + "' to '" + to + "' was lost");
+		}
+		long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+		if (timeout > 0 && delay > timeout) {
+			clock.advance(timeout);
+			dropped++;
+			throw new IOException("Message from '" + from + "' to '" + to + "' timed out");
+		}
+		clock.advance(delay);
+		return handler.handle(request);
+	}
+
+	private int getPartition(String host) {
+		Integer partition = partitions.get(host);
+		return partition == null ? 0 : partition;
+	}
+
+	public void kill(String host) {
+		down.add(host);
+	}
+
+	public void revive(String host) {
+		down.remove(host);
+	}
+
+	public boolean isDown(String host) {
+		return down.contains(host);
+	}
+
+	/**
+	 * Splits the network, every group can only talk amongst itself and servers not in any group form a group of their own
+	 */
+	@SuppressWarnings("unchecked")
+	public void partition(Collection<String>...groups) {
+		partitions.clear();
+		for (int i = 0; i < groups.length; i++) {
+			for (String host : groups[i]) {
+				partitions.put(host, i + 1);
+			}
+		}
+	}
+
+	public void heal() {
+		partitions.clear();
+	}
+
+	public void setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	public void setDropRate(double dropRate) {
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * Messages that would take longer than this (ms) fail as if they timed out
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * The amount of messages sent per type (inquiry, victory, alive...)
+	 */
+	public Map<String, Long> getMessages() {
+		return new TreeMap<String, Long>(messages);
+	}
+
+	public long getMessageCount() {
+		long total = 0;
+		for (Long count : messages.values()) {
+			total += count;
+		}
+		return total;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	public void resetCounters() {
+		messages.clear();
+		dropped = 0;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.simulation;
+
+import be.nabu.utils.bully.BullyClock;
+
+/**
+ * A clock that only moves when the simulation moves it.
+ */
+public class SimulatedClock implements BullyClock {
+
+	private volatile long time;
+
+	public SimulatedClock(long start) {
+		this.time = start;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return time;
+	}
+
+	@Override
+	public long nanoTime() {
+		return time * 1000000l;
+	}
+
+	public void advance(long amount) {
+		if (amount > 0) {
+			time += amount;
+		}
+	}
+
+	/**
+	 * Moves the clock to the given time, the clock never goes back
+	 */
+	public void advanceTo(long time) {
+		if (time > this.time) {
+			this.time = time;
+		}
+	}
+}
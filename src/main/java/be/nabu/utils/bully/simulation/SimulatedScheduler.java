@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.simulation;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.utils.bully.utils.BullyScheduler;
+
+/**
+ * A single threaded scheduler that runs on a simulated clock.
+ * Timers are queued in order of their due time (and creation for equal times), work is run on the thread that drives the simulation.
+ * This makes a run fully deterministic.
+ */
+public class SimulatedScheduler extends BullyScheduler {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private SimulatedClock clock;
+	private PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private long counter;
+	private ExecutorService executor = new DirectExecutorService();
+
+	public SimulatedScheduler(SimulatedClock clock) {
+		this.clock = clock;
+	}
+
+	@Override
+	public void start() {
+		// nothing to start
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		events.clear();
+	}
+
+	@Override
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	@Override
+	public ExecutorService getRequestExecutor() {
+		return executor;
+	}
+
+	@Override
+	protected Future<?> delay(Runnable runnable, long delay) {
+		// even immediate work is queued, otherwise servers would run each other's elections recursively
+		Event event = new Event(runnable, clock.currentTimeMillis() + Math.max(0, delay), counter++);
+		events.add(event);
+		return event;
+	}
+
+	/**
+	 * Runs all the events that are due up to and including the given time, the clock ends at that time
+	 */
+	public void runUntil(long time) {
+		while (!events.isEmpty() && events.peek().due <= time) {
+			Event event = events.poll();
+			clock.advanceTo(event.due);
+			event.run();
+		}
+		clock.advanceTo(time);
+	}
+
+	public int getPending() {
+		return events.size();
+	}
+
+	private class Event extends FutureTask<Void> implements Comparable<Event> {
+
+		private long due, order;
+
+		public Event(Runnable runnable, long due, long order) {
+			super(runnable, null);
+			this.due = due;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			if (due != other.due) {
+				return due < other.due ? -1 : 1;
+			}
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+
+		@Override
+		protected void setException(Throwable throwable) {
+			logger.error("Simulated task failed", throwable);
+			super.setException(throwable);
+		}
+	}
+
+	private static class DirectExecutorService extends AbstractExecutorService {
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+
+		@Override
+		public void shutdown() {
+			// nothing to shut down
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return false;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return false;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+	}
+}
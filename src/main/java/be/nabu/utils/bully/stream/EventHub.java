@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.stream;
+
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.utils.BullyCodec;
+import be.nabu.utils.bully.utils.BullyScheduler;
+
+/**
+ * Publishes the events of a client to its subscribers. The most recent events are always kept (even without subscribers) so a subscriber that reconnects can resume from the last id it has seen.
+ * The ids are prefixed with an epoch that is unique for this process, a subscriber that resumes with an id of another process (e.g. after a restart) gets all the events we still have.
+ * The events are only rendered when a subscriber needs them so keeping them is cheap.
+ * Every subscriber has a bounded queue, a subscriber that can not keep up first misses samples and is disconnected if it can not even keep up with the master changes.
+ */
+public class EventHub {
+
+	// the counter restarts with the process, the epoch makes sure the ids of different processes never match
+	private static final String EPOCH = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+
+	private BullyCodec codec;
+	private AtomicLong ids = new AtomicLong();
+	// a ring with the most recent events
+	private StreamEvent [] recent;
+	private long written;
+	private int queueSize = 256;
+	private long keepAlive = 15000;
+	private List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private LongAdder dropped = new LongAdder(), disconnected = new LongAdder();
+	// checks the subscribers for idle streams while there are any
+	private BullyScheduler.Task keepAliveTask;
+
+	public EventHub(BullyCodec codec, int history) {
+		this.codec = codec;
+		this.recent = new StreamEvent[Math.max(1, history)];
+	}
+
+	public synchronized void publish(String type, BullyQuery query) {
+		StreamEvent event = new StreamEvent(EPOCH, ids.incrementAndGet(), type, query, codec);
+		recent[(int) (written++ % recent.length)] = event;
+		for (Subscription subscription : subscriptions) {
+			subscription.offer(event);
+		}
+	}
+
+	/**
+	 * Makes sure the idle streams get a keep alive, the task runs on the given scheduler until the last subscriber is gone
+	 */
+	private void startKeepAlive(BullyScheduler scheduler) {
+		if (keepAliveTask == null && keepAlive > 0) {
+			// checking twice per period means a stream is never idle much longer than the keep alive
+			long period = Math.max(1, keepAlive / 2);
+			keepAliveTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					long now = System.currentTimeMillis();
+					for (Subscription subscription : subscriptions) {
+						subscription.keepAlive(now);
+					}
+				}
+			}, period, period);
+		}
+	}
+
+	/**
+	 * Subscribes to all the events after the given id, if the id is null only new events are sent.
+	 * If the id is older than the events we still have or it belongs to another epoch, the subscriber starts with the oldest one we have.
+	 * The subscription is registered and the keep alive is started in one step so the last subscriber leaving in the meantime can not stop it.
+	 */
+	public synchronized Subscription subscribe(String lastId, BullyScheduler scheduler) {
+		long since = parseId(lastId);
+		Subscription subscription = new Subscription(this, queueSize, keepAlive);
+		if (lastId != null) {
+			for (long position = Math.max(0, written - recent.length); position < written; position++) {
+				StreamEvent event = recent[(int) (position % recent.length)];
+				if (event.getId() > since && !subscription.offer(event)) {
+					break;
+				}
+			}
+		}
+		subscriptions.add(subscription);
+		startKeepAlive(scheduler);
+		return subscription;
+	}
+
+	/**
+	 * Parses an id we handed out, an id of another epoch is older than all of ours
+	 */
+	private static long parseId(String id) {
+		if (id == null) {
+			return -1;
+		}
+		int index = id.lastIndexOf('-');
+		if (index < 0) {
+			throw new IllegalArgumentException("Invalid event id: " + id);
+		}
+		long counter;
+		try {
+			counter = Long.parseLong(id.substring(index + 1).trim());
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid event id: " + id);
+		}
+		return EPOCH.equals(id.substring(0, index).trim()) ? counter : 0;
+	}
+
+	synchronized void unsubscribe(Subscription subscription) {
+		subscriptions.remove(subscription);
+		if (subscriptions.isEmpty() && keepAliveTask != null) {
+			keepAliveTask.cancel();
+			keepAliveTask = null;
+		}
+	}
+
+	void dropped() {
+		dropped.increment();
+	}
+
+	void disconnected() {
+		disconnected.increment();
+	}
+
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * The amount of samples that were not sent to a subscriber because it could not keep up
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * The amount of subscribers that were disconnected because they could not keep up
+	 */
+	public long getDisconnected() {
+		return disconnected.sum();
+	}
+
+	public long getLastId() {
+		return ids.get();
+	}
+
+	public String getEpoch() {
+		return EPOCH;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * How long (ms) a stream can be idle before a comment is sent to keep the connection open, 0 disables the keep alives
+	 */
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public void close() {
+		for (Subscription subscription : subscriptions) {
+			subscription.close();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.utils.BullyCodec;
+
+/**
+ * A single event in the server-sent events format, it is only rendered when the first subscriber needs it and then shared by all of them
+ */
+public class StreamEvent {
+
+	public static final String MASTER = "master", TERM = "term", SAMPLE = "sample";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String epoch;
+	private long id;
+	private String type;
+	private BullyQuery query;
+	private BullyCodec codec;
+	private byte [] bytes;
+
+	StreamEvent(String epoch, long id, String type, BullyQuery query, BullyCodec codec) {
+		this.epoch = epoch;
+		this.id = id;
+		this.type = type;
+		this.query = query;
+		this.codec = codec;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public BullyQuery getQuery() {
+		return query;
+	}
+
+	synchronized byte[] getBytes() throws IOException {
+		if (bytes == null) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			output.write(("id: " + epoch + "-" + id + "\nevent: " + type + "\n").getBytes(UTF8));
+			// every line of the data has to be prefixed
+			for (String line : new String(codec.marshal(query), codec.getCharset()).split("\r?\n")) {
+				output.write(("data: " + line + "\n").getBytes(UTF8));
+			}
+			output.write('\n');
+			bytes = output.toByteArray();
+			// we no longer need the query
+			query = null;
+		}
+		return bytes;
+	}
+}
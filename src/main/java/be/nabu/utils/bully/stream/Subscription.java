@@ -0,0 +1,119 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.stream;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * The stream of a single subscriber, it can be used as the content of a (chunked) response.
+ * Reading never blocks, it returns 0 if there is nothing to send. If the stream has been idle for the keep alive, the hub has a comment sent instead.
+ * Once the subscription is closed, the events that are still queued are sent and the stream ends.
+ */
+public class Subscription implements ReadableContainer<ByteBuffer> {
+
+	private static final byte [] KEEP_ALIVE = ": keep-alive\n\n".getBytes(Charset.forName("UTF-8"));
+
+	private EventHub hub;
+	private BlockingQueue<StreamEvent> queue;
+	private int capacity;
+	private long keepAlive;
+	private volatile boolean closed;
+	// when we last sent something and whether a keep alive should be sent
+	private volatile long lastSent = System.currentTimeMillis();
+	private volatile boolean keepAlivePending;
+	// the event that is being sent and how much of it was already sent
+	private byte [] current;
+	private int offset;
+
+	Subscription(EventHub hub, int capacity, long keepAlive) {
+		this.hub = hub;
+		this.capacity = capacity;
+		this.keepAlive = keepAlive;
+		this.queue = new ArrayBlockingQueue<StreamEvent>(capacity);
+	}
+
+	/**
+	 * Once the queue is three quarters full, samples are dropped for this subscriber. If even a master or term change does not fit, the subscriber is disconnected and has to resume.
+	 * Returns false if the subscriber is (now) closed.
+	 */
+	boolean offer(StreamEvent event) {
+		if (closed) {
+			return false;
+		}
+		if (StreamEvent.SAMPLE.equals(event.getType()) && queue.size() >= capacity * 3 / 4) {
+			hub.dropped();
+			return true;
+		}
+		if (!queue.offer(event)) {
+			hub.disconnected();
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Called by the hub, if nothing was sent for the keep alive the next read sends a comment
+	 */
+	void keepAlive(long now) {
+		if (now - lastSent >= keepAlive) {
+			keepAlivePending = true;
+		}
+	}
+
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		if (current == null || offset >= current.length) {
+			StreamEvent event = queue.poll();
+			if (event != null) {
+				current = event.getBytes();
+			}
+			else if (closed) {
+				return -1;
+			}
+			else if (keepAlivePending) {
+				current = KEEP_ALIVE;
+			}
+			else {
+				return 0;
+			}
+			offset = 0;
+			keepAlivePending = false;
+		}
+		int amount = target.write(current, offset, (int) Math.min(current.length - offset, target.remainingSpace()));
+		offset += amount;
+		lastSent = System.currentTimeMillis();
+		return amount;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		hub.unsubscribe(this);
+	}
+}
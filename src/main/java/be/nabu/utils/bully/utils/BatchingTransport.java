@@ -0,0 +1,357 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.bully.BullyTransport;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.FormatException;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Combines the requests that are sent to the same peer within a short window into a single message.
+ * The first request for a peer opens a batch and the timer of the scheduler closes it after the linger time (or as soon as it is full), the requests that arrive in the meantime join it and wait for the answer.
+ * The batch is sent by the thread of the first request, not by a worker of the scheduler: the requests themselves run on those workers and would otherwise wait for a free one.
+ * A batch of one is sent as a regular request, peers that do not understand batches get the requests one by one.
+ * Only a peer that does not have the batch endpoint is no longer sent batches, if a batch fails for any other reason its requests are sent separately this once.
+ */
+public class BatchingTransport implements BullyTransport {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	/**
+	 * The default maximum amount of requests in a batch, a full batch is sent without waiting for the linger time
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+
+	private BullyTransport transport;
+	private BullyScheduler scheduler;
+	private String batchPath;
+	private long linger;
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private BullyBinaryCodec codec = new BullyBinaryCodec();
+	private ConcurrentMap<String, Batch> open = new ConcurrentHashMap<String, Batch>();
+	// peers that do not have the batch endpoint, they are not sent batches anymore
+	private Set<String> unsupported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * The batches are posted to the given path on the peer, the linger (ms) is how long the first request waits for others to join
+	 */
+	public BatchingTransport(BullyTransport transport, BullyScheduler scheduler, String batchPath, long linger) {
+		this.transport = transport;
+		this.scheduler = scheduler;
+		this.batchPath = batchPath;
+		this.linger = linger;
+	}
+
+	@Override
+	public HTTPResponse execute(String host, HTTPRequest request) throws IOException, FormatException, ParseException {
+		if (linger <= 0 || unsupported.contains(host)) {
+			return transport.execute(host, request);
+		}
+		Pending pending = new Pending(request);
+		while (true) {
+			Batch batch = open.get(host);
+			if (batch == null) {
+				Batch newBatch = new Batch(maxEntries);
+				newBatch.add(pending);
+				if (open.putIfAbsent(host, newBatch) == null) {
+					send(host, newBatch);
+					break;
+				}
+			}
+			else if (batch.add(pending)) {
+				break;
+			}
+			// the batch is full or already being sent, a closed batch never takes requests again so we replace it rather than wait for the sender to remove it
+			else {
+				open.remove(host, batch);
+			}
+		}
+		return pending.await();
+	}
+
+	private void send(String host, final Batch batch) {
+		Future<?> timer = scheduler.delay(new Runnable() {
+			@Override
+			public void run() {
+				batch.close();
+			}
+		}, linger);
+		List<Pending> entries;
+		try {
+			entries = batch.awaitClosed();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			entries = batch.close();
+		}
+		finally {
+			if (timer != null) {
+				timer.cancel(false);
+			}
+		}
+		open.remove(host, batch);
+		try {
+			if (entries.size() == 1) {
+				entries.get(0).complete(transport.execute(host, entries.get(0).request));
+			}
+			else {
+				sendBatch(host, entries);
+			}
+		}
+		catch (Exception e) {
+			for (Pending pending : entries) {
+				pending.fail(e);
+			}
+		}
+		catch (Error e) {
+			for (Pending pending : entries) {
+				pending.fail(e);
+			}
+			throw e;
+		}
+	}
+
+	private void sendBatch(String host, List<Pending> entries) throws IOException, FormatException, ParseException {
+		List<BatchEntry> batchEntries = new ArrayList<BatchEntry>(entries.size());
+		for (Pending pending : entries) {
+			batchEntries.add(pending.toEntry());
+		}
+		byte [] content = codec.marshalBatch(batchEntries);
+		HTTPResponse response = transport.execute(host, new DefaultHTTPRequest("POST", batchPath, 
+			new PlainMimeContentPart(null, IOUtils.wrap(content, true), 
+				new MimeHeader("Content-Length", "" + content.length),
+				new MimeHeader("Content-Type", codec.getContentType()),
+				new MimeHeader("Accept", codec.getContentType()),
+				new MimeHeader("Host", host)
+			))
+		);
+		if (response == null) {
+			throw new IOException("No response from '" + host + "'");
+		}
+		List<BatchEntry> answers = null;
+		if (response.getCode() >= 200 && response.getCode() < 300 && codec.getContentType().equals(getHeader(response.getContent(), "Content-Type")) && response.getContent() instanceof ContentPart) {
+			InputStream input = IOUtils.toInputStream(((ContentPart) response.getContent()).getReadable());
+			answers = codec.unmarshalBatch(input);
+		}
+		if (answers == null || answers.size() != entries.size()) {
+			if (isUnsupported(response)) {
+				logger.info("Host '" + host + "' does not support batches (" + response.getCode() + "), sending the messages separately");
+				unsupported.add(host);
+			}
+			else {
+				logger.debug("Batch to '" + host + "' failed (" + response.getCode() + "), sending the messages separately");
+			}
+			for (Pending pending : entries) {
+				pending.complete(transport.execute(host, toRequest(host, pending.toEntry())));
+			}
+		}
+		else {
+			for (int i = 0; i < entries.size(); i++) {
+				entries.get(i).complete(toResponse(answers.get(i)));
+			}
+		}
+	}
+
+	/**
+	 * Whether the response means the peer does not have the batch endpoint (as opposed to an error that may be temporary)
+	 */
+	private boolean isUnsupported(HTTPResponse response) {
+		int code = response.getCode();
+		// a peer that does know the path but answers with something other than a batch does not support them either
+		return code == 404 || code == 405 || code == 415 || (code >= 200 && code < 300);
+	}
+
+	public static HTTPRequest toRequest(String host, BatchEntry entry) {
+		byte [] content = entry.getContent() == null ? new byte[0] : entry.getContent();
+		List<Header> headers = new ArrayList<Header>();
+		headers.add(new MimeHeader("Content-Length", "" + content.length));
+		if (entry.getContentType() != null) {
+			headers.add(new MimeHeader("Content-Type", entry.getContentType()));
+		}
+		if (entry.getAccept() != null) {
+			headers.add(new MimeHeader("Accept", entry.getAccept()));
+		}
+		headers.add(new MimeHeader("Host", host));
+		return new DefaultHTTPRequest(entry.getMethod() == null ? "POST" : entry.getMethod(), entry.getTarget(), new PlainMimeContentPart(null, IOUtils.wrap(content, true), headers.toArray(new Header[headers.size()])));
+	}
+
+	public static HTTPResponse toResponse(BatchEntry entry) {
+		byte [] content = entry.getContent() == null ? new byte[0] : entry.getContent();
+		List<Header> headers = new ArrayList<Header>();
+		headers.add(new MimeHeader("Content-Length", "" + content.length));
+		if (entry.getContentType() != null) {
+			headers.add(new MimeHeader("Content-Type", entry.getContentType()));
+		}
+		return new DefaultHTTPResponse(entry.getCode(), entry.getCode() >= 200 && entry.getCode() < 300 ? "OK" : "Error", new PlainMimeContentPart(null, IOUtils.wrap(content, true), headers.toArray(new Header[headers.size()])));
+	}
+
+	/**
+	 * Reads the content of the part, it can not be read again afterwards
+	 */
+	public static byte[] getContent(ModifiablePart part) throws IOException {
+		if (!(part instanceof ContentPart)) {
+			return null;
+		}
+		return IOUtils.toBytes(((ContentPart) part).getReadable());
+	}
+
+	public static String getHeader(ModifiablePart part, String name) {
+		Header header = part == null ? null : MimeUtils.getHeader(name, part.getHeaders());
+		if (header == null || header.getValue() == null) {
+			return null;
+		}
+		// strip any parameters like the charset
+		int index = header.getValue().indexOf(';');
+		return (index >= 0 ? header.getValue().substring(0, index) : header.getValue()).trim();
+	}
+
+	public long getLinger() {
+		return linger;
+	}
+
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	private static class Batch {
+
+		private List<Pending> entries = new ArrayList<Pending>();
+		private int maxEntries;
+		private boolean closed;
+
+		Batch(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+
+		synchronized boolean add(Pending pending) {
+			if (closed) {
+				return false;
+			}
+			entries.add(pending);
+			if (entries.size() >= maxEntries) {
+				close();
+			}
+			return true;
+		}
+
+		synchronized List<Pending> close() {
+			closed = true;
+			notifyAll();
+			return entries;
+		}
+
+		synchronized List<Pending> awaitClosed() throws InterruptedException {
+			while (!closed) {
+				wait();
+			}
+			return entries;
+		}
+	}
+
+	private static class Pending {
+
+		private HTTPRequest request;
+		private BatchEntry entry;
+		private CompletableFuture<HTTPResponse> future = new CompletableFuture<HTTPResponse>();
+
+		Pending(HTTPRequest request) {
+			this.request = request;
+		}
+
+		// the content can only be read once, the entry is kept in case we need to send it again
+		BatchEntry toEntry() throws IOException {
+			if (entry == null) {
+				ModifiablePart content = request.getContent();
+				Header accept = content == null ? null : MimeUtils.getHeader("Accept", content.getHeaders());
+				entry = new BatchEntry(request.getTarget(), 0, getHeader(content, "Content-Type"), accept == null ? null : accept.getValue(), getContent(content));
+				entry.setMethod(request.getMethod());
+			}
+			return entry;
+		}
+
+		void complete(HTTPResponse response) {
+			future.complete(response);
+		}
+
+		void fail(Throwable throwable) {
+			future.completeExceptionally(throwable);
+		}
+
+		HTTPResponse await() throws IOException, FormatException, ParseException {
+			try {
+				return future.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the batch", e);
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				else if (cause instanceof FormatException) {
+					throw (FormatException) cause;
+				}
+				else if (cause instanceof ParseException) {
+					throw (ParseException) cause;
+				}
+				else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IOException(cause);
+			}
+		}
+	}
+}
@@ -0,0 +1,556 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import be.nabu.utils.bully.BullyMetric;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.BullyQueryList;
+import be.nabu.utils.bully.BullyQueryOverview;
+
+/**
+ * A compact binary encoding for the bully messages, it is only used if both parties support it.
+ *
+ * Every message starts with a magic byte, a version and the message type.
+ * Integral values are written as (zigzag) varints, the load is written as a fixed 8 byte double and timestamps and sequences in a history list are delta encoded against the previous entry.
+ * The heap and non heap usage are sampled as a number of bytes and are transmitted as such, fractions are dropped.
+ * The version must be bumped for any change in the layout, a peer that gets a version it does not know answers with a 400 and the sender falls back to XML.
+ * Version history:
+ * 	1: the initial format
+ * 	2: the term, the master, the membership, the metrics, the score and the method of batch entries
+ *
+ * The buffers are kept in a bounded pool that belongs to the codec (as in {@link BullyCodec}), incoming messages are read into a pooled buffer as well.
+ * A message that is larger than the maximum length is rejected before it is read in full.
+ */
+public class BullyBinaryCodec {
+
+	public static final String CONTENT_TYPE = "application/x-bully";
+
+	private static final int MAGIC = 0xB1;
+	private static final int VERSION = 2;
+	private static final int TYPE_QUERY = 1, TYPE_OVERVIEW = 2, TYPE_BATCH = 3;
+
+	// presence flags for the nullable fields of a query
+	private static final int HAS_HOST = 1, HAS_CREATED = 2, HAS_SINCE = 4, HAS_LEASE = 8, HAS_MASTER = 16, HAS_MEMBERSHIP = 32, HAS_METRICS = 64, HAS_SCORE = 128;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The default amount of buffers that are kept for reuse, concurrent calls beyond that create (and discard) their own
+	 */
+	public static final int DEFAULT_POOL_SIZE = 16;
+
+	/**
+	 * The default maximum size of an incoming message, a full overview of a large cluster is the largest message we expect
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 32 * 1024 * 1024;
+
+	// buffers that grew beyond this are not pooled so they do not stay in memory
+	private static final int MAX_POOLED_BUFFER = 64 * 1024;
+
+	private BlockingQueue<Output> pool;
+	private int maxLength;
+
+	public BullyBinaryCodec() {
+		this(DEFAULT_POOL_SIZE, DEFAULT_MAX_LENGTH);
+	}
+
+	public BullyBinaryCodec(int poolSize, int maxLength) {
+		this.pool = poolSize > 0 ? new ArrayBlockingQueue<Output>(poolSize) : null;
+		this.maxLength = maxLength;
+	}
+
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	public byte[] marshal(BullyQuery query) {
+		Output output = acquire();
+		try {
+			output.header(TYPE_QUERY);
+			output.query(query, null, new long[2]);
+			return output.toByteArray();
+		}
+		finally {
+			release(output);
+		}
+	}
+
+	public byte[] marshal(BullyQueryOverview overview) {
+		Output output = acquire();
+		try {
+			output.header(TYPE_OVERVIEW);
+			output.varlong(overview == null ? 0 : overview.getSequence());
+			output.varlong(overview == null ? 0 : overview.getTerm());
+			output.write(overview == null || overview.getFull() == null || overview.getFull() ? 1 : 0);
+			List<BullyQueryList> lists = overview == null ? null : overview.getLists();
+			if (lists == null) {
+				output.varint(0);
+			}
+			else {
+				output.varint(lists.size());
+				for (BullyQueryList list : lists) {
+					output.string(list.getHost());
+					List<BullyQuery> queries = list.getQueries();
+					if (queries == null) {
+						output.varint(0);
+					}
+					else {
+						output.varint(queries.size());
+						long [] previous = new long[2];
+						for (BullyQuery query : queries) {
+							output.query(query, list.getHost(), previous);
+						}
+					}
+				}
+			}
+			// the membership is optional, both the version and the count are offset by one so null can be distinguished
+			Long membershipVersion = overview == null ? null : overview.getMembershipVersion();
+			output.varlong(membershipVersion == null ? 0 : membershipVersion + 1);
+			List<String> members = overview == null ? null : overview.getMembers();
+			output.varint(members == null ? 0 : members.size() + 1);
+			if (members != null) {
+				for (String member : members) {
+					output.string(member);
+				}
+			}
+			return output.toByteArray();
+		}
+		finally {
+			release(output);
+		}
+	}
+
+	/**
+	 * Multiple messages for the same peer in one, the content of each entry is passed through as is
+	 */
+	public byte[] marshalBatch(List<BatchEntry> entries) {
+		Output output = acquire();
+		try {
+			output.header(TYPE_BATCH);
+			output.varint(entries.size());
+			for (BatchEntry entry : entries) {
+				output.string(entry.getMethod());
+				output.string(entry.getTarget());
+				output.varint(entry.getCode());
+				output.string(entry.getContentType());
+				output.string(entry.getAccept());
+				output.bytes(entry.getContent());
+			}
+			return output.toByteArray();
+		}
+		finally {
+			release(output);
+		}
+	}
+
+	public List<BatchEntry> unmarshalBatch(InputStream stream) throws IOException, ParseException {
+		Output buffer = acquire();
+		try {
+			Input input = new Input(stream, buffer, maxLength);
+			input.header(TYPE_BATCH);
+			// every entry takes at least 6 bytes
+			int size = input.size(6);
+			List<BatchEntry> entries = new ArrayList<BatchEntry>(size);
+			for (int i = 0; i < size; i++) {
+				BatchEntry entry = new BatchEntry();
+				entry.setMethod(input.string());
+				entry.setTarget(input.string());
+				entry.setCode(input.varint());
+				entry.setContentType(input.string());
+				entry.setAccept(input.string());
+				entry.setContent(input.bytes());
+				entries.add(entry);
+			}
+			return entries;
+		}
+		finally {
+			release(buffer);
+		}
+	}
+
+	public BullyQuery unmarshalQuery(InputStream stream) throws IOException, ParseException {
+		Output buffer = acquire();
+		try {
+			Input input = new Input(stream, buffer, maxLength);
+			input.header(TYPE_QUERY);
+			return input.query(null, new long[2]);
+		}
+		finally {
+			release(buffer);
+		}
+	}
+
+	public BullyQueryOverview unmarshalOverview(InputStream stream) throws IOException, ParseException {
+		Output buffer = acquire();
+		try {
+			return readOverview(new Input(stream, buffer, maxLength));
+		}
+		finally {
+			release(buffer);
+		}
+	}
+
+	private BullyQueryOverview readOverview(Input input) throws IOException, ParseException {
+		input.header(TYPE_OVERVIEW);
+		BullyQueryOverview overview = new BullyQueryOverview();
+		overview.setSequence(input.varlong());
+		overview.setTerm(input.varlong());
+		overview.setFull(input.read() != 0);
+		// every list takes at least 2 bytes
+		int size = input.size(2);
+		List<BullyQueryList> lists = new ArrayList<BullyQueryList>(size);
+		for (int i = 0; i < size; i++) {
+			BullyQueryList list = new BullyQueryList();
+			list.setHost(input.string());
+			// every query takes at least 15 bytes
+			int amount = input.size(15);
+			List<BullyQuery> queries = new ArrayList<BullyQuery>(amount);
+			long [] previous = new long[2];
+			for (int j = 0; j < amount; j++) {
+				queries.add(input.query(list.getHost(), previous));
+			}
+			list.setQueries(queries);
+			lists.add(list);
+		}
+		overview.setLists(lists);
+		long membershipVersion = input.varlong();
+		if (membershipVersion > 0) {
+			overview.setMembershipVersion(membershipVersion - 1);
+		}
+		// the count is offset by one, every member takes at least 1 byte
+		long members = input.varlong();
+		if (members < 0 || members - 1 > input.remaining()) {
+			throw new IOException("Invalid member count " + (members - 1) + ", only " + input.remaining() + " bytes remain");
+		}
+		else if (members > 0) {
+			overview.setMembers(new ArrayList<String>((int) members - 1));
+			for (int i = 0; i < members - 1; i++) {
+				overview.getMembers().add(input.string());
+			}
+		}
+		return overview;
+	}
+
+	private Output acquire() {
+		Output output = pool == null ? null : pool.poll();
+		if (output == null) {
+			output = new Output();
+		}
+		output.reset();
+		return output;
+	}
+
+	private void release(Output output) {
+		if (pool != null && output.capacity() <= MAX_POOLED_BUFFER) {
+			// if the pool is full, the buffer is simply discarded
+			pool.offer(output);
+		}
+	}
+
+	/**
+	 * The amount of buffers that are currently idle in the pool
+	 */
+	public int getPooled() {
+		return pool == null ? 0 : pool.size();
+	}
+
+	private static class Output extends ByteArrayOutputStream {
+
+		public Output() {
+			super(256);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		byte [] buffer() {
+			return buf;
+		}
+
+		/**
+		 * Reads the stream into this buffer, it fails as soon as the stream turns out to be larger than the maximum length
+		 */
+		void readFrom(InputStream input, int maxLength) throws IOException {
+			while (true) {
+				if (count == buf.length) {
+					if (count >= maxLength) {
+						break;
+					}
+					buf = Arrays.copyOf(buf, (int) Math.min(maxLength + 1l, buf.length * 2l));
+				}
+				int read = input.read(buf, count, buf.length - count);
+				if (read < 0) {
+					break;
+				}
+				count += read;
+			}
+			// the buffer is full at the maximum length, the message is only valid if the stream ends here
+			if (count > maxLength || (count == maxLength && input.read() >= 0)) {
+				throw new IOException("The message exceeds the maximum length of " + maxLength + " bytes");
+			}
+		}
+
+		void header(int type) {
+			write(MAGIC);
+			write(VERSION);
+			write(type);
+		}
+
+		/**
+		 * Writes the query, if it belongs to the given list host, the host is not repeated.
+		 * The creation timestamp and the sequence are written as a delta against the previous entry, the array is updated for the next one.
+		 */
+		void query(BullyQuery query, String listHost, long [] previous) {
+			String host = query.getHost();
+			boolean writeHost = host != null && (listHost == null || !listHost.equals(host));
+			int flags = (writeHost ? HAS_HOST : 0) | (query.getCreated() != null ? HAS_CREATED : 0) | (query.getSince() != null ? HAS_SINCE : 0) | (query.getLease() != null ? HAS_LEASE : 0) | (query.getMaster() != null ? HAS_MASTER : 0)
+				| (query.getMembershipVersion() != null ? HAS_MEMBERSHIP : 0) | (query.getMetrics() != null ? HAS_METRICS : 0) | (query.getScore() != null ? HAS_SCORE : 0);
+			write(flags);
+			if (writeHost) {
+				string(host);
+			}
+			if (query.getCreated() != null) {
+				long created = query.getCreated().getTime();
+				varlong(zigzag(created - previous[0]));
+				previous[0] = created;
+			}
+			fixed(Double.doubleToLongBits(query.getLoad()));
+			varlong(zigzag((long) query.getHeapUsed()));
+			varlong(zigzag((long) query.getNonHeapUsed()));
+			varlong(zigzag(query.getCurrentThreadCount()));
+			varlong(zigzag(query.getUptime()));
+			varlong(zigzag(query.getSequence() - previous[1]));
+			previous[1] = query.getSequence();
+			varlong(query.getTerm());
+			if (query.getSince() != null) {
+				varlong(query.getSince());
+			}
+			if (query.getLease() != null) {
+				varlong(query.getLease());
+			}
+			if (query.getMaster() != null) {
+				string(query.getMaster());
+			}
+			if (query.getMembershipVersion() != null) {
+				varlong(query.getMembershipVersion());
+			}
+			if (query.getMetrics() != null) {
+				varint(query.getMetrics().size());
+				for (BullyMetric metric : query.getMetrics()) {
+					string(metric.getName());
+					fixed(Double.doubleToLongBits(metric.getValue()));
+				}
+			}
+			if (query.getScore() != null) {
+				fixed(Double.doubleToLongBits(query.getScore()));
+			}
+		}
+
+		void string(String value) {
+			bytes(value == null ? null : value.getBytes(UTF8));
+		}
+
+		void bytes(byte [] bytes) {
+			if (bytes == null) {
+				varint(0);
+			}
+			else {
+				// the length is offset by one so we can distinguish between null and empty
+				varint(bytes.length + 1);
+				write(bytes, 0, bytes.length);
+			}
+		}
+
+		void varint(int value) {
+			varlong(value & 0xffffffffl);
+		}
+
+		void varlong(long value) {
+			while ((value & ~0x7fl) != 0) {
+				write((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void fixed(long value) {
+			for (int i = 0; i < 8; i++) {
+				write((int) (value >>> (i * 8)));
+			}
+		}
+
+		private static long zigzag(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+	}
+
+	/**
+	 * The message is read in full before it is parsed so every size that is read from the wire can be checked against the bytes that are actually left.
+	 * A corrupt or malicious message can not make us allocate more than it is large itself and the message itself is capped at the maximum length.
+	 */
+	private static class Input {
+
+		private byte [] bytes;
+		private int position, length;
+
+		public Input(InputStream input, Output buffer, int maxLength) throws IOException {
+			buffer.readFrom(input, maxLength);
+			this.bytes = buffer.buffer();
+			this.length = buffer.size();
+		}
+
+		void header(int type) throws IOException, ParseException {
+			if (read() != MAGIC) {
+				throw new ParseException("Not a binary bully message", 0);
+			}
+			int version = read();
+			if (version != VERSION) {
+				throw new ParseException("Unsupported binary bully version: " + version, 1);
+			}
+			if (read() != type) {
+				throw new ParseException("Unexpected binary bully message type, expecting: " + type, 2);
+			}
+		}
+
+		int remaining() {
+			return length - position;
+		}
+
+		/**
+		 * Reads the size of a collection of which each element takes at least the given amount of bytes
+		 */
+		int size(int minimumBytes) throws IOException {
+			long size = varlong();
+			if (size < 0 || size > remaining() / minimumBytes) {
+				throw new IOException("Invalid size " + size + ", only " + remaining() + " bytes remain");
+			}
+			return (int) size;
+		}
+
+		BullyQuery query(String listHost, long [] previous) throws IOException {
+			int flags = read();
+			BullyQuery query = new BullyQuery();
+			query.setHost((flags & HAS_HOST) != 0 ? string() : listHost);
+			if ((flags & HAS_CREATED) != 0) {
+				previous[0] += unzigzag(varlong());
+				query.setCreated(new Date(previous[0]));
+			}
+			query.setLoad(Double.longBitsToDouble(fixed()));
+			query.setHeapUsed(unzigzag(varlong()));
+			query.setNonHeapUsed(unzigzag(varlong()));
+			query.setCurrentThreadCount((int) unzigzag(varlong()));
+			query.setUptime(unzigzag(varlong()));
+			previous[1] += unzigzag(varlong());
+			query.setSequence(previous[1]);
+			query.setTerm(varlong());
+			if ((flags & HAS_SINCE) != 0) {
+				query.setSince(varlong());
+			}
+			if ((flags & HAS_LEASE) != 0) {
+				query.setLease(varlong());
+			}
+			if ((flags & HAS_MASTER) != 0) {
+				query.setMaster(string());
+			}
+			if ((flags & HAS_MEMBERSHIP) != 0) {
+				query.setMembershipVersion(varlong());
+			}
+			if ((flags & HAS_METRICS) != 0) {
+				// every metric takes at least 9 bytes
+				int size = size(9);
+				List<BullyMetric> metrics = new ArrayList<BullyMetric>(size);
+				for (int i = 0; i < size; i++) {
+					metrics.add(new BullyMetric(string(), Double.longBitsToDouble(fixed())));
+				}
+				query.setMetrics(metrics);
+			}
+			if ((flags & HAS_SCORE) != 0) {
+				query.setScore(Double.longBitsToDouble(fixed()));
+			}
+			return query;
+		}
+
+		String string() throws IOException {
+			byte [] bytes = bytes();
+			return bytes == null ? null : new String(bytes, UTF8);
+		}
+
+		byte[] bytes() throws IOException {
+			long length = varlong();
+			if (length == 0) {
+				return null;
+			}
+			else if (length < 0 || length - 1 > remaining()) {
+				throw new EOFException("Invalid length " + (length - 1) + ", only " + remaining() + " bytes remain");
+			}
+			byte [] bytes = new byte[(int) length - 1];
+			System.arraycopy(this.bytes, position, bytes, 0, bytes.length);
+			position += bytes.length;
+			return bytes;
+		}
+
+		int varint() throws IOException {
+			return (int) varlong();
+		}
+
+		long varlong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int read = read();
+				value |= (long) (read & 0x7f) << shift;
+				if ((read & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		long fixed() throws IOException {
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value |= (long) read() << (i * 8);
+			}
+			return value;
+		}
+
+		int read() throws IOException {
+			if (position >= length) {
+				throw new EOFException();
+			}
+			return bytes[position++] & 0xff;
+		}
+
+		private static long unzigzag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanResolver;
+import be.nabu.utils.bully.BullyMembers;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.BullyQueryOverview;
+
+/**
+ * Marshals and unmarshals the bully messages.
+ * The types are resolved once, the bindings and the output buffers are kept in a bounded pool that belongs to the codec so the codec can be shared freely.
+ * Unlike thread locals, the pool does not grow with the amount of threads that ever used the codec and it is released along with the codec.
+ */
+public class BullyCodec {
+
+	private static final Window[] NO_WINDOWS = new Window[0];
+	
+	/**
+	 * The default amount of bindings that are kept for reuse, concurrent calls beyond that create (and discard) their own
+	 */
+	public static final int DEFAULT_POOL_SIZE = 16;
+	
+	// codecs that just wrote a message larger than this are not pooled so the grown buffer does not stay in memory
+	private static final int MAX_POOLED_BUFFER = 64 * 1024;
+
+	private ComplexType queryType, overviewType, membersType;
+	private Charset charset;
+	private BlockingQueue<Codec> pool;
+
+	public BullyCodec(Charset charset) {
+		this(charset, DEFAULT_POOL_SIZE);
+	}
+	
+	public BullyCodec(Charset charset, int poolSize) {
+		this.charset = charset;
+		this.queryType = (ComplexType) BeanResolver.getInstance().resolve(BullyQuery.class);
+		this.overviewType = (ComplexType) BeanResolver.getInstance().resolve(BullyQueryOverview.class);
+		this.membersType = (ComplexType) BeanResolver.getInstance().resolve(BullyMembers.class);
+		this.pool = poolSize > 0 ? new ArrayBlockingQueue<Codec>(poolSize) : null;
+	}
+
+	public String getContentType() {
+		return "application/xml";
+	}
+
+	public byte[] marshal(BullyQuery query) throws IOException {
+		Codec codec = acquire();
+		try {
+			return codec.marshal(codec.getQueryBinding(), new BeanInstance<BullyQuery>(query));
+		}
+		finally {
+			release(codec);
+		}
+	}
+
+	public byte[] marshal(BullyQueryOverview overview) throws IOException {
+		Codec codec = acquire();
+		try {
+			return codec.marshal(codec.getOverviewBinding(), new BeanInstance<BullyQueryOverview>(overview));
+		}
+		finally {
+			release(codec);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public BullyQuery unmarshalQuery(InputStream input) throws IOException, ParseException {
+		Codec codec = acquire();
+		try {
+			ComplexContent content = codec.getQueryBinding().unmarshal(input, NO_WINDOWS);
+			return content == null ? null : ((BeanInstance<BullyQuery>) content).getUnwrapped();
+		}
+		finally {
+			release(codec);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public BullyQueryOverview unmarshalOverview(InputStream input) throws IOException, ParseException {
+		Codec codec = acquire();
+		try {
+			ComplexContent content = codec.getOverviewBinding().unmarshal(input, NO_WINDOWS);
+			return content == null ? null : ((BeanInstance<BullyQueryOverview>) content).getUnwrapped();
+		}
+		finally {
+			release(codec);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public BullyMembers unmarshalMembers(InputStream input) throws IOException, ParseException {
+		Codec codec = acquire();
+		try {
+			ComplexContent content = codec.getMembersBinding().unmarshal(input, NO_WINDOWS);
+			return content == null ? null : ((BeanInstance<BullyMembers>) content).getUnwrapped();
+		}
+		finally {
+			release(codec);
+		}
+	}
+	
+	private Codec acquire() {
+		Codec codec = pool == null ? null : pool.poll();
+		return codec == null ? new Codec() : codec;
+	}
+	
+	private void release(Codec codec) {
+		if (pool != null && codec.buffer.size() <= MAX_POOLED_BUFFER) {
+			// if the pool is full, the codec is simply discarded
+			pool.offer(codec);
+		}
+	}
+	
+	/**
+	 * The amount of bindings that are currently idle in the pool
+	 */
+	public int getPooled() {
+		return pool == null ? 0 : pool.size();
+	}
+	
+	// the bindings are created on first use, a codec that is only used for queries never builds an overview binding
+	private class Codec {
+		private XMLBinding queryBinding, overviewBinding, membersBinding;
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+		
+		private XMLBinding getQueryBinding() {
+			if (queryBinding == null) {
+				queryBinding = new XMLBinding(queryType, charset);
+			}
+			return queryBinding;
+		}
+		
+		private XMLBinding getOverviewBinding() {
+			if (overviewBinding == null) {
+				overviewBinding = new XMLBinding(overviewType, charset);
+			}
+			return overviewBinding;
+		}
+		
+		private XMLBinding getMembersBinding() {
+			if (membersBinding == null) {
+				membersBinding = new XMLBinding(membersType, charset);
+			}
+			return membersBinding;
+		}
+		
+		private byte[] marshal(XMLBinding binding, ComplexContent content) throws IOException {
+			// the buffer keeps its capacity between calls, only the result itself is allocated
+			buffer.reset();
+			binding.marshal(buffer, content);
+			return buffer.toByteArray();
+		}
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+}
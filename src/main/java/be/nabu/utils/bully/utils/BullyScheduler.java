@@ -0,0 +1,279 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.utils.bully.BullyClock;
+
+/**
+ * Owns the timers (heartbeats, election timeouts,...), the worker threads (elections, heartbeats) and the threads for the outgoing requests of one or more bully clients.
+ * The timer thread only hands off due tasks to the workers so a slow heartbeat or election can never delay the timers of another client.
+ * The requests an election or heartbeat sends to its peers run on a separate executor, a worker that waits for the answers never waits on requests queued behind itself.
+ * A single scheduler can be shared by many clients, in that case it is up to the owner to close it.
+ */
+public class BullyScheduler implements Closeable {
+
+	private static AtomicInteger counter = new AtomicInteger();
+
+	/**
+	 * The default maximum amount of worker threads, work beyond that is queued
+	 */
+	public static final int DEFAULT_MAX_THREADS = 64;
+
+	private ThreadFactory threadFactory;
+	private ScheduledThreadPoolExecutor timer;
+	private ExecutorService workers, requests;
+	private int maxThreads;
+	private boolean closed;
+
+	public BullyScheduler() {
+		this(null);
+	}
+
+	public BullyScheduler(ThreadFactory threadFactory) {
+		this(threadFactory, DEFAULT_MAX_THREADS);
+	}
+
+	public BullyScheduler(ThreadFactory threadFactory, int maxThreads) {
+		if (maxThreads <= 0) {
+			throw new IllegalArgumentException("The scheduler needs at least one worker thread");
+		}
+		this.threadFactory = threadFactory == null ? newDaemonThreadFactory("bully-" + counter.incrementAndGet()) : threadFactory;
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * Creates a scheduler that runs its workers on virtual threads if the JVM supports them, otherwise regular daemon threads are used
+	 */
+	public static BullyScheduler newVirtual() {
+		return new BullyScheduler(newVirtualThreadFactory());
+	}
+
+	public synchronized void start() {
+		if (closed) {
+			throw new IllegalStateException("The scheduler has been closed");
+		}
+		if (timer == null) {
+			// the timer itself always runs on a platform thread, it only hands off work
+			timer = new ScheduledThreadPoolExecutor(1, newDaemonThreadFactory("bully-timer-" + counter.incrementAndGet()));
+			timer.setRemoveOnCancelPolicy(true);
+			// a burst of requests (e.g. a broadcast to a large cluster) can not spawn an unbounded amount of threads, idle threads time out
+			ThreadPoolExecutor workers = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+			workers.allowCoreThreadTimeOut(true);
+			this.workers = workers;
+			// the requests mostly wait on the network, every request gets a thread right away and idle threads time out
+			this.requests = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (timer != null) {
+			timer.shutdownNow();
+			workers.shutdownNow();
+			requests.shutdownNow();
+			timer = null;
+			workers = null;
+			requests = null;
+		}
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public synchronized boolean isStarted() {
+		return timer != null;
+	}
+
+	private synchronized ScheduledThreadPoolExecutor getTimer() {
+		if (timer == null) {
+			start();
+		}
+		return timer;
+	}
+
+	/**
+	 * The executor that runs all the actual work
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (workers == null) {
+			start();
+		}
+		return workers;
+	}
+
+	/**
+	 * The executor for the requests to the peers, the work on the workers can wait for these without starving them
+	 */
+	public synchronized ExecutorService getRequestExecutor() {
+		if (requests == null) {
+			start();
+		}
+		return requests;
+	}
+
+	public void execute(Runnable runnable) {
+		getExecutor().execute(runnable);
+	}
+
+	/**
+	 * Runs the runnable on the timer after the given delay (in ms), the runnable should only hand off work.
+	 * A delay of 0 or less runs it right away, the returned future can be null in that case.
+	 */
+	protected Future<?> delay(Runnable runnable, long delay) {
+		if (delay <= 0) {
+			runnable.run();
+			return null;
+		}
+		return getTimer().schedule(runnable, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run the runnable once after the given delay (in ms)
+	 */
+	public Task schedule(Runnable runnable, long delay) {
+		Task task = new Task(runnable, -1);
+		task.schedule(delay);
+		return task;
+	}
+
+	/**
+	 * Run the runnable repeatedly, the delay (in ms) is counted from the end of one run to the start of the next so runs never overlap
+	 */
+	public Task scheduleWithFixedDelay(Runnable runnable, long initialDelay, long delay) {
+		Task task = new Task(runnable, delay);
+		task.schedule(initialDelay);
+		return task;
+	}
+
+	/**
+	 * Run the runnable repeatedly at multiples of the period (in ms) on the given clock.
+	 * All tasks with the same period run at the same moment, wherever they were started, which allows their work to be batched.
+	 */
+	public Task scheduleAligned(Runnable runnable, long period, BullyClock clock) {
+		Task task = new Task(runnable, period);
+		task.clock = clock;
+		task.schedule(task.getAlignedDelay());
+		return task;
+	}
+
+	public class Task {
+
+		private Runnable runnable;
+		private long delay;
+		private volatile boolean cancelled;
+		private volatile Future<?> future;
+		// if set, the runs are aligned on this clock
+		private BullyClock clock;
+
+		private Task(Runnable runnable, long delay) {
+			this.runnable = runnable;
+			this.delay = delay;
+		}
+
+		private void schedule(long delay) {
+			future = delay(new Runnable() {
+				@Override
+				public void run() {
+					handOff();
+				}
+			}, delay);
+		}
+
+		private void handOff() {
+			if (!cancelled) {
+				getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						if (!cancelled) {
+							try {
+								runnable.run();
+							}
+							finally {
+								if (delay >= 0 && !cancelled) {
+									synchronized(BullyScheduler.this) {
+										if (!closed) {
+											schedule(clock == null ? delay : getAlignedDelay());
+										}
+									}
+								}
+							}
+						}
+					}
+				});
+			}
+		}
+
+		// always more than 0 so a run at the boundary does not immediately run again
+		private long getAlignedDelay() {
+			return delay - (clock.currentTimeMillis() % delay);
+		}
+
+		/**
+		 * Cancels any future runs, a run that is ongoing is not interrupted
+		 */
+		public void cancel() {
+			cancelled = true;
+			Future<?> future = this.future;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private static ThreadFactory newDaemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private AtomicInteger threadCounter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static ThreadFactory newVirtualThreadFactory() {
+		try {
+			// virtual threads are only available in recent JVMs, use reflection so we can still run on older ones
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "bully-virtual-" + counter.incrementAndGet() + "-", 1l);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.text.ParseException;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.utils.bully.BullyTransport;
+import be.nabu.utils.mime.impl.FormatException;
+
+/**
+ * Sends the requests over the network, the host is expected to be set as a header on the request.
+ */
+public class HTTPClientTransport implements BullyTransport {
+
+	private HTTPClient client;
+	private Principal principal;
+	private boolean secure;
+
+	public HTTPClientTransport(HTTPClient client, Principal principal, boolean secure) {
+		this.client = client;
+		this.principal = principal;
+		this.secure = secure;
+	}
+
+	@Override
+	public HTTPResponse execute(String host, HTTPRequest request) throws IOException, FormatException, ParseException {
+		return client.execute(request, principal, secure, false);
+	}
+}
@@ -0,0 +1,255 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.utils.bully.BullyClient;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.ElectionListener;
+import be.nabu.utils.bully.ElectionState;
+import be.nabu.utils.bully.HandOffStrategy;
+import be.nabu.utils.bully.ReportedScoreRanking;
+
+/**
+ * Ranks the hosts by their recent load, the least loaded host ranks highest.
+ * 
+ * Every server smoothes its own load over the last entries of its history and reports the result with its messages, the other servers rank it on that reported score.
+ * The scores are compared per granularity so small fluctuations do not change the ranking, within the same bucket the name decides.
+ * The previous master gets a bonus (the hysteresis) on its own score so the mastership does not move around, unless its load is above the hand off threshold.
+ * Hosts that have not reported a score rank below hosts that have, if no host has reported the ranking falls back to the name.
+ * The ranking uses the scores as they were when the client entered its current term, so they can not change in the middle of an election.
+ * 
+ * As a hand off strategy it lets the master step down when its load stays above the threshold and another host has headroom.
+ * The cooldown only starts once another host has actually been accepted as master.
+ * If leases are used, the followers only accept the new master once the lease they granted the old one expires.
+ */
+public class LoadAwareRanking implements ReportedScoreRanking, HandOffStrategy {
+
+	private BullyClient client;
+	// the amount of recent entries the load is smoothed over
+	private int window = 5;
+	private double granularity = 0.1, hysteresis = 0.2, handOffThreshold = 0.8;
+	// the minimum time (ms) between two hand offs
+	private long handOffCooldown = 5*60*1000;
+	private volatile long lastHandOff;
+	private volatile boolean handedOff;
+	// we asked for an election to hand off, it is not known yet whether it moves the mastership
+	private volatile boolean handOffPending;
+	// the score we last reported ourselves
+	private volatile double ownScore = Double.NaN;
+	private Map<String, Report> reported = new ConcurrentHashMap<String, Report>();
+	// the scores of the current term, null as long as no term has been entered
+	private volatile Snapshot snapshot;
+
+	public LoadAwareRanking(BullyClient client) {
+		this.client = client;
+		client.addElectionListener(new ElectionListener() {
+			@Override
+			public void transitioned(ElectionState from, ElectionState to) {
+				if (handOffPending && to.getMaster() != null) {
+					handOffPending = false;
+					// the election may have picked us again, that is not a hand off
+					if (!to.getMaster().equals(LoadAwareRanking.this.client.getHost())) {
+						lastHandOff = LoadAwareRanking.this.client.getClock().nanoTime();
+						handedOff = true;
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public int compare(String host1, String host2) {
+		Snapshot snapshot = this.snapshot;
+		return snapshot == null ? compare(host1, getScore(host1), host2, getScore(host2)) : compare(host1, snapshot.getScore(host1), host2, snapshot.getScore(host2));
+	}
+
+	private int compare(String host1, double score1, String host2, double score2) {
+		boolean known1 = !Double.isNaN(score1), known2 = !Double.isNaN(score2);
+		if (known1 && known2) {
+			long bucket1 = (long) Math.floor(score1 / granularity), bucket2 = (long) Math.floor(score2 / granularity);
+			if (bucket1 != bucket2) {
+				// the lower the load, the higher the rank
+				return bucket1 < bucket2 ? 1 : -1;
+			}
+		}
+		else if (known1 != known2) {
+			return known1 ? 1 : -1;
+		}
+		return host1.compareTo(host2);
+	}
+
+	@Override
+	public double determineOwnScore(String previousMaster) {
+		String host = client.getHost();
+		double score = getSmoothedLoad(host);
+		if (!Double.isNaN(score) && score < handOffThreshold && host.equals(previousMaster)) {
+			score -= hysteresis;
+		}
+		ownScore = score;
+		return score;
+	}
+
+	@Override
+	public double getOwnScore() {
+		return ownScore;
+	}
+
+	@Override
+	public void setReportedScore(String host, double score, long timestamp) {
+		while (true) {
+			Report current = reported.get(host);
+			if (current == null) {
+				if (reported.putIfAbsent(host, new Report(score, timestamp)) == null) {
+					return;
+				}
+			}
+			// an older message arriving late does not overwrite what we know
+			else if (current.timestamp > timestamp || reported.replace(host, current, new Report(score, timestamp))) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void snapshot(long term) {
+		// a delayed call for an older term does not replace the newer snapshot
+		if (snapshot == null || snapshot.term < term) {
+			Map<String, Double> scores = new HashMap<String, Double>();
+			for (Map.Entry<String, Report> entry : reported.entrySet()) {
+				scores.put(entry.getKey(), entry.getValue().score);
+			}
+			scores.put(client.getHost(), ownScore);
+			snapshot = new Snapshot(term, scores);
+		}
+	}
+
+	@Override
+	public boolean shouldHandOff(String master, List<String> hosts) {
+		long now = client.getClock().nanoTime();
+		if (handOffPending || (handedOff && TimeUnit.NANOSECONDS.toMillis(now - lastHandOff) < handOffCooldown)) {
+			return false;
+		}
+		double load = getSmoothedLoad(master);
+		if (Double.isNaN(load) || load < handOffThreshold) {
+			return false;
+		}
+		for (String host : hosts) {
+			if (!host.equals(master)) {
+				double other = getScore(host);
+				// only hand off to a host that has headroom and that the election will actually pick over us, the election snapshots the latest scores
+				if (!Double.isNaN(other) && other < handOffThreshold && compare(host, other, master, getScore(master)) > 0) {
+					handOffPending = true;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// the latest score the host reported, for ourselves the score we report
+	private double getScore(String host) {
+		if (host.equals(client.getHost())) {
+			return ownScore;
+		}
+		Report report = reported.get(host);
+		return report == null ? Double.NaN : report.score;
+	}
+
+	/**
+	 * An exponentially weighted average of the recent load of the host as it is recorded in the local history, NaN if there is no (usable) history
+	 */
+	public double getSmoothedLoad(String host) {
+		List<BullyQuery> history = client.getHistoryStore().getHistory(host, 0);
+		if (history == null || history.isEmpty()) {
+			return Double.NaN;
+		}
+		double alpha = 2.0 / (window + 1);
+		double smoothed = Double.NaN;
+		for (int i = Math.max(0, history.size() - window); i < history.size(); i++) {
+			double load = history.get(i).getLoad();
+			// the load average is not available on all platforms
+			if (load < 0 || Double.isNaN(load)) {
+				continue;
+			}
+			smoothed = Double.isNaN(smoothed) ? load : alpha * load + (1 - alpha) * smoothed;
+		}
+		return smoothed;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+	public void setWindow(int window) {
+		this.window = Math.max(1, window);
+	}
+	public double getGranularity() {
+		return granularity;
+	}
+	public void setGranularity(double granularity) {
+		this.granularity = granularity;
+	}
+	public double getHysteresis() {
+		return hysteresis;
+	}
+	public void setHysteresis(double hysteresis) {
+		this.hysteresis = hysteresis;
+	}
+	public double getHandOffThreshold() {
+		return handOffThreshold;
+	}
+	public void setHandOffThreshold(double handOffThreshold) {
+		this.handOffThreshold = handOffThreshold;
+	}
+	public long getHandOffCooldown() {
+		return handOffCooldown;
+	}
+	public void setHandOffCooldown(long handOffCooldown) {
+		this.handOffCooldown = handOffCooldown;
+	}
+
+	private static class Snapshot {
+		private final long term;
+		private final Map<String, Double> scores;
+
+		private Snapshot(long term, Map<String, Double> scores) {
+			this.term = term;
+			this.scores = scores;
+		}
+
+		private double getScore(String host) {
+			Double score = scores.get(host);
+			return score == null ? Double.NaN : score;
+		}
+	}
+
+	private static class Report {
+		private final double score;
+		private final long timestamp;
+
+		private Report(double score, long timestamp) {
+			this.score = score;
+			this.timestamp = timestamp;
+		}
+	}
+}
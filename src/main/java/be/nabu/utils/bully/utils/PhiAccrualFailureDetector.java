@@ -0,0 +1,150 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.utils.bully.FailureDetector;
+
+/**
+ * The phi accrual failure detector (Hayashibara et al.) learns the distribution of the intervals between heartbeats of each peer.
+ * The suspicion (phi) expresses how unlikely it is that the next heartbeat is still coming given the time since the last one.
+ * A phi of 1 means a 10% chance of being wrong when suspecting the peer, a phi of 2 means 1%, 3 means 0.1% and so on.
+ */
+public class PhiAccrualFailureDetector implements FailureDetector {
+
+	private double threshold;
+	private int maxSampleSize;
+	private long minStdDeviation, acceptablePause, firstHeartbeatEstimate;
+	private ConcurrentMap<String, Intervals> peers = new ConcurrentHashMap<String, Intervals>();
+
+	/**
+	 * @param threshold the phi above which a peer is suspected
+	 * @param maxSampleSize the amount of intervals that are remembered per peer
+	 * @param minStdDeviation the minimum standard deviation (ms), prevents the detector from becoming too sensitive with very regular heartbeats
+	 * @param acceptablePause a pause (ms) that is added to the mean interval, for example to allow for garbage collection
+	 * @param firstHeartbeatEstimate the interval (ms) we assume until we have actual data
+	 */
+	public PhiAccrualFailureDetector(double threshold, int maxSampleSize, long minStdDeviation, long acceptablePause, long firstHeartbeatEstimate) {
+		this.threshold = threshold;
+		this.maxSampleSize = maxSampleSize;
+		this.minStdDeviation = minStdDeviation;
+		this.acceptablePause = acceptablePause;
+		this.firstHeartbeatEstimate = firstHeartbeatEstimate;
+	}
+
+	/**
+	 * Defaults for a given heartbeat interval: a threshold of 8 which in practice means a single missed heartbeat is tolerated but a second one is not
+	 */
+	public PhiAccrualFailureDetector(long heartbeatInterval) {
+		this(8, 200, Math.max(100, heartbeatInterval / 10), 0, heartbeatInterval);
+	}
+
+	@Override
+	public void heartbeat(String peer, long timestamp) {
+		Intervals intervals = peers.get(peer);
+		if (intervals == null) {
+			Intervals newIntervals = new Intervals();
+			intervals = peers.putIfAbsent(peer, newIntervals);
+			if (intervals == null) {
+				intervals = newIntervals;
+			}
+		}
+		intervals.heartbeat(timestamp);
+	}
+
+	@Override
+	public boolean isAvailable(String peer, long timestamp) {
+		return getSuspicion(peer, timestamp) < threshold;
+	}
+
+	@Override
+	public double getSuspicion(String peer, long timestamp) {
+		Intervals intervals = peers.get(peer);
+		// we have never heard from it, nothing to suspect
+		return intervals == null ? 0 : intervals.phi(timestamp);
+	}
+
+	@Override
+	public void remove(String peer) {
+		peers.remove(peer);
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	private class Intervals {
+
+		private long [] samples = new long[maxSampleSize];
+		private int size, next;
+		private double sum, sumOfSquares;
+		private long last = -1;
+
+		synchronized void heartbeat(long timestamp) {
+			if (last < 0) {
+				// seed with the estimate, assume the minimum standard deviation
+				add(firstHeartbeatEstimate - minStdDeviation);
+				add(firstHeartbeatEstimate + minStdDeviation);
+			}
+			else if (timestamp > last) {
+				add(timestamp - last);
+			}
+			last = timestamp;
+		}
+
+		private void add(long interval) {
+			if (size == samples.length) {
+				long dropped = samples[next];
+				sum -= dropped;
+				sumOfSquares -= (double) dropped * dropped;
+			}
+			else {
+				size++;
+			}
+			samples[next] = interval;
+			next = (next + 1) % samples.length;
+			sum += interval;
+			sumOfSquares += (double) interval * interval;
+		}
+
+		synchronized double phi(long timestamp) {
+			if (last < 0 || size == 0) {
+				return 0;
+			}
+			double mean = sum / size;
+			double variance = Math.max(0, (sumOfSquares / size) - (mean * mean));
+			double deviation = Math.max(Math.sqrt(variance), minStdDeviation);
+			double elapsed = timestamp - last;
+			// logistic approximation of the cumulative normal distribution
+			double y = (elapsed - (mean + acceptablePause)) / deviation;
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+			if (elapsed > mean + acceptablePause) {
+				return -Math.log10(e / (1 + e));
+			}
+			else {
+				return -Math.log10(1 - 1 / (1 + e));
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.utils.bully.RankingStrategy;
+
+/**
+ * Ranks the hosts by a hash of the group and the host (rendezvous hashing).
+ * Every group gets its own ordering of the hosts so the masters of many groups are spread over the cluster, when a host leaves only the groups it was master of move.
+ */
+public class RendezvousRanking implements RankingStrategy {
+
+	private String group;
+	private ConcurrentMap<String, Long> scores = new ConcurrentHashMap<String, Long>();
+
+	public RendezvousRanking(String group) {
+		this.group = group;
+	}
+
+	@Override
+	public int compare(String host1, String host2) {
+		int comparison = Long.compare(getScore(host1), getScore(host2));
+		// fall back to the name on the (unlikely) event of a collision so the order is always total
+		return comparison == 0 ? host1.compareTo(host2) : comparison;
+	}
+
+	public long getScore(String host) {
+		Long score = scores.get(host);
+		if (score == null) {
+			score = hash(group, host);
+			scores.put(host, score);
+		}
+		return score;
+	}
+
+	public String getGroup() {
+		return group;
+	}
+
+	// fnv-1a over both strings followed by the murmur3 finalizer to spread the bits
+	private static long hash(String group, String host) {
+		long hash = 0xcbf29ce484222325l;
+		hash = fnv(hash, group);
+		// separate the two so "ab" + "c" differs from "a" + "bc"
+		hash = (hash ^ 0xff) * 0x100000001b3l;
+		hash = fnv(hash, host);
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdl;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53l;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static long fnv(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3l;
+		}
+		return hash;
+	}
+}
@@ -17,13 +17,22 @@
 
 package be.nabu.utils.bully.utils;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import be.nabu.utils.bully.BullyClient;
 
+/**
+ * Scheduled by the client to start an election once the timeout expires.
+ * The state is switched atomically so an election can be cancelled as long as it has not started yet.
+ */
 public class WaitAndElect implements Runnable {
 
+	private static final int WAITING = 0, ELECTING = 1, DONE = 2, CANCELLED = 3;
+	
 	private BullyClient client;
 	private long timeout;
-	private boolean isElecting;
+	private AtomicInteger state = new AtomicInteger(WAITING);
+	private volatile BullyScheduler.Task task;
 
 	public WaitAndElect(BullyClient client, long timeout) {
 		this.client = client;
@@ -32,22 +41,50 @@ public class WaitAndElect implements Runnable {
 
 	@Override
 	public void run() {
-		boolean interrupted = false;
-		if (timeout > 0) {
+		if (state.compareAndSet(WAITING, ELECTING)) {
 			try {
-				Thread.sleep(timeout);
+				client.elect();
+			}
+			finally {
+				state.set(DONE);
 			}
-			catch (InterruptedException e) {
-				interrupted = true;
+		}
+	}
+	
+	/**
+	 * Returns true if the election was prevented, false if it is already running or finished
+	 */
+	public boolean cancel() {
+		if (state.compareAndSet(WAITING, CANCELLED)) {
+			BullyScheduler.Task task = this.task;
+			if (task != null) {
+				task.cancel();
 			}
+			return true;
 		}
-		if (!interrupted) {
-			isElecting = true;
-			client.elect();
+		return state.get() == CANCELLED;
+	}
+	
+	/**
+	 * The task that will run the election, it is cancelled along with the election
+	 */
+	public void setTask(BullyScheduler.Task task) {
+		this.task = task;
+		// we were cancelled before the task was known
+		if (state.get() == CANCELLED) {
+			task.cancel();
 		}
 	}
 	
 	public boolean isElecting() {
-		return isElecting;
+		return state.get() == ELECTING;
+	}
+	
+	public boolean isFinished() {
+		return state.get() >= DONE;
+	}
+	
+	public long getTimeout() {
+		return timeout;
 	}
 }
@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.bully.simulation.SimulatedClock;
+import be.nabu.utils.bully.simulation.SimulatedScheduler;
+
+public class ElectionTest extends TestCase {
+	
+	/**
+	 * An election that fails halfway (here on a 400 from every peer) must not leave the server without a pending election
+	 */
+	public void testFailedElectionIsRetried() {
+		SimulatedClock clock = new SimulatedClock(0);
+		SimulatedScheduler scheduler = new SimulatedScheduler(clock);
+		final AtomicInteger requests = new AtomicInteger();
+		BullyClient client = new BullyClient("b", "/", new MasterController() {
+			@Override
+			public void setMaster(String master) {
+				// nothing to do
+			}
+		}, 1000l, null, null, false, Arrays.asList("a", "b", "c"));
+		client.setClock(clock);
+		client.setScheduler(scheduler);
+		client.setTransport(new BullyTransport() {
+			@Override
+			public HTTPResponse execute(String host, HTTPRequest request) {
+				requests.incrementAndGet();
+				return new DefaultHTTPResponse(400, "Bad Request", null);
+			}
+		});
+		scheduler.start();
+		client.elect();
+		assertEquals(ElectionRole.AWAITING_VICTORY, client.getElectionState().getRole());
+		assertTrue(client.getElectionState().isElectionPending());
+		int sent = requests.get();
+		// the retry runs once the victory timeout has passed
+		scheduler.runUntil(clock.currentTimeMillis() + 1500);
+		assertTrue(requests.get() > sent);
+		assertTrue(client.getElectionState().isElectionPending());
+		client.close();
+	}
+	
+	/**
+	 * Waiting for a master that is not found in time must honor the future contract, only getMasterOrNull() returns null
+	 */
+	public void testMasterTimeout() throws Exception {
+		SimulatedClock clock = new SimulatedClock(0);
+		SimulatedScheduler scheduler = new SimulatedScheduler(clock);
+		BullyClient client = new BullyClient("b", "/", new MasterController() {
+			@Override
+			public void setMaster(String master) {
+				// nothing to do
+			}
+		}, 1000l, null, null, false, Arrays.asList("a", "b", "c"));
+		client.setClock(clock);
+		client.setScheduler(scheduler);
+		CompletableFuture<String> future = client.getMaster();
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			fail("Expected a timeout");
+		}
+		catch (TimeoutException e) {
+			// expected
+		}
+		future.cancel(false);
+		assertNull(client.getMasterOrNull(10, TimeUnit.MILLISECONDS));
+		client.close();
+	}
+}
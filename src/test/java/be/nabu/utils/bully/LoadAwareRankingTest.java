@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import be.nabu.utils.bully.simulation.SimulatedClock;
+import be.nabu.utils.bully.simulation.SimulatedScheduler;
+import be.nabu.utils.bully.utils.LoadAwareRanking;
+
+public class LoadAwareRankingTest extends TestCase {
+	
+	private SimulatedClock clock;
+	private BullyClient client;
+	private LoadAwareRanking ranking;
+	
+	@Override
+	protected void setUp() {
+		clock = new SimulatedClock(0);
+		client = new BullyClient("b", "/", new MasterController() {
+			@Override
+			public void setMaster(String master) {
+				// nothing to do
+			}
+		}, 1000l, null, null, false, Arrays.asList("a", "b", "c"));
+		client.setClock(clock);
+		client.setScheduler(new SimulatedScheduler(clock));
+		ranking = new LoadAwareRanking(client);
+		client.setRankingStrategy(ranking);
+	}
+	
+	@Override
+	protected void tearDown() {
+		client.close();
+	}
+	
+	/**
+	 * Scores reported during a term do not change the ranking until the next term
+	 */
+	public void testRankOnTermSnapshot() {
+		ranking.setReportedScore("a", 0.5, 1);
+		ranking.setReportedScore("c", 0.1, 1);
+		client.observeTerm(1);
+		assertTrue(client.compareRank("c", "a") > 0);
+		ranking.setReportedScore("a", 0.1, 2);
+		ranking.setReportedScore("c", 0.5, 2);
+		assertTrue(client.compareRank("c", "a") > 0);
+		// an older term does not replace the snapshot
+		ranking.snapshot(0);
+		assertTrue(client.compareRank("c", "a") > 0);
+		client.observeTerm(2);
+		assertTrue(client.compareRank("a", "c") > 0);
+	}
+	
+	/**
+	 * The cooldown only starts once another server has been accepted as master
+	 */
+	public void testHandOffOnceAccepted() {
+		for (int i = 0; i < 5; i++) {
+			BullyQuery query = new BullyQuery("b");
+			query.setCreated(new Date(clock.currentTimeMillis()));
+			query.setLoad(0.95);
+			client.getHistoryStore().push(query);
+		}
+		ranking.setReportedScore("a", 0.1, 1);
+		client.setMaster("b", 1);
+		assertTrue(ranking.shouldHandOff("b", client.getHosts()));
+		// the election is still running
+		assertFalse(ranking.shouldHandOff("b", client.getHosts()));
+		// the election picked us again, we can try again
+		client.setMaster("b", 2);
+		assertTrue(ranking.shouldHandOff("b", client.getHosts()));
+		client.setMaster("a", 3);
+		client.setMaster("b", 4);
+		assertFalse(ranking.shouldHandOff("b", client.getHosts()));
+	}
+}
@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MembershipTest extends TestCase {
+	
+	private static final List<String> HOSTS = Arrays.asList("a", "b", "c");
+	
+	public void testCounterWithinTerm() {
+		Membership first = new Membership(0, HOSTS).with("d", 3);
+		Membership second = first.with("e", 3);
+		assertEquals(3, first.getTerm());
+		assertEquals(1, first.getCounter());
+		assertEquals(3, second.getTerm());
+		assertEquals(2, second.getCounter());
+	}
+	
+	/**
+	 * Two masters that each make a change without having seen the change of the other must not end up with the same version
+	 */
+	public void testTwoMastersInSuccession() {
+		Membership base = new Membership(0, HOSTS);
+		// the master of term 1 adds a host, the master of term 2 never heard of it and removes another one
+		Membership first = base.with("d", 1);
+		Membership second = base.without("c", 2);
+		assertTrue(first.getVersion() != second.getVersion());
+		assertTrue(second.getVersion() > first.getVersion());
+		
+		BullyClient follower = newClient();
+		follower.adoptMembership(first.getVersion(), first.getHosts());
+		assertTrue(follower.getMembership().hasSameHosts(first.getHosts()));
+		// the new master sends its members because the version the follower reports differs from its own
+		assertTrue(follower.getMembership().getVersion() != second.getVersion());
+		follower.adoptMembership(second.getVersion(), second.getHosts());
+		assertTrue(follower.getMembership().hasSameHosts(second.getHosts()));
+		// a late message of the old master does not undo it
+		follower.adoptMembership(first.getVersion(), first.getHosts());
+		assertTrue(follower.getMembership().hasSameHosts(second.getHosts()));
+	}
+	
+	/**
+	 * The round trips to servers that left the cluster are forgotten
+	 */
+	public void testRoundTripsOfLeavingHosts() {
+		BullyClient follower = newClient();
+		follower.getMetrics().heartbeat("a", 5);
+		follower.getMetrics().heartbeat("c", 5);
+		Membership next = new Membership(0, HOSTS).without("c", 1);
+		follower.adoptMembership(next.getVersion(), next.getHosts());
+		assertTrue(follower.getMetrics().getRoundTrips().containsKey("a"));
+		assertFalse(follower.getMetrics().getRoundTrips().containsKey("c"));
+		follower.close();
+	}
+	
+	private static BullyClient newClient() {
+		return new BullyClient("b", "/", new MasterController() {
+			@Override
+			public void setMaster(String master) {
+				// nothing to do
+			}
+		}, 1000l, null, null, false, HOSTS);
+	}
+}
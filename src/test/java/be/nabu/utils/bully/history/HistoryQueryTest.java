@@ -0,0 +1,101 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.utils.bully.BullyQuery;
+
+public class HistoryQueryTest extends TestCase {
+	
+	private static final String HOST = "http://server1.example.com:8080/";
+	
+	/**
+	 * Three entries a minute apart, only the last two are still raw
+	 */
+	private static HistoryStore newStore() {
+		HistoryStore store = new HistoryStore(2);
+		for (int i = 0; i < 3; i++) {
+			BullyQuery query = new BullyQuery();
+			query.setHost(HOST);
+			query.setCreated(new Date(i * Rollup.MINUTE));
+			query.setLoad(i);
+			store.push(query);
+		}
+		return store;
+	}
+	
+	private static HistoryQuery newQuery(String function) {
+		HistoryQuery query = new HistoryQuery();
+		query.setFields(Arrays.asList(HistoryField.LOAD));
+		query.setFunctions(Arrays.asList(function));
+		return query;
+	}
+	
+	public void testWithoutStartUsesRawEntries() {
+		List<Series> series = newQuery("count").execute(newStore());
+		assertEquals(1, series.size());
+		assertEquals(2, series.get(0).getPoints().get(0).getCount());
+	}
+	
+	public void testOlderRangeUsesRollups() {
+		HistoryQuery query = newQuery("avg");
+		query.setFrom(0);
+		query.setBucket(Rollup.MINUTE);
+		List<SeriesPoint> points = getPoints(query, newStore());
+		assertEquals(3, points.size());
+		assertEquals(0.0, points.get(0).getValue());
+	}
+	
+	public void testMisalignedBucketIsRejected() {
+		HistoryQuery query = newQuery("avg");
+		query.setFrom(0);
+		query.setBucket(Rollup.MINUTE + 1);
+		try {
+			query.execute(newStore());
+			fail("A bucket that does not line up with a rollup should be rejected");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testPercentilesNeedRawEntries() {
+		HistoryQuery query = newQuery("p95");
+		query.setFrom(0);
+		try {
+			query.execute(newStore());
+			fail("Percentiles over a range that is no longer raw should be rejected");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+		// within the raw range they are fine
+		query.setFrom(Rollup.MINUTE);
+		assertEquals(1, query.execute(newStore()).size());
+	}
+	
+	private static List<SeriesPoint> getPoints(HistoryQuery query, HistoryStore store) {
+		List<Series> series = query.execute(store);
+		assertEquals(1, series.size());
+		return series.get(0).getPoints();
+	}
+}
@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.history;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.simulation.SimulatedClock;
+
+public class HistoryStoreTest extends TestCase {
+	
+	private static final String HOST = "http://server1.example.com:8080/";
+	
+	public void testSequenceFollowsClock() throws Exception {
+		SimulatedClock clock = new SimulatedClock(1000000);
+		HistoryStore store = new HistoryStore(10);
+		store.setClock(clock);
+		store.push(newQuery(clock.currentTimeMillis()));
+		assertEquals(1000001, store.getSequence());
+		// multiple pushes within the same ms still get a new sequence
+		store.push(newQuery(clock.currentTimeMillis()));
+		assertEquals(1000002, store.getSequence());
+		clock.advance(5000);
+		store.push(newQuery(clock.currentTimeMillis()));
+		assertEquals(1005001, store.getSequence());
+	}
+	
+	/**
+	 * Replicating the same entries again (as in a full overview) only adds what is new
+	 */
+	public void testReplicateMergesBySequence() throws Exception {
+		HistoryStore master = new HistoryStore(10);
+		for (int i = 0; i < 3; i++) {
+			master.push(newQuery(1000 * i));
+		}
+		HistoryStore replica = new HistoryStore(10);
+		for (BullyQuery query : master.getHistory(HOST, 0)) {
+			assertTrue(replica.replicate(query));
+		}
+		master.push(newQuery(5000));
+		int added = 0;
+		for (BullyQuery query : master.getHistory(HOST, 0)) {
+			if (replica.replicate(query)) {
+				added++;
+			}
+		}
+		assertEquals(1, added);
+		assertEquals(4, replica.getHistory(HOST, 0).size());
+	}
+	
+	public void testRollupsArePersisted() throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "bully-history-" + System.nanoTime());
+		// a raw history of 2 entries can not rebuild the 3 minutes we push
+		HistoryStore store = new HistoryStore(2, 10, 10, directory);
+		for (int i = 0; i < 3; i++) {
+			store.push(newQuery(i * Rollup.MINUTE));
+		}
+		assertEquals(3, store.getRollup(HOST, Rollup.MINUTE, 0, Long.MAX_VALUE).size());
+		store.close();
+		
+		store = new HistoryStore(2, 10, 10, directory);
+		try {
+			List<RollupEntry> minutes = store.getRollup(HOST, Rollup.MINUTE, 0, Long.MAX_VALUE);
+			assertEquals(3, minutes.size());
+			assertEquals(0, minutes.get(0).getStart().getTime());
+			assertEquals(1.0, minutes.get(2).getLoad().getLast());
+			assertEquals(1, store.getRollup(HOST, Rollup.HOUR, 0, Long.MAX_VALUE).size());
+			assertEquals(2, store.getHistory(HOST, 0).size());
+		}
+		finally {
+			store.close();
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	private static BullyQuery newQuery(long created) {
+		BullyQuery query = new BullyQuery();
+		query.setHost(HOST);
+		query.setCreated(new Date(created));
+		query.setLoad(created / Rollup.MINUTE / 2.0);
+		return query;
+	}
+}
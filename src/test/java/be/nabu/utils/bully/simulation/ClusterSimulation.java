@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.simulation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.utils.bully.BullyClient;
+import be.nabu.utils.bully.HeartBeatMode;
+import be.nabu.utils.bully.TermAwareMasterController;
+
+/**
+ * Runs a cluster of bully clients in a single thread on a simulated clock and an in memory network.
+ * Faults can be injected between runs, every run reports how long it took for all the live servers to agree on a live master, how many messages were sent, how often a master changed
+ * and how many live servers considered themselves master at the same time.
+ */
+public class ClusterSimulation {
+
+	private SimulatedClock clock;
+	private SimulatedScheduler scheduler;
+	private InMemoryNetwork network;
+	private List<String> hosts = new ArrayList<String>();
+	private Map<String, BullyClient> clients = new HashMap<String, BullyClient>();
+	// the master as it was last reported to the controller of each server
+	private Map<String, String> masters = new HashMap<String, String>();
+	private long masterChanges;
+	// the most live servers that considered themselves master at the same time
+	private int maxMasters;
+	// when the cluster was last disrupted and when it agreed on a master again
+	private long disruptedAt, agreedAt = -1;
+
+	public ClusterSimulation(int size, long victoryTimeout, long heartBeatInterval, long seed) {
+		this.clock = new SimulatedClock(0);
+		this.scheduler = new SimulatedScheduler(clock);
+		this.network = new InMemoryNetwork(clock, seed);
+		for (int i = 0; i < size; i++) {
+			hosts.add(String.format("node-%03d", i));
+		}
+		for (final String host : hosts) {
+			BullyClient client = new BullyClient(host, "/", new TermAwareMasterController() {
+				@Override
+				public void setMaster(String master) {
+					setMaster(master, 0);
+				}
+				@Override
+				public void setMaster(String master, long term) {
+					record(host, master);
+				}
+			}, victoryTimeout, null, null, false, hosts);
+			client.setScheduler(scheduler);
+			client.setClock(clock);
+			client.setTransport(network.newTransport(host));
+			client.setHeartBeatInterval(heartBeatInterval);
+			client.setBinary(true);
+			network.register(host, client.newHandler());
+			clients.put(host, client);
+		}
+	}
+
+	private void record(String host, String master) {
+		String previous = masters.put(host, master);
+		if (master != null && !master.equals(previous)) {
+			masterChanges++;
+		}
+		if (agreedAt < 0 && master != null && getAgreedMaster() != null) {
+			agreedAt = clock.currentTimeMillis();
+		}
+		maxMasters = Math.max(maxMasters, getMasterCount());
+	}
+
+	/**
+	 * The amount of live servers that currently consider themselves master
+	 */
+	public int getMasterCount() {
+		int count = 0;
+		for (String host : hosts) {
+			if (!network.isDown(host) && host.equals(masters.get(host))) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The master all the live servers agree on, null if there is no agreement or the master itself is down
+	 */
+	public String getAgreedMaster() {
+		String agreed = null;
+		for (String host : hosts) {
+			if (network.isDown(host)) {
+				continue;
+			}
+			String master = masters.get(host);
+			if (master == null || (agreed != null && !agreed.equals(master))) {
+				return null;
+			}
+			agreed = master;
+		}
+		return agreed == null || network.isDown(agreed) ? null : agreed;
+	}
+
+	private void disrupted() {
+		disruptedAt = clock.currentTimeMillis();
+		agreedAt = getAgreedMaster() == null ? -1 : disruptedAt;
+		masterChanges = 0;
+		maxMasters = getMasterCount();
+		network.resetCounters();
+	}
+
+	/**
+	 * Switch all the servers to the given heartbeat mode, this should be done before the cluster is started
+	 */
+	public void setHeartBeatMode(HeartBeatMode heartBeatMode) {
+		for (BullyClient client : clients.values()) {
+			client.setHeartBeatMode(heartBeatMode);
+		}
+	}
+
+	/**
+	 * All the servers start at the same time and immediately hold an election
+	 */
+	public void coldStart() {
+		disrupted();
+		for (String host : hosts) {
+			clients.get(host).scheduleElection(true);
+		}
+	}
+
+	/**
+	 * The server is cut off from the network: it can not reach anyone and no one can reach it.
+	 * The client itself keeps running (as a hung server would) so it can be revived as is, closing it would abdicate and end its scheduling for good.
+	 */
+	public void kill(String host) {
+		network.kill(host);
+		disrupted();
+	}
+
+	/**
+	 * The server is reachable again, it immediately holds an election as a restarted server would
+	 */
+	public void revive(String host) {
+		network.revive(host);
+		disrupted();
+		clients.get(host).scheduleElection(true);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void partition(List<String>...groups) {
+		network.partition(groups);
+		disrupted();
+	}
+
+	public void heal() {
+		network.heal();
+		disrupted();
+	}
+
+	/**
+	 * Runs the simulation for the given amount of simulated time (ms) since the last disruption
+	 */
+	public SimulationReport run(String name, long duration) {
+		scheduler.runUntil(clock.currentTimeMillis() + duration);
+		return new SimulationReport(name, hosts.size(), agreedAt < 0 ? -1 : agreedAt - disruptedAt, network.getMessageCount(), network.getDropped(), network.getMessages(), masterChanges, maxMasters, getAgreedMaster());
+	}
+
+	public void close() {
+		for (BullyClient client : clients.values()) {
+			client.close();
+		}
+		scheduler.close();
+	}
+
+	public List<String> getHosts() {
+		return hosts;
+	}
+
+	public BullyClient getClient(String host) {
+		return clients.get(host);
+	}
+
+	public InMemoryNetwork getNetwork() {
+		return network;
+	}
+
+	public SimulatedClock getClock() {
+		return clock;
+	}
+
+	public SimulatedScheduler getScheduler() {
+		return scheduler;
+	}
+}
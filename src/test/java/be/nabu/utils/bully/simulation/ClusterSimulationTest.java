@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.utils.bully.HeartBeatMode;
+
+/**
+ * Runs the standard fault scenarios for a number of cluster sizes on the simulated network.
+ * After every disruption the live servers must agree on a live master within the run and, unless the network is split, never more than one of them may consider itself master.
+ */
+public class ClusterSimulationTest extends TestCase {
+	
+	private static final int [] SIZES = new int[] { 3, 10, 50 };
+	private static final long VICTORY_TIMEOUT = 60000, HEART_BEAT_INTERVAL = 5000, DURATION = 10 * 60000;
+	
+	private List<ClusterSimulation> simulations = new ArrayList<ClusterSimulation>();
+	
+	@Override
+	protected void tearDown() throws Exception {
+		for (ClusterSimulation simulation : simulations) {
+			simulation.close();
+		}
+		simulations.clear();
+	}
+	
+	public void testColdStart() {
+		for (int size : SIZES) {
+			ClusterSimulation simulation = newSimulation(size);
+			SimulationReport report = simulation.run("cold start", DURATION);
+			assertAgreed(report);
+			assertEquals(report.toString(), 1, report.getMaxMasters());
+			// without faults, the highest server wins
+			assertEquals(report.toString(), simulation.getHosts().get(size - 1), report.getMaster());
+		}
+	}
+	
+	public void testKillMaster() {
+		for (int size : SIZES) {
+			ClusterSimulation simulation = newSimulation(size);
+			simulation.run("cold start", DURATION);
+			String master = simulation.getAgreedMaster();
+			simulation.kill(master);
+			SimulationReport report = simulation.run("kill master", DURATION);
+			assertAgreed(report);
+			assertFalse(report.toString(), master.equals(report.getMaster()));
+			assertEquals(report.toString(), 1, report.getMaxMasters());
+		}
+	}
+	
+	public void testKillMasterWithLoss() {
+		for (int size : SIZES) {
+			ClusterSimulation simulation = newSimulation(size);
+			simulation.run("cold start", DURATION);
+			simulation.getNetwork().setDropRate(0.1);
+			String master = simulation.getAgreedMaster();
+			simulation.kill(master);
+			SimulationReport report = simulation.run("kill master, 10% loss", DURATION);
+			assertAgreed(report);
+			assertFalse(report.toString(), master.equals(report.getMaster()));
+		}
+	}
+	
+	public void testRevive() {
+		for (int size : SIZES) {
+			ClusterSimulation simulation = newSimulation(size);
+			simulation.run("cold start", DURATION);
+			String master = simulation.getAgreedMaster();
+			simulation.kill(master);
+			simulation.run("kill master", DURATION);
+			simulation.revive(master);
+			SimulationReport report = simulation.run("revive master", DURATION);
+			assertAgreed(report);
+			assertEquals(report.toString(), 1, simulation.getMasterCount());
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public void testPartition() {
+		for (int size : SIZES) {
+			ClusterSimulation simulation = newSimulation(size);
+			simulation.run("cold start", DURATION);
+			List<String> minority = new ArrayList<String>(simulation.getHosts().subList(0, size / 2));
+			List<String> majority = new ArrayList<String>(simulation.getHosts().subList(size / 2, size));
+			simulation.partition(minority, majority);
+			SimulationReport report = simulation.run("partition", DURATION);
+			// every side has a master of its own but never more than one
+			assertEquals(report.toString(), 2, simulation.getMasterCount());
+			simulation.heal();
+			// the masters do not find each other by themselves, the lower one has to hold an election
+			simulation.getClient(minority.get(minority.size() - 1)).scheduleElection(true);
+			report = simulation.run("heal", DURATION);
+			assertAgreed(report);
+			assertEquals(report.toString(), 1, simulation.getMasterCount());
+		}
+	}
+	
+	public void testGossip() {
+		for (int size : SIZES) {
+			ClusterSimulation simulation = newSimulation(size);
+			simulation.setHeartBeatMode(HeartBeatMode.GOSSIP);
+			simulation.run("cold start, gossip", DURATION);
+			String master = simulation.getAgreedMaster();
+			simulation.kill(master);
+			SimulationReport report = simulation.run("kill master, gossip", DURATION);
+			assertAgreed(report);
+			assertEquals(report.toString(), 1, report.getMaxMasters());
+		}
+	}
+	
+	private ClusterSimulation newSimulation(int size) {
+		ClusterSimulation simulation = new ClusterSimulation(size, VICTORY_TIMEOUT, HEART_BEAT_INTERVAL, 42);
+		simulation.getNetwork().setLatency(1, 4);
+		simulations.add(simulation);
+		simulation.coldStart();
+		return simulation;
+	}
+	
+	private static void assertAgreed(SimulationReport report) {
+		assertTrue(report.toString(), report.getTimeToMaster() >= 0);
+		assertNotNull(report.toString(), report.getMaster());
+	}
+}
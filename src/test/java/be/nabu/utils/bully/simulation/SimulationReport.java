@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.simulation;
+
+import java.util.Map;
+
+public class SimulationReport {
+
+	private String name, master;
+	private int size;
+	private long timeToMaster, messages, dropped, masterChanges;
+	private int maxMasters;
+	private Map<String, Long> messagesPerType;
+
+	public SimulationReport(String name, int size, long timeToMaster, long messages, long dropped, Map<String, Long> messagesPerType, long masterChanges, int maxMasters, String master) {
+		this.name = name;
+		this.size = size;
+		this.timeToMaster = timeToMaster;
+		this.messages = messages;
+		this.dropped = dropped;
+		this.messagesPerType = messagesPerType;
+		this.masterChanges = masterChanges;
+		this.maxMasters = maxMasters;
+		this.master = master;
+	}
+
+	public String getName() {
+		return name;
+	}
+	public int getSize() {
+		return size;
+	}
+	/**
+	 * The simulated time (ms) it took for all the live servers to agree on a live master, -1 if they never did
+	 */
+	public long getTimeToMaster() {
+		return timeToMaster;
+	}
+	public long getMessages() {
+		return messages;
+	}
+	public long getDropped() {
+		return dropped;
+	}
+	public Map<String, Long> getMessagesPerType() {
+		return messagesPerType;
+	}
+	/**
+	 * The amount of times a server was told about a different master than the one it had
+	 */
+	public long getMasterChanges() {
+		return masterChanges;
+	}
+	/**
+	 * The most live servers that considered themselves master at the same time, more than one means the cluster was split
+	 */
+	public int getMaxMasters() {
+		return maxMasters;
+	}
+	public String getMaster() {
+		return master;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%-24s size=%-4d timeToMaster=%-7s messages=%-8d dropped=%-6d churn=%-5d masters=%-3d master=%s %s", name, size, timeToMaster < 0 ? "never" : timeToMaster + "ms", messages, dropped, masterChanges, maxMasters, master, messagesPerType);
+	}
+}
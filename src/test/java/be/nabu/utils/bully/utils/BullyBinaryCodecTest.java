@@ -0,0 +1,87 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.BullyQueryList;
+import be.nabu.utils.bully.BullyQueryOverview;
+
+public class BullyBinaryCodecTest extends TestCase {
+	
+	public void testPoolIsBounded() throws Exception {
+		BullyBinaryCodec codec = new BullyBinaryCodec(2, BullyBinaryCodec.DEFAULT_MAX_LENGTH);
+		for (int i = 0; i < 10; i++) {
+			codec.unmarshalQuery(new ByteArrayInputStream(codec.marshal(newQuery(i))));
+		}
+		// single threaded use only ever needs one buffer
+		assertEquals(1, codec.getPooled());
+	}
+	
+	public void testLargeBuffersAreNotPooled() throws Exception {
+		BullyBinaryCodec codec = new BullyBinaryCodec(2, BullyBinaryCodec.DEFAULT_MAX_LENGTH);
+		codec.marshal(newOverview(5000));
+		assertEquals(0, codec.getPooled());
+	}
+	
+	public void testOversizedMessageIsRejected() throws Exception {
+		byte [] message = new BullyBinaryCodec().marshal(newOverview(100));
+		BullyBinaryCodec codec = new BullyBinaryCodec(2, message.length - 1);
+		try {
+			codec.unmarshalOverview(new ByteArrayInputStream(message));
+			fail("A message of " + message.length + " bytes should be rejected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		// exactly at the maximum is fine
+		codec = new BullyBinaryCodec(2, message.length);
+		assertEquals(100, codec.unmarshalOverview(new ByteArrayInputStream(message)).getLists().get(0).getQueries().size());
+	}
+	
+	private static BullyQueryOverview newOverview(int amount) {
+		List<BullyQuery> queries = new ArrayList<BullyQuery>();
+		for (int i = 0; i < amount; i++) {
+			queries.add(newQuery(i));
+		}
+		BullyQueryList list = new BullyQueryList();
+		list.setHost(queries.get(0).getHost());
+		list.setQueries(queries);
+		List<BullyQueryList> lists = new ArrayList<BullyQueryList>();
+		lists.add(list);
+		BullyQueryOverview overview = new BullyQueryOverview();
+		overview.setLists(lists);
+		return overview;
+	}
+	
+	private static BullyQuery newQuery(int sequence) {
+		BullyQuery query = new BullyQuery();
+		query.setCreated(new Date());
+		query.setHost("http://server1.example.com:8080/");
+		query.setLoad(1.5);
+		query.setCurrentThreadCount(42);
+		query.setSequence(sequence);
+		return query;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import be.nabu.utils.bully.BullyMetric;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.BullyQueryList;
+import be.nabu.utils.bully.BullyQueryOverview;
+
+public class BullyCodecTest {
+	
+	private static final int ITERATIONS = 1000;
+	
+	@Test
+	public void testRoundTrip() throws Exception {
+		BullyCodec codec = new BullyCodec(Charset.forName("UTF-8"));
+		BullyQuery query = newQuery();
+		assertQuery(query, codec.unmarshalQuery(new ByteArrayInputStream(codec.marshal(query))));
+	}
+	
+	@Test
+	public void testOverviewRoundTrip() throws Exception {
+		BullyCodec codec = new BullyCodec(Charset.forName("UTF-8"));
+		BullyQueryOverview overview = newOverview();
+		BullyQueryOverview result = codec.unmarshalOverview(new ByteArrayInputStream(codec.marshal(overview)));
+		assertEquals(overview.getSequence(), result.getSequence());
+		assertEquals(overview.getTerm(), result.getTerm());
+		assertEquals(overview.getFull(), result.getFull());
+		assertEquals(overview.getMembershipVersion(), result.getMembershipVersion());
+		assertEquals(overview.getMembers(), result.getMembers());
+		assertEquals(1, result.getLists().size());
+		assertEquals(overview.getLists().get(0).getHost(), result.getLists().get(0).getHost());
+		assertEquals(1, result.getLists().get(0).getQueries().size());
+		assertQuery(overview.getLists().get(0).getQueries().get(0), result.getLists().get(0).getQueries().get(0));
+	}
+	
+	@Test
+	public void testPoolIsBounded() throws Exception {
+		BullyCodec codec = new BullyCodec(Charset.forName("UTF-8"), 2);
+		for (int i = 0; i < 10; i++) {
+			codec.marshal(newQuery());
+		}
+		// single threaded use only ever needs one binding
+		assertEquals(1, codec.getPooled());
+	}
+	
+	/**
+	 * Every heartbeat unmarshals the overview of the master, reusing the bindings must allocate less per message than building them for every message
+	 */
+	@Test
+	public void testPooledAllocation() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		// allocation counting is specific to hotspot
+		Assume.assumeTrue("Allocation counters are not available on this JVM", bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		byte [] message = new BullyCodec(Charset.forName("UTF-8")).marshal(newOverview());
+		long pooled = allocated(threads, new BullyCodec(Charset.forName("UTF-8")), message);
+		long unpooled = allocated(threads, new BullyCodec(Charset.forName("UTF-8"), 0), message);
+		assertTrue("Pooled codec allocated " + pooled + " bytes per message, unpooled " + unpooled, pooled < unpooled);
+	}
+	
+	private static long allocated(com.sun.management.ThreadMXBean threads, BullyCodec codec, byte [] message) throws Exception {
+		// warm up so we don't measure class loading and jit
+		for (int i = 0; i < ITERATIONS; i++) {
+			codec.unmarshalOverview(new ByteArrayInputStream(message));
+		}
+		long threadId = Thread.currentThread().getId();
+		long started = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < ITERATIONS; i++) {
+			codec.unmarshalOverview(new ByteArrayInputStream(message));
+		}
+		return (threads.getThreadAllocatedBytes(threadId) - started) / ITERATIONS;
+	}
+	
+	private static void assertQuery(BullyQuery expected, BullyQuery actual) {
+		assertEquals(expected.getHost(), actual.getHost());
+		assertEquals(expected.getCreated(), actual.getCreated());
+		assertEquals(expected.getLoad(), actual.getLoad(), 0);
+		assertEquals(expected.getHeapUsed(), actual.getHeapUsed(), 0);
+		assertEquals(expected.getNonHeapUsed(), actual.getNonHeapUsed(), 0);
+		assertEquals(expected.getCurrentThreadCount(), actual.getCurrentThreadCount());
+		assertEquals(expected.getUptime(), actual.getUptime());
+		assertEquals(expected.getSequence(), actual.getSequence());
+		assertEquals(expected.getSince(), actual.getSince());
+		assertEquals(expected.getTerm(), actual.getTerm());
+		assertEquals(expected.getLease(), actual.getLease());
+		assertEquals(expected.getMaster(), actual.getMaster());
+		assertEquals(expected.getMembershipVersion(), actual.getMembershipVersion());
+		assertEquals(expected.getScore(), actual.getScore());
+		assertEquals(expected.getMetrics().size(), actual.getMetrics().size());
+		for (int i = 0; i < expected.getMetrics().size(); i++) {
+			assertEquals(expected.getMetrics().get(i).getName(), actual.getMetrics().get(i).getName());
+			assertEquals(expected.getMetrics().get(i).getValue(), actual.getMetrics().get(i).getValue(), 0);
+		}
+	}
+	
+	private static BullyQueryOverview newOverview() {
+		BullyQueryList list = new BullyQueryList();
+		list.setHost("http://server1.example.com:8080/");
+		list.setQueries(Arrays.asList(newQuery()));
+		List<BullyQueryList> lists = new ArrayList<BullyQueryList>();
+		lists.add(list);
+		BullyQueryOverview overview = new BullyQueryOverview();
+		overview.setSequence(12);
+		overview.setTerm(3);
+		overview.setFull(false);
+		overview.setLists(lists);
+		overview.setMembershipVersion(5l);
+		overview.setMembers(Arrays.asList("http://server1.example.com:8080/", "http://server2.example.com:8080/"));
+		return overview;
+	}
+	
+	private static BullyQuery newQuery() {
+		BullyQuery query = new BullyQuery();
+		query.setCreated(new Date());
+		query.setHost("http://server1.example.com:8080/");
+		query.setMaster("http://server2.example.com:8080/");
+		query.setLoad(1.5);
+		// the heap is sampled in bytes
+		query.setHeapUsed(512 * 1024 * 1024);
+		query.setNonHeapUsed(64 * 1024 * 1024);
+		query.setCurrentThreadCount(42);
+		query.setUptime(3600000);
+		query.setSequence(12);
+		query.setSince(10l);
+		query.setTerm(3);
+		query.setLease(5000l);
+		query.setMembershipVersion(5l);
+		query.setScore(0.25);
+		query.setMetrics(Arrays.asList(new BullyMetric("cpu", 0.75), new BullyMetric("gc", 12)));
+		return query;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class BullySchedulerTest extends TestCase {
+	
+	/**
+	 * Every worker waits for requests it sent, the requests must still run even though no worker is free
+	 */
+	public void testWorkersWaitingOnRequests() throws Exception {
+		final BullyScheduler scheduler = new BullyScheduler(null, 2);
+		try {
+			final int coordinators = 4;
+			final CountDownLatch done = new CountDownLatch(coordinators);
+			final AtomicInteger answered = new AtomicInteger();
+			for (int i = 0; i < coordinators; i++) {
+				scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						ExecutorCompletionService<Boolean> requests = new ExecutorCompletionService<Boolean>(scheduler.getRequestExecutor());
+						for (int j = 0; j < 3; j++) {
+							requests.submit(new Callable<Boolean>() {
+								@Override
+								public Boolean call() throws Exception {
+									Thread.sleep(10);
+									return true;
+								}
+							});
+						}
+						try {
+							for (int j = 0; j < 3; j++) {
+								Future<Boolean> future = requests.poll(1, TimeUnit.SECONDS);
+								if (future != null && future.get()) {
+									answered.incrementAndGet();
+								}
+							}
+						}
+						catch (Exception e) {
+							// counted as not answered
+						}
+						done.countDown();
+					}
+				});
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(coordinators * 3, answered.get());
+		}
+		finally {
+			scheduler.close();
+		}
+	}
+}
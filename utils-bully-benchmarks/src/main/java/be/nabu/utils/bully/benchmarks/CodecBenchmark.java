@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.BullyQueryOverview;
+import be.nabu.utils.bully.utils.BullyBinaryCodec;
+import be.nabu.utils.bully.utils.BullyCodec;
+
+/**
+ * The cost of (un)marshalling the messages with both codecs.
+ * A query is sent on every heartbeat, the overview is what the master answers with (a full one on the first alive).
+ * The size of the marshalled messages is printed once per trial so the payloads of both codecs can be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "5", "50", "500" })
+	private int hosts;
+
+	@Param({ "xml", "binary" })
+	private String codec;
+
+	// the amount of history entries per host in the overview
+	@Param({ "60" })
+	private int entries;
+
+	private BullyCodec xml;
+	private BullyBinaryCodec binary;
+	private BullyQuery query;
+	private BullyQueryOverview overview;
+	private byte [] marshalledQuery, marshalledOverview;
+
+	@Setup
+	public void setup() throws IOException {
+		xml = new BullyCodec(Charset.forName("UTF-8"));
+		binary = new BullyBinaryCodec();
+		query = Samples.query("node-000.cluster.local:8080", 1500000000000l, 1500000000001l);
+		overview = Samples.overview(Samples.hosts(hosts), entries);
+		marshalledQuery = marshal(query);
+		marshalledOverview = marshal(overview);
+		System.out.println(String.format("%n%s payload for %d hosts: query %d bytes, overview %d bytes", codec, hosts, marshalledQuery.length, marshalledOverview.length));
+	}
+
+	@Benchmark
+	public byte[] marshalQuery() throws IOException {
+		return marshal(query);
+	}
+
+	@Benchmark
+	public BullyQuery unmarshalQuery() throws IOException, ParseException {
+		ByteArrayInputStream input = new ByteArrayInputStream(marshalledQuery);
+		return "xml".equals(codec) ? xml.unmarshalQuery(input) : binary.unmarshalQuery(input);
+	}
+
+	@Benchmark
+	public byte[] marshalOverview() throws IOException {
+		return marshal(overview);
+	}
+
+	@Benchmark
+	public BullyQueryOverview unmarshalOverview() throws IOException, ParseException {
+		ByteArrayInputStream input = new ByteArrayInputStream(marshalledOverview);
+		return "xml".equals(codec) ? xml.unmarshalOverview(input) : binary.unmarshalOverview(input);
+	}
+
+	private byte[] marshal(BullyQuery query) throws IOException {
+		return "xml".equals(codec) ? xml.marshal(query) : binary.marshal(query);
+	}
+
+	private byte[] marshal(BullyQueryOverview overview) throws IOException {
+		return "xml".equals(codec) ? xml.marshal(overview) : binary.marshal(overview);
+	}
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.utils.bully.BullyClient;
+import be.nabu.utils.bully.utils.BullyScheduler;
+
+/**
+ * A complete election over a loopback transport, including the codecs, the REST handlers and the fan out on the scheduler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElectionBenchmark {
+
+	@Param({ "3", "10", "50" })
+	private int hosts;
+
+	@Param({ "true", "false" })
+	private boolean binary;
+
+	private BullyScheduler scheduler;
+	private List<BullyClient> clients = new ArrayList<BullyClient>();
+
+	@Setup
+	public void setup() throws InterruptedException, ExecutionException, TimeoutException {
+		List<String> names = Samples.hosts(hosts);
+		LoopbackTransport transport = new LoopbackTransport();
+		scheduler = new BullyScheduler();
+		for (String name : names) {
+			BullyClient client = new BullyClient(name, "/", null, 60000l, null, null, false, names);
+			client.setScheduler(scheduler);
+			client.setTransport(transport);
+			client.setBinary(binary);
+			// keep the heartbeats out of the measurements
+			client.setHeartBeatInterval(TimeUnit.HOURS.toMillis(1));
+			transport.register(name, client.newHandler());
+			clients.add(client);
+		}
+		// settle on a master first
+		getHighest().elect().get(10, TimeUnit.SECONDS);
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (BullyClient client : clients) {
+			client.close();
+		}
+		scheduler.close();
+	}
+
+	private BullyClient getHighest() {
+		BullyClient highest = null;
+		for (BullyClient client : clients) {
+			if (highest == null || client.getHost().compareTo(highest.getHost()) > 0) {
+				highest = client;
+			}
+		}
+		return highest;
+	}
+
+	/**
+	 * The highest server proclaims victory: no inquiries, a single victory round
+	 */
+	@Benchmark
+	public String electHighest() throws InterruptedException, ExecutionException, TimeoutException {
+		return getHighest().elect().get(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.utils.bully.BullyClient;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.utils.BullyBinaryCodec;
+import be.nabu.utils.bully.utils.BullyCodec;
+
+/**
+ * The fixed cost a server pays on every heartbeat before anything goes over the wire: sampling the jvm and marshalling the query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeartbeatBenchmark {
+
+	private BullyClient client;
+	private BullyCodec xml;
+	private BullyBinaryCodec binary;
+
+	@Setup
+	public void setup() {
+		client = new BullyClient("node-000", "/", null, 60000l, null, null, false, "node-000", "node-001", "node-002");
+		xml = new BullyCodec(Charset.forName("UTF-8"));
+		binary = new BullyBinaryCodec();
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public BullyQuery newBullyQuery() {
+		return client.newBullyQuery();
+	}
+
+	@Benchmark
+	public byte[] heartbeatXml() throws IOException {
+		return xml.marshal(client.newBullyQuery());
+	}
+
+	@Benchmark
+	public byte[] heartbeatBinary() {
+		return binary.marshal(client.newBullyQuery());
+	}
+}
@@ -0,0 +1,136 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import be.nabu.utils.bully.BullyClient;
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.BullyQueryList;
+import be.nabu.utils.bully.BullyQueryOverview;
+import be.nabu.utils.bully.history.HistoryStore;
+
+/**
+ * The cost of storing history and of building the overview that is sent back on an alive.
+ * The overview only holds views on the history, every entry is consumed so the queries are actually built as they would be when the overview is marshalled.
+ * Run with "-prof gc" to get the allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+	@Param({ "5", "50", "500" })
+	private int hosts;
+
+	private List<String> names;
+	private BullyClient client;
+	private HistoryStore history;
+	private long recent;
+
+	@Setup
+	public void setup() {
+		names = Samples.hosts(hosts);
+		client = new BullyClient(names.get(0), "/", null, 60000l, null, null, false, names);
+		history = client.getHistoryStore();
+		// fill the history completely so the snapshots are as large as they get
+		int capacity = history.getCapacity();
+		for (int i = 0; i < capacity; i++) {
+			for (String name : names) {
+				history.push(Samples.query(name, 1500000000000l + i * 60000l, 0));
+			}
+		}
+		// what a server that missed a single heartbeat round would ask for
+		recent = history.getSequence() - hosts;
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	/**
+	 * Pushes from multiple threads to random hosts, this is what the master does when the alives come in
+	 */
+	@Benchmark
+	@Threads(4)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void pushConcurrent() {
+		String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+		history.push(Samples.query(name, 1500000000000l, 0));
+	}
+
+	@Benchmark
+	public void getFullHistory(Blackhole blackhole) {
+		consume(client.getHistory(0), blackhole);
+	}
+
+	@Benchmark
+	public void getRecentHistory(Blackhole blackhole) {
+		consume(client.getHistory(recent), blackhole);
+	}
+
+	/**
+	 * Readers building overviews while the history is being written to
+	 */
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public void contendedPush() {
+		String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+		history.push(Samples.query(name, 1500000000000l, 0));
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void contendedGetHistory(Blackhole blackhole) {
+		consume(client.getHistory(0), blackhole);
+	}
+
+	private static void consume(BullyQueryOverview overview, Blackhole blackhole) {
+		for (BullyQueryList list : overview.getLists()) {
+			for (BullyQuery query : list.getQueries()) {
+				blackhole.consume(query);
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.benchmarks;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.bully.BullyTransport;
+
+/**
+ * Hands the requests straight to the handler of the target server, the full request and response path is taken except for the sockets.
+ */
+class LoopbackTransport implements BullyTransport {
+
+	private Map<String, EventHandler<HTTPRequest, HTTPResponse>> handlers = new ConcurrentHashMap<String, EventHandler<HTTPRequest, HTTPResponse>>();
+
+	void register(String host, EventHandler<HTTPRequest, HTTPResponse> handler) {
+		handlers.put(host, handler);
+	}
+
+	@Override
+	public HTTPResponse execute(String host, HTTPRequest request) throws IOException {
+		EventHandler<HTTPRequest, HTTPResponse> handler = handlers.get(host);
+		if (handler == null) {
+			throw new IOException("Unknown host: " + host);
+		}
+		return handler.handle(request);
+	}
+}
@@ -0,0 +1,75 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.bully.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import be.nabu.utils.bully.BullyQuery;
+import be.nabu.utils.bully.BullyQueryList;
+import be.nabu.utils.bully.BullyQueryOverview;
+
+/**
+ * Generates representative messages for the benchmarks.
+ */
+class Samples {
+
+	static List<String> hosts(int amount) {
+		List<String> hosts = new ArrayList<String>();
+		for (int i = 0; i < amount; i++) {
+			hosts.add(String.format("node-%03d.cluster.local:8080", i));
+		}
+		return hosts;
+	}
+
+	static BullyQuery query(String host, long created, long sequence) {
+		BullyQuery query = new BullyQuery(host);
+		query.setCreated(new Date(created));
+		query.setLoad(0.35);
+		query.setHeapUsed(512 * 1024 * 1024 + sequence * 4096);
+		query.setNonHeapUsed(96 * 1024 * 1024);
+		query.setCurrentThreadCount(120);
+		query.setUptime(3600000 + created);
+		query.setSequence(sequence);
+		query.setTerm(3);
+		return query;
+	}
+
+	/**
+	 * An overview with the given amount of entries for each host, as the master would send it on the first alive
+	 */
+	static BullyQueryOverview overview(List<String> hosts, int entries) {
+		BullyQueryOverview overview = new BullyQueryOverview();
+		overview.setTerm(3);
+		overview.setFull(true);
+		overview.setLists(new ArrayList<BullyQueryList>());
+		long created = 1500000000000l, sequence = created;
+		for (String host : hosts) {
+			BullyQueryList list = new BullyQueryList();
+			list.setHost(host);
+			list.setQueries(new ArrayList<BullyQuery>());
+			for (int i = 0; i < entries; i++) {
+				list.getQueries().add(query(host, created + i * 60000l, ++sequence));
+			}
+			overview.getLists().add(list);
+		}
+		overview.setSequence(sequence);
+		return overview;
+	}
+}